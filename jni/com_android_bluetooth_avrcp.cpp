@@ -1080,199 +1080,112 @@ static jboolean registerNotificationRspNowPlayingContentChangedNative(JNIEnv *en
     return (status == BT_STATUS_SUCCESS) ? JNI_TRUE : JNI_FALSE;
 }
 
+// Big endian readers for the folder item buffer built by FolderItemsRspBuilder
+static uint16_t readUint16(const uint8_t *p) {
+    return (uint16_t)((p[0] << 8) | p[1]);
+}
+
+static uint32_t readUint32(const uint8_t *p) {
+    return ((uint32_t)p[0] << 24) | ((uint32_t)p[1] << 16) | ((uint32_t)p[2] << 8) | p[3];
+}
+
+static uint64_t readUint64(const uint8_t *p) {
+    return ((uint64_t)readUint32(p) << 32) | readUint32(p + 4);
+}
+
+// Copies a length prefixed UTF-8 string out of the item buffer
+static bool readItemString(const uint8_t *buf, jint length, jint *offset,
+                                        uint16_t *charset, uint16_t *strLen, uint8_t **str) {
+    if (*offset + 4 > length) return false;
+    *charset = readUint16(buf + *offset);
+    *strLen = readUint16(buf + *offset + 2);
+    *offset += 4;
+    if (*offset + *strLen > length) return false;
+    *str = new uint8_t[*strLen + 1];
+    memcpy(*str, buf + *offset, *strLen);
+    (*str)[*strLen] = '\0';
+    *offset += *strLen;
+    return true;
+}
+
+// Folder items are encoded in AVRCP wire format into a direct buffer by the service
 static jboolean getFolderItemsRspNative(JNIEnv *env, jobject object, jbyte statusCode,
-                            jlong numItems, jintArray itemType, jlongArray uid, jintArray type,
-                            jbyteArray playable, jobjectArray displayName, jbyteArray numAtt,
-                                                    jobjectArray attValues, jintArray attIds) {
+                                        jint numItems, jobject itemBuffer, jint length) {
     bt_status_t status = BT_STATUS_SUCCESS;
     btrc_folder_list_entries_t param;
-    int32_t *itemTypeElements;
-    int64_t *uidElements;
-    int32_t *typeElements;
-    int8_t *playableElements;
-    jstring *displayNameElements;
-    int8_t *numAttElements;
-    jstring *attValuesElements;
-    int32_t *attIdsElements;
+    const uint8_t *buf = NULL;
+    jint offset = 0;
     jint count;
-    jstring text;
-    const char* textStr;
-    jsize utfStringLength = 0;
-    int num_attr;
 
     ALOGI("%s: sBluetoothAvrcpInterface: %p", __FUNCTION__, sBluetoothAvrcpInterface);
     if (!sBluetoothAvrcpInterface) return JNI_FALSE;
 
-    param.status = statusCode;
-    param.uid_counter = 0;
-    param.item_count = numItems;
-
     if (numItems > 0) {
-        itemTypeElements = env->GetIntArrayElements(itemType, NULL);
-        if (!itemTypeElements) {
-            jniThrowIOException(env, EINVAL);
-            return JNI_FALSE;
-        }
-
-        uidElements = env->GetLongArrayElements(uid, NULL);
-        if (!uidElements) {
-            jniThrowIOException(env, EINVAL);
-            return JNI_FALSE;
-        }
-
-        typeElements = env->GetIntArrayElements(type, NULL);
-        if (!typeElements) {
-            jniThrowIOException(env, EINVAL);
-            return JNI_FALSE;
-        }
-
-        playableElements = env->GetByteArrayElements(playable, NULL);
-        if (!playableElements) {
-            jniThrowIOException(env, EINVAL);
-            return JNI_FALSE;
-        }
-
-        numAttElements = env->GetByteArrayElements(numAtt, NULL);
-        if (!numAttElements) {
-            jniThrowIOException(env, EINVAL);
-            return JNI_FALSE;
-        }
-
-        attIdsElements = env->GetIntArrayElements(attIds, NULL);
-        if (!attIdsElements) {
+        buf = (const uint8_t *)env->GetDirectBufferAddress(itemBuffer);
+        if (!buf || env->GetDirectBufferCapacity(itemBuffer) < length) {
             jniThrowIOException(env, EINVAL);
             return JNI_FALSE;
         }
     }
 
+    param.status = statusCode;
+    param.uid_counter = 0;
+    param.item_count = numItems;
     param.p_item_list = new btrc_folder_list_item_t[numItems];
 
     for (count = 0; count < numItems; count++) {
-        param.p_item_list[count].item_type = (uint8_t)itemTypeElements[count];
-        ALOGI("getFolderItemsRspNative: item_type: %d", param.p_item_list[count].item_type);
-        if (itemTypeElements[count] == BTRC_TYPE_FOLDER) {
-            param.p_item_list[count].u.folder.uid = uidElements[count];
-            ALOGI("getFolderItemsRspNative: uid: %lu", param.p_item_list[count].u.folder.uid);
-            param.p_item_list[count].u.folder.type = (uint8_t)typeElements[count];
-            ALOGI("getFolderItemsRspNative: type: %d", param.p_item_list[count].u.folder.type);
-            param.p_item_list[count].u.folder.playable = playableElements[count];
-
-            text = (jstring) env->GetObjectArrayElement(displayName, count);
-            if (text == NULL) {
-                ALOGE("getFolderItemsRspNative: App string is NULL, bail out");
-                break;
-            }
-            utfStringLength = env->GetStringUTFLength(text);
-            if (!utfStringLength) {
-                ALOGE("getFolderItemsRspNative: GetStringUTFLength return NULL");
-                env->DeleteLocalRef(text);
+        btrc_folder_list_item_t *item = &param.p_item_list[count];
+        if (offset + 3 > length) break;
+        item->item_type = buf[offset];
+        jint itemEnd = offset + 3 + readUint16(buf + offset + 1);
+        offset += 3;
+        if (itemEnd > length) break;
+
+        if (item->item_type == BTRC_TYPE_FOLDER) {
+            if (offset + 10 > itemEnd) break;
+            item->u.folder.uid = readUint64(buf + offset);
+            item->u.folder.type = buf[offset + 8];
+            item->u.folder.playable = buf[offset + 9];
+            offset += 10;
+            if (!readItemString(buf, itemEnd, &offset, &item->u.folder.name.charset_id,
+                    &item->u.folder.name.str_len, &item->u.folder.name.p_str)) {
                 break;
             }
-            ALOGI("getFolderItemsRspNative: Disp Elem Length: %d", utfStringLength);
-
-            textStr = env->GetStringUTFChars(text, NULL);
-            if (!textStr) {
-                ALOGE("getFolderItemsRspNative: GetStringUTFChars return NULL");
-                env->DeleteLocalRef(text);
-                break;
-            }
-            param.p_item_list[count].u.folder.name.charset_id = BTRC_CHARSET_UTF8;
-            param.p_item_list[count].u.folder.name.str_len = utfStringLength;
-            param.p_item_list[count].u.folder.name.p_str = new uint8_t[utfStringLength + 1];
-            strlcpy((char *)param.p_item_list[count].u.folder.name.p_str, textStr,
-                                                                utfStringLength + 1);
-            env->ReleaseStringUTFChars(text, textStr);
-            env->DeleteLocalRef(text);
-        } else if (itemTypeElements[count] == BTRC_TYPE_MEDIA_ELEMENT) {
-            num_attr = 0;
-            param.p_item_list[count].u.media.uid = uidElements[count];
-            ALOGI("getFolderItemsRspNative: uid: %l", param.p_item_list[count].u.folder.uid);
-            param.p_item_list[count].u.media.type = (uint8_t)typeElements[count];
-            ALOGI("getFolderItemsRspNative: type: %d", param.p_item_list[count].u.folder.type);
-            text = (jstring) env->GetObjectArrayElement(displayName, count);
-            if (text == NULL) {
-                ALOGE("getFolderItemsRspNative: App string is NULL, bail out");
+        } else if (item->item_type == BTRC_TYPE_MEDIA_ELEMENT) {
+            if (offset + 9 > itemEnd) break;
+            item->u.media.uid = readUint64(buf + offset);
+            item->u.media.type = buf[offset + 8];
+            offset += 9;
+            if (!readItemString(buf, itemEnd, &offset, &item->u.media.name.charset_id,
+                    &item->u.media.name.str_len, &item->u.media.name.p_str)) {
                 break;
             }
-            utfStringLength = env->GetStringUTFLength(text);
-            if (!utfStringLength) {
-                ALOGE("getFolderItemsRspNative: GetStringUTFLength return NULL");
-                env->DeleteLocalRef(text);
-                break;
-            }
-            ALOGI("getFolderItemsRspNative: Disp Elem Length: %d", utfStringLength);
-
-            textStr = env->GetStringUTFChars(text, NULL);
-            if (!textStr) {
-                ALOGE("getFolderItemsRspNative: GetStringUTFChars return NULL");
-                env->DeleteLocalRef(text);
-                break;
-            }
-            param.p_item_list[count].u.media.name.charset_id = BTRC_CHARSET_UTF8;
-            param.p_item_list[count].u.media.name.str_len = utfStringLength;
-            param.p_item_list[count].u.media.name.p_str = new uint8_t[utfStringLength + 1];
-            strlcpy((char *)param.p_item_list[count].u.media.name.p_str, textStr,
-                                                                utfStringLength + 1);
-            env->ReleaseStringUTFChars(text, textStr);
-            env->DeleteLocalRef(text);
-            ALOGI("getFolderItemsRspNative: numAttr: %d", numAttElements[count]);
-            param.p_item_list[count].u.media.p_attr_list =
-                            new btrc_attr_entry_t[numAttElements[count]];
-
-            for (int i = 0; i < numAttElements[count]; i++) {
-                text = (jstring) env->GetObjectArrayElement(attValues, (7 * count) + i);
-                if (text == NULL) {
-                    ALOGE("getFolderItemsRspNative: Attribute string is NULL, continue to next");
-                    continue;
-                }
-                utfStringLength = env->GetStringUTFLength(text);
-                if (!utfStringLength) {
-                    ALOGE("getFolderItemsRspNative: GetStringUTFLength return NULL");
-                    env->DeleteLocalRef(text);
-                    continue;
+            if (offset + 1 > itemEnd) break;
+            uint8_t numAttr = buf[offset++];
+            item->u.media.p_attr_list = new btrc_attr_entry_t[numAttr];
+            item->u.media.attr_count = 0;
+            for (int i = 0; i < numAttr; i++) {
+                btrc_attr_entry_t *attr = &item->u.media.p_attr_list[i];
+                if (offset + 4 > itemEnd) break;
+                attr->attr_id = readUint32(buf + offset);
+                offset += 4;
+                if (!readItemString(buf, itemEnd, &offset, &attr->name.charset_id,
+                        &attr->name.str_len, &attr->name.p_str)) {
+                    break;
                 }
-                textStr = env->GetStringUTFChars(text, NULL);
-                if (!textStr) {
-                    ALOGE("getFolderItemsRspNative: GetStringUTFChars return NULL");
-                    env->DeleteLocalRef(text);
-                    continue;
-                }
-                param.p_item_list[count].u.media.p_attr_list[num_attr].attr_id =
-                                                    attIdsElements[(7 * count) + i];
-                ALOGI("getFolderItemsRspNative: Attr id: %d",
-                    param.p_item_list[count].u.media.p_attr_list[num_attr].attr_id);
-                param.p_item_list[count].u.media.p_attr_list[num_attr].name.charset_id =
-                                                                        BTRC_CHARSET_UTF8;
-                param.p_item_list[count].u.media.p_attr_list[num_attr].name.str_len =
-                                                                        utfStringLength;
-                ALOGI("getFolderItemsRspNative: Attr Length: %d",
-                    param.p_item_list[count].u.media.p_attr_list[num_attr].name.str_len);
-                param.p_item_list[count].u.media.p_attr_list[num_attr].name.p_str =
-                                                            new uint8_t[utfStringLength + 1];
-                strlcpy((char *)param.p_item_list[count].u.media.p_attr_list[num_attr].
-                                                name.p_str, textStr, utfStringLength + 1);
-                num_attr++;
-                env->ReleaseStringUTFChars(text, textStr);
-                env->DeleteLocalRef(text);
+                item->u.media.attr_count++;
             }
-            param.p_item_list[count].u.media.attr_count = num_attr;
-            ALOGI("getFolderItemsRspNative: effective numAttr: %d",
-                            param.p_item_list[count].u.media.attr_count);
         }
+        offset = itemEnd;
     }
 
-    if ((status = sBluetoothAvrcpInterface->get_folder_items_rsp(&param)) != BT_STATUS_SUCCESS) {
-        ALOGE("Failed get_folder_items_rsp, status: %u", status);
+    if (count < numItems) {
+        ALOGE("getFolderItemsRspNative: malformed item %d of %d", count, numItems);
+        param.item_count = count;
     }
 
-
-    if (numItems > 0) {
-        env->ReleaseIntArrayElements(itemType, itemTypeElements, 0);
-        env->ReleaseLongArrayElements(uid, uidElements, 0);
-        env->ReleaseIntArrayElements(type, typeElements, 0);
-        env->ReleaseByteArrayElements(playable, playableElements, 0);
-        env->ReleaseByteArrayElements(numAtt, numAttElements, 0);
-        env->ReleaseIntArrayElements(attIds, attIdsElements, 0);
+    if ((status = sBluetoothAvrcpInterface->get_folder_items_rsp(&param)) != BT_STATUS_SUCCESS) {
+        ALOGE("Failed get_folder_items_rsp, status: %u", status);
     }
 
     return (status == BT_STATUS_SUCCESS) ? JNI_TRUE : JNI_FALSE;
@@ -1606,7 +1519,7 @@ static JNINativeMethod sMethods[] = {
     {"changePathRspNative", "(IJ)Z", (void *) changePathRspNative},
     {"playItemRspNative", "(I)Z", (void *) playItemRspNative},
     {"getItemAttrRspNative", "(B[I[Ljava/lang/String;)Z", (void *) getItemAttrRspNative},
-    {"getFolderItemsRspNative", "(BJ[I[J[I[B[Ljava/lang/String;[B[Ljava/lang/String;[I)Z",
+    {"getFolderItemsRspNative", "(BILjava/nio/ByteBuffer;I)Z",
                                                             (void *) getFolderItemsRspNative},
 };
 
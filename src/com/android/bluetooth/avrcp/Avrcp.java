@@ -43,6 +43,7 @@ import android.os.PowerManager.WakeLock;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.KeyEvent;
 
@@ -55,13 +56,19 @@ import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Iterator;
 
 import android.provider.MediaStore;
 import android.content.ContentResolver;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
@@ -83,26 +90,16 @@ public final class Avrcp {
     private Metadata mMetadata;
     private int mTransportControlFlags;
     private int mCurrentPlayState;
-    private int mPlayStatusChangedNT;
-    private int mPlayerStatusChangeNT;
-    private int mTrackChangedNT;
     private long mTrackNumber;
     private long mCurrentPosMs;
     private long mPlayStartTimeMs;
     private long mSongLengthMs;
     private long mPlaybackIntervalMs;
-    private int mPlayPosChangedNT;
     private long mNextPosMs;
     private long mPrevPosMs;
     private long mSkipStartTime;
-    private int mFeatures;
-    private int mAbsoluteVolume;
-    private int mLastSetVolume;
-    private int mLastDirection;
     private final int mVolumeStep;
     private final int mAudioStreamMax;
-    private boolean mVolCmdInProgress;
-    private int mAbsVolRetryTimes;
     private static final String BLUETOOTH_ADMIN_PERM = android.Manifest.permission.BLUETOOTH_ADMIN;
     private static final String BLUETOOTH_PERM = android.Manifest.permission.BLUETOOTH;
     private int mSkipAmount;
@@ -146,13 +143,12 @@ public final class Avrcp {
     private static final int MESSAGE_PLAY_ITEM = 2006;
     private static final int MESSAGE_GET_ITEM_ATTRS = 2007;
 
-    private int mAddressedPlayerChangedNT;
-    private int mAvailablePlayersChangedNT;
-    private int mNowPlayingContentChangedNT;
     private int mAddressedPlayerId;
     private String mRequestedAddressedPlayerPackageName;
 
     private CachedRequest mCachedRequest = null;
+    private MediaContentObserver mMediaContentObserver;
+    private final FolderItemsRspBuilder mFolderItemsRsp = new FolderItemsRspBuilder();
 
     private static final int MSG_UPDATE_STATE = 100;
     private static final int MSG_SET_METADATA = 101;
@@ -165,6 +161,10 @@ public final class Avrcp {
     private static final int MSG_UPDATE_NOW_PLAYING_CONTENT_CHANGED = 205;
     private static final int MSG_PLAY_ITEM_RESPONSE = 206;
     private static final int MSG_NOW_PLAYING_ENTRIES_RECEIVED = 207;
+    private static final int MSG_BROWSE_CONTENT_CHANGED = 208;
+
+    /* MediaStore reports a scan as a burst of changes, handle them once it settles */
+    private static final int BROWSE_CONTENT_CHANGED_DELAY_MS = 1000;
 
     private MediaPlayerInfo mediaPlayerInfo1;
     private MediaPlayerInfo mediaPlayerInfo2;
@@ -321,25 +321,12 @@ public final class Avrcp {
         if (DEBUG) Log.v(TAG, "Avrcp");
         mMetadata = new Metadata();
         mCurrentPlayState = RemoteControlClient.PLAYSTATE_NONE; // until we get a callback
-        mPlayStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
-        mTrackChangedNT = NOTIFICATION_TYPE_CHANGED;
-        mPlayerStatusChangeNT = NOTIFICATION_TYPE_CHANGED;
-        mAddressedPlayerChangedNT = NOTIFICATION_TYPE_CHANGED;
-        mAvailablePlayersChangedNT = NOTIFICATION_TYPE_CHANGED;
-        mNowPlayingContentChangedNT = NOTIFICATION_TYPE_CHANGED;
         mTrackNumber = -1L;
         mCurrentPosMs = -1L;
         mPlayStartTimeMs = -1L;
         mSongLengthMs = 0L;
         mPlaybackIntervalMs = 0L;
         mAddressedPlayerId = 0; //  0 signifies bad entry
-        mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
-        mFeatures = 0;
-        mAbsoluteVolume = -1;
-        mLastSetVolume = -1;
-        mLastDirection = 0;
-        mVolCmdInProgress = false;
-        mAbsVolRetryTimes = 0;
         keyPressState = KEY_STATE_RELEASE; //Key release state
 
         mContext = context;
@@ -364,12 +351,14 @@ public final class Avrcp {
         mPendingSetAttributes = new ArrayList<Integer>();
         mCurrentPath = PATH_INVALID;
         mCurrentPathUid = null;
+        clearBrowseCache();
         mMediaUri = Uri.EMPTY;
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(AudioManager.RCC_CHANGED_ACTION);
         intentFilter.addAction(PLAYERSETTINGS_RESPONSE);
         try {
-            mContext.registerReceiver(mIntentReceiver, intentFilter);
+            // Delivered on the AVRCP thread, which owns the per-controller sessions
+            mContext.registerReceiver(mIntentReceiver, intentFilter, null, mHandler);
         }catch (Exception e) {
             Log.e(TAG,"Unable to register Avrcp receiver", e);
         }
@@ -380,6 +369,26 @@ public final class Avrcp {
                                                     null, mAvrcpRemoteControllerCb);
         mAudioManager.registerRemoteController(mRemoteController);
         mRemoteController.setSynchronizationMode(RemoteController.POSITION_SYNCHRONIZATION_CHECK);
+        mMediaContentObserver = new MediaContentObserver(mHandler);
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true,
+                                            mMediaContentObserver);
+        resolver.registerContentObserver(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, true,
+                                            mMediaContentObserver);
+    }
+
+    private class MediaContentObserver extends ContentObserver {
+        public MediaContentObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            if (DEBUG) Log.v(TAG, "MediaStore content changed");
+            mHandler.removeMessages(MSG_BROWSE_CONTENT_CHANGED);
+            mHandler.sendEmptyMessageDelayed(MSG_BROWSE_CONTENT_CHANGED,
+                                                BROWSE_CONTENT_CHANGED_DELAY_MS);
+        }
     }
 
     //Listen to intents from MediaPlayer and Audio Manager and update data structures
@@ -453,13 +462,7 @@ public final class Avrcp {
                                SendSetPlayerAppRspNative(INTERNAL_ERROR);
                             }
                         }
-                        if (mPlayerStatusChangeNT == NOTIFICATION_TYPE_INTERIM) {
-                            Log.v(TAG,"Send Player appl attribute changed response");
-                            mPlayerStatusChangeNT = NOTIFICATION_TYPE_CHANGED;
-                            sendPlayerAppChangedRsp(mPlayerStatusChangeNT);
-                        } else {
-                            Log.v(TAG,"Drop Set Attr Val update from media player");
-                        }
+                        updatePlayerAppSettings();
                     break;
                     case GET_ATTRIBUTE_TEXT:
                         text = intent.getStringArrayExtra(EXTRA_ATTRIBUTE_STRING_ARRAY);
@@ -579,6 +582,10 @@ public final class Avrcp {
             looper.quit();
         }
         mAudioManager.unregisterRemoteController(mRemoteController);
+        if (mMediaContentObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(mMediaContentObserver);
+            mMediaContentObserver = null;
+        }
         keyPressState = KEY_STATE_RELEASE; //Key release state
         try {
             mContext.unregisterReceiver(mIntentReceiver);
@@ -594,6 +601,9 @@ public final class Avrcp {
         mCurrentPath = PATH_INVALID;
         mMediaUri = Uri.EMPTY;
         mCurrentPathUid = null;
+        clearBrowseCache();
+        mSessions.clear();
+        mActiveSession = null;
     }
 
     public void cleanup() {
@@ -841,6 +851,13 @@ public final class Avrcp {
                 updateNowPlayingEntriesReceived((long [])msg.obj);
                 break;
 
+            case MSG_BROWSE_CONTENT_CHANGED:
+                Log.v(TAG, "MSG_BROWSE_CONTENT_CHANGED");
+                clearBrowseCache();
+                // Item UIDs may have changed, so the controller has to fetch them again
+                updateNowPlayingContentChanged();
+                break;
+
             case MSG_SET_TRANSPORT_CONTROLS:
                     updateTransportControls(msg.arg2);
                 break;
@@ -853,7 +870,7 @@ public final class Avrcp {
                 String address = (String) msg.obj;
                 if (DEBUG) Log.v(TAG, "MESSAGE_GET_RC_FEATURES: address="+address+
                                                              ", features="+msg.arg1);
-                mFeatures = msg.arg1;
+                activateSession(address).features = msg.arg1;
                 mAudioManager.avrcpSupportsAbsoluteVolume(address, isAbsoluteVolumeSupported());
                 break;
 
@@ -887,8 +904,7 @@ public final class Avrcp {
 
             case MESSAGE_PLAY_INTERVAL_TIMEOUT:
                 if (DEBUG) Log.v(TAG, "MESSAGE_PLAY_INTERVAL_TIMEOUT");
-                mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
-                registerNotificationRspPlayPosNative(mPlayPosChangedNT, (int)getPlayPosition());
+                sendPlayPosChangedRsp(getPlayPosition());
                 break;
 
             case MESSAGE_SET_ADDR_PLAYER_REQ_TIMEOUT:
@@ -898,80 +914,92 @@ public final class Avrcp {
                 break;
 
             case MESSAGE_VOLUME_CHANGED:
+            {
                 if (DEBUG) Log.v(TAG, "MESSAGE_VOLUME_CHANGED: volume=" + ((byte)msg.arg1 & 0x7f)
                                                         + " ctype=" + msg.arg2);
+                DeviceSession session = getActiveSession();
 
                 if (msg.arg2 == AVRC_RSP_ACCEPT || msg.arg2 == AVRC_RSP_REJ) {
-                    if (mVolCmdInProgress == false) {
+                    if (session.volCmdInProgress == false) {
                         Log.e(TAG, "Unsolicited response, ignored");
                         break;
                     }
                     removeMessages(MESSAGE_ABS_VOL_TIMEOUT);
-                    mVolCmdInProgress = false;
-                    mAbsVolRetryTimes = 0;
+                    session.volCmdInProgress = false;
+                    session.absVolRetryTimes = 0;
                 }
-                if (mAbsoluteVolume != msg.arg1 && (msg.arg2 == AVRC_RSP_ACCEPT ||
-                                                    msg.arg2 == AVRC_RSP_CHANGED ||
-                                                    msg.arg2 == AVRC_RSP_INTERIM)) {
+                if (session.absoluteVolume != msg.arg1 && (msg.arg2 == AVRC_RSP_ACCEPT ||
+                                                           msg.arg2 == AVRC_RSP_CHANGED ||
+                                                           msg.arg2 == AVRC_RSP_INTERIM)) {
                     byte absVol = (byte)((byte)msg.arg1 & 0x7f); // discard MSB as it is RFD
                     notifyVolumeChanged(absVol);
-                    mAbsoluteVolume = absVol;
+                    session.absoluteVolume = absVol;
                     long pecentVolChanged = ((long)absVol * 100) / 0x7f;
                     Log.e(TAG, "percent volume changed: " + pecentVolChanged + "%");
                 } else if (msg.arg2 == AVRC_RSP_REJ) {
                     Log.e(TAG, "setAbsoluteVolume call rejected");
                 }
                 break;
+            }
 
             case MESSAGE_ADJUST_VOLUME:
+            {
                 if (DEBUG) Log.d(TAG, "MESSAGE_ADJUST_VOLUME: direction=" + msg.arg1);
-                if (mVolCmdInProgress) {
+                DeviceSession session = getActiveSession();
+                if (session.volCmdInProgress) {
                     if (DEBUG) Log.w(TAG, "There is already a volume command in progress.");
                     break;
                 }
                 // Wait on verification on volume from device, before changing the volume.
-                if (mAbsoluteVolume != -1 && (msg.arg1 == -1 || msg.arg1 == 1)) {
+                if (session.absoluteVolume != -1 && (msg.arg1 == -1 || msg.arg1 == 1)) {
                     int setVol = Math.min(AVRCP_MAX_VOL,
-                                 Math.max(0, mAbsoluteVolume + msg.arg1*mVolumeStep));
+                                 Math.max(0, session.absoluteVolume + msg.arg1*mVolumeStep));
                     if (setVolumeNative(setVol)) {
                         sendMessageDelayed(obtainMessage(MESSAGE_ABS_VOL_TIMEOUT),
                                            CMD_TIMEOUT_DELAY);
-                        mVolCmdInProgress = true;
-                        mLastDirection = msg.arg1;
-                        mLastSetVolume = setVol;
+                        session.volCmdInProgress = true;
+                        session.lastDirection = msg.arg1;
+                        session.lastSetVolume = setVol;
                     }
                 } else {
                     Log.e(TAG, "Unknown direction in MESSAGE_ADJUST_VOLUME");
                 }
                 break;
+            }
 
             case MESSAGE_SET_ABSOLUTE_VOLUME:
+            {
                 if (DEBUG) Log.v(TAG, "MESSAGE_SET_ABSOLUTE_VOLUME");
-                if (mVolCmdInProgress) {
+                DeviceSession session = getActiveSession();
+                if (session.volCmdInProgress) {
                     if (DEBUG) Log.w(TAG, "There is already a volume command in progress.");
                     break;
                 }
                 if (setVolumeNative(msg.arg1)) {
                     sendMessageDelayed(obtainMessage(MESSAGE_ABS_VOL_TIMEOUT), CMD_TIMEOUT_DELAY);
-                    mVolCmdInProgress = true;
-                    mLastSetVolume = msg.arg1;
+                    session.volCmdInProgress = true;
+                    session.lastSetVolume = msg.arg1;
                 }
                 break;
+            }
 
             case MESSAGE_ABS_VOL_TIMEOUT:
+            {
                 if (DEBUG) Log.v(TAG, "MESSAGE_ABS_VOL_TIMEOUT: Volume change cmd timed out.");
-                mVolCmdInProgress = false;
-                if (mAbsVolRetryTimes >= MAX_ERROR_RETRY_TIMES) {
-                    mAbsVolRetryTimes = 0;
+                DeviceSession session = getActiveSession();
+                session.volCmdInProgress = false;
+                if (session.absVolRetryTimes >= MAX_ERROR_RETRY_TIMES) {
+                    session.absVolRetryTimes = 0;
                 } else {
-                    mAbsVolRetryTimes += 1;
-                    if (setVolumeNative(mLastSetVolume)) {
+                    session.absVolRetryTimes += 1;
+                    if (setVolumeNative(session.lastSetVolume)) {
                         sendMessageDelayed(obtainMessage(MESSAGE_ABS_VOL_TIMEOUT),
                                            CMD_TIMEOUT_DELAY);
-                        mVolCmdInProgress = true;
+                        session.volCmdInProgress = true;
                     }
                 }
                 break;
+            }
 
             case MESSAGE_FAST_FORWARD:
             case MESSAGE_REWIND:
@@ -1168,22 +1196,26 @@ public final class Avrcp {
         long playPosition = getPlayPosition();
         mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
         /* need send play position changed notification when play status is changed */
-        if ((mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) &&
-            ((oldPlayStatus != newPlayStatus) || (oldPosValid != newPosValid) ||
-             (newPosValid && ((playPosition >= mNextPosMs) || (playPosition <= mPrevPosMs))))) {
-            mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
-            registerNotificationRspPlayPosNative(mPlayPosChangedNT, (int)playPosition);
-        }
-        if ((mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) && newPosValid &&
-            (state == RemoteControlClient.PLAYSTATE_PLAYING)) {
+        if ((oldPlayStatus != newPlayStatus) || (oldPosValid != newPosValid) ||
+            (newPosValid && ((playPosition >= mNextPosMs) || (playPosition <= mPrevPosMs)))) {
+            sendPlayPosChangedRsp(playPosition);
+        }
+        boolean posRegistered = false;
+        for (DeviceSession session : mSessions.values()) {
+            if (session.playPosChangedNT == NOTIFICATION_TYPE_INTERIM) {
+                posRegistered = true;
+            }
+            if ((session.playStatusChangedNT == NOTIFICATION_TYPE_INTERIM) &&
+                (oldPlayStatus != newPlayStatus)) {
+                session.playStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
+                registerNotificationRspPlayStatusNative(session.playStatusChangedNT,
+                                                        newPlayStatus);
+            }
+        }
+        if (posRegistered && newPosValid && (state == RemoteControlClient.PLAYSTATE_PLAYING)) {
             Message msg = mHandler.obtainMessage(MESSAGE_PLAY_INTERVAL_TIMEOUT);
             mHandler.sendMessageDelayed(msg, mNextPosMs - playPosition);
         }
-
-        if ((mPlayStatusChangedNT == NOTIFICATION_TYPE_INTERIM) && (oldPlayStatus != newPlayStatus)) {
-            mPlayStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
-            registerNotificationRspPlayStatusNative(mPlayStatusChangedNT, newPlayStatus);
-        }
     }
 
     private void updateTransportControls(int transportControlFlags) {
@@ -1192,57 +1224,63 @@ public final class Avrcp {
 
     private void updateAvailableMediaPlayers() {
         if (DEBUG) Log.v(TAG, "updateAvailableMediaPlayers");
-        if (mAvailablePlayersChangedNT == NOTIFICATION_TYPE_INTERIM) {
-            mAvailablePlayersChangedNT = NOTIFICATION_TYPE_CHANGED;
-            if (DEBUG) Log.v(TAG, "send AvailableMediaPlayers to stack");
-            registerNotificationRspAvailablePlayersChangedNative(mAvailablePlayersChangedNT);
+        for (DeviceSession session : mSessions.values()) {
+            if (session.availablePlayersChangedNT == NOTIFICATION_TYPE_INTERIM) {
+                session.availablePlayersChangedNT = NOTIFICATION_TYPE_CHANGED;
+                if (DEBUG) Log.v(TAG, "send AvailableMediaPlayers to stack");
+                registerNotificationRspAvailablePlayersChangedNative(
+                        session.availablePlayersChangedNT);
+            }
         }
     }
     private void updateAddressedMediaPlayer(int playerId) {
         if (DEBUG) Log.v(TAG, "updateAddressedMediaPlayer");
         int previousAddressedPlayerId = mAddressedPlayerId;
-        if ((mAddressedPlayerChangedNT == NOTIFICATION_TYPE_INTERIM) && (mAddressedPlayerId != playerId)) {
+        mAddressedPlayerId = playerId;
+        if (previousAddressedPlayerId == playerId) {
+            return;
+        }
+        byte[] track = getTrackId(mTrackNumber);
+        for (DeviceSession session : mSessions.values()) {
+            if (session.addressedPlayerChangedNT != NOTIFICATION_TYPE_INTERIM) {
+                if (DEBUG) Log.v(TAG, "Do not reset notifications, ADDR_PLAYR_CHNGD not registered");
+                continue;
+            }
             if (DEBUG) Log.v(TAG, "send AddressedMediaPlayer to stack: playerId" + playerId);
-            mAddressedPlayerId = playerId;
-            mAddressedPlayerChangedNT = NOTIFICATION_TYPE_CHANGED;
-            registerNotificationRspAddressedPlayerChangedNative(mAddressedPlayerChangedNT, mAddressedPlayerId);
+            session.addressedPlayerChangedNT = NOTIFICATION_TYPE_CHANGED;
+            registerNotificationRspAddressedPlayerChangedNative(session.addressedPlayerChangedNT,
+                                                                mAddressedPlayerId);
             if (previousAddressedPlayerId != 0) {
-                resetAndSendPlayerStatusReject();
+                resetAndSendPlayerStatusReject(session, track);
             }
-        } else {
-            if (DEBUG) Log.v(TAG, "Do not reset notifications, ADDR_PLAYR_CHNGD not registered");
-            mAddressedPlayerId = playerId;
         }
     }
 
-    private void resetAndSendPlayerStatusReject() {
+    private void resetAndSendPlayerStatusReject(DeviceSession session, byte[] track) {
         if (DEBUG) Log.v(TAG, "resetAndSendPlayerStatusReject");
 
-        if (mPlayStatusChangedNT == NOTIFICATION_TYPE_INTERIM) {
+        if (session.playStatusChangedNT == NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.v(TAG, "send Play Status reject to stack");
-            mPlayStatusChangedNT = NOTIFICATION_TYPE_REJECT;
-            registerNotificationRspPlayStatusNative(mPlayStatusChangedNT, PLAYSTATUS_STOPPED);
+            session.playStatusChangedNT = NOTIFICATION_TYPE_REJECT;
+            registerNotificationRspPlayStatusNative(session.playStatusChangedNT,
+                                                    PLAYSTATUS_STOPPED);
         }
-        if (mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) {
+        if (session.playPosChangedNT == NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.v(TAG, "send Play Position reject to stack");
-            mPlayPosChangedNT = NOTIFICATION_TYPE_REJECT;
-            registerNotificationRspPlayPosNative(mPlayPosChangedNT, -1);
+            session.playPosChangedNT = NOTIFICATION_TYPE_REJECT;
+            registerNotificationRspPlayPosNative(session.playPosChangedNT, -1);
             mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
         }
-        if (mTrackChangedNT == NOTIFICATION_TYPE_INTERIM) {
+        if (session.trackChangedNT == NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.v(TAG, "send Track Changed reject to stack");
-            mTrackChangedNT = NOTIFICATION_TYPE_REJECT;
-            byte[] track = new byte[TRACK_ID_SIZE];
-            /* track is stored in big endian format */
-            for (int i = 0; i < TRACK_ID_SIZE; ++i) {
-                track[i] = (byte) (mTrackNumber >> (56 - 8 * i));
-            }
-            registerNotificationRspTrackChangeNative(mTrackChangedNT, track);
+            session.trackChangedNT = NOTIFICATION_TYPE_REJECT;
+            registerNotificationRspTrackChangeNative(session.trackChangedNT, track);
         }
-        if (mNowPlayingContentChangedNT == NOTIFICATION_TYPE_INTERIM) {
+        if (session.nowPlayingContentChangedNT == NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.v(TAG, "send Now playing changed reject to stack");
-            mNowPlayingContentChangedNT = NOTIFICATION_TYPE_REJECT;
-            registerNotificationRspNowPlayingContentChangedNative(mNowPlayingContentChangedNT);
+            session.nowPlayingContentChangedNT = NOTIFICATION_TYPE_REJECT;
+            registerNotificationRspNowPlayingContentChangedNative(
+                    session.nowPlayingContentChangedNT);
         }
     }
 
@@ -1261,10 +1299,13 @@ public final class Avrcp {
 
     void updateNowPlayingContentChanged() {
         Log.v(TAG, "updateNowPlayingContentChanged");
-        if (mNowPlayingContentChangedNT == NOTIFICATION_TYPE_INTERIM) {
-            Log.v(TAG, "Notify peer on updateNowPlayingContentChanged");
-            mNowPlayingContentChangedNT = NOTIFICATION_TYPE_CHANGED;
-            registerNotificationRspNowPlayingContentChangedNative(mNowPlayingContentChangedNT);
+        for (DeviceSession session : mSessions.values()) {
+            if (session.nowPlayingContentChangedNT == NOTIFICATION_TYPE_INTERIM) {
+                Log.v(TAG, "Notify peer on updateNowPlayingContentChanged");
+                session.nowPlayingContentChangedNT = NOTIFICATION_TYPE_CHANGED;
+                registerNotificationRspNowPlayingContentChangedNative(
+                        session.nowPlayingContentChangedNT);
+            }
         }
     }
 
@@ -1278,42 +1319,23 @@ public final class Avrcp {
     }
 
     void updateNowPlayingEntriesReceived(long[] playList) {
-        int status = OPERATION_SUCCESSFUL;
-        int numItems = 0;
         long reqItems = (mCachedRequest.mEnd - mCachedRequest.mStart) + 1;
         long availableItems = 0;
-        Cursor cursor = null;
-        int[] itemType = new int[MAX_BROWSE_ITEM_TO_SEND];
-        long[] uid = new long[MAX_BROWSE_ITEM_TO_SEND];
-        int[] type = new int[MAX_BROWSE_ITEM_TO_SEND];
-        byte[] playable = new byte[MAX_BROWSE_ITEM_TO_SEND];
-        String[] displayName = new String[MAX_BROWSE_ITEM_TO_SEND];
-        byte[] numAtt = new byte[MAX_BROWSE_ITEM_TO_SEND];
-        String[] attValues = new String[MAX_BROWSE_ITEM_TO_SEND * 7];
-        int[] attIds = new int[MAX_BROWSE_ITEM_TO_SEND * 7];
-        int index;
 
         Log.v(TAG, "updateNowPlayingEntriesReceived");
-
-        // Item specific attribute's entry starts from index*7, reset all such entries to 0 for now
-        for (int count = 0; count < (MAX_BROWSE_ITEM_TO_SEND * 7); count++) {
-            attValues[count] = "";
-            attIds[count] = 0;
-        }
+        mFolderItemsRsp.reset();
 
         availableItems = playList.length;
         if ((mCachedRequest.mStart + 1) > availableItems) {
             Log.i(TAG, "startIteam exceeds the available item index");
-            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType, uid, type,
-                                            playable, displayName, numAtt, attValues, attIds);
+            sendFolderItemsRsp(RANGE_OUT_OF_BOUNDS);
             return;
         }
 
         if ((mCachedRequest.mStart < 0) || (mCachedRequest.mEnd < 0) ||
                             (mCachedRequest.mStart > mCachedRequest.mEnd)) {
             Log.i(TAG, "wrong start / end index");
-            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
+            sendFolderItemsRsp(RANGE_OUT_OF_BOUNDS);
             return;
         }
 
@@ -1327,45 +1349,125 @@ public final class Avrcp {
             reqItems = availableItems;
         Log.i(TAG, "reqItems: " + reqItems);
 
-        for (index = 0; index < reqItems; index++) {
-            try {
-                cursor = mContext.getContentResolver().query(
-                     mMediaUri, mCursorCols,
-                     MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" +
-                         playList[index + (int)mCachedRequest.mStart], null, null);
-                if (cursor != null) {
-                    int validAttrib = 0;
-                    cursor.moveToFirst();
-                    itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                    type[index] = MEDIA_TYPE_AUDIO;
-                    playable[index] = 0;
-                    displayName[index] = cursor.getString(cursor.getColumnIndexOrThrow(
-                                                            MediaStore.Audio.Media.TITLE));
-                    for (int attIndex = 0; attIndex < mCachedRequest.mAttrCnt; attIndex++) {
-                        int attr = mCachedRequest.mAttrList.get(attIndex).intValue();
-                        if ((attr <= MEDIA_ATTR_MAX) && (attr >= MEDIA_ATTR_MIN)) {
-                            attValues[(7 * index) + attIndex] =
-                                getAttributeStringFromCursor(cursor, attr);
-                            attIds[(7 * index) + attIndex] = attr;
-                            validAttrib ++;
-                        }
-                    }
-                    numAtt[index] = (byte)validAttrib;
-                }
-            } catch(Exception e) {
-                Log.i(TAG, "Exception "+ e);
-                getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                            uid, type, playable, displayName, numAtt, attValues, attIds);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+        int[] attrs = new int[mCachedRequest.mAttrCnt];
+        for (int attIndex = 0; attIndex < mCachedRequest.mAttrCnt; attIndex++) {
+            attrs[attIndex] = mCachedRequest.mAttrList.get(attIndex).intValue();
+        }
+        try {
+            fillMediaItems(new FolderOrder(playList, null, null),
+                    MediaStore.Audio.Media.IS_MUSIC + "=1", (int)mCachedRequest.mStart,
+                    (int)reqItems, mCachedRequest.mAttrCnt, attrs);
+        } catch(Exception e) {
+            Log.i(TAG, "Exception "+ e);
+            sendFolderItemsRsp(INTERNAL_ERROR);
+            return;
+        }
+        sendFolderItemsRsp(OPERATION_SUCCESSFUL);
+    }
+
+    /**
+     * Notification registrations and absolute volume state of one remote controller.
+     * Media side updates are computed once and then sent to every session that has
+     * registered for the event.
+     */
+    private static class DeviceSession {
+        String address;
+        int features;
+        int playStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
+        int playerStatusChangeNT = NOTIFICATION_TYPE_CHANGED;
+        int trackChangedNT = NOTIFICATION_TYPE_CHANGED;
+        int playPosChangedNT = NOTIFICATION_TYPE_CHANGED;
+        int addressedPlayerChangedNT = NOTIFICATION_TYPE_CHANGED;
+        int availablePlayersChangedNT = NOTIFICATION_TYPE_CHANGED;
+        int nowPlayingContentChangedNT = NOTIFICATION_TYPE_CHANGED;
+        int absoluteVolume = -1;
+        int lastSetVolume = -1;
+        int lastDirection;
+        boolean volCmdInProgress;
+        int absVolRetryTimes;
+
+        DeviceSession(String address) {
+            this.address = address;
+        }
+
+        /* The stack drops a controller's registrations once it stops talking to it */
+        void resetNotifications() {
+            playStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
+            playerStatusChangeNT = NOTIFICATION_TYPE_CHANGED;
+            trackChangedNT = NOTIFICATION_TYPE_CHANGED;
+            playPosChangedNT = NOTIFICATION_TYPE_CHANGED;
+            addressedPlayerChangedNT = NOTIFICATION_TYPE_CHANGED;
+            availablePlayersChangedNT = NOTIFICATION_TYPE_CHANGED;
+            nowPlayingContentChangedNT = NOTIFICATION_TYPE_CHANGED;
+            absoluteVolume = -1;
+            volCmdInProgress = false;
+            absVolRetryTimes = 0;
+        }
+
+        @Override
+        public String toString() {
+            return "DeviceSession[address=" + address + " features=" + features +
+                   " playStatusChangedNT=" + playStatusChangedNT +
+                   " trackChangedNT=" + trackChangedNT +
+                   " playPosChangedNT=" + playPosChangedNT +
+                   " absoluteVolume=" + absoluteVolume +
+                   " lastSetVolume=" + lastSetVolume +
+                   " lastDirection=" + lastDirection +
+                   " volCmdInProgress=" + volCmdInProgress +
+                   " absVolRetryTimes=" + absVolRetryTimes + "]";
+        }
+    }
+
+    /* Sessions of the controllers seen so far, least recently active first.
+     * Only touched from the AVRCP handler thread. */
+    private static final int MAX_DEVICE_SESSIONS = 8;
+
+    private LinkedHashMap<String, DeviceSession> mSessions =
+            new LinkedHashMap<String, DeviceSession>(MAX_DEVICE_SESSIONS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DeviceSession> eldest) {
+                    return size() > MAX_DEVICE_SESSIONS;
                 }
-            }
+            };
+
+    /* Controller the native interface is currently bound to */
+    private DeviceSession mActiveSession;
+
+    /**
+     * Returns the session of the controller the native interface is bound to. Commands
+     * may arrive before the remote features name the controller, in which case a session
+     * without an address is used until they do.
+     */
+    private DeviceSession getActiveSession() {
+        if (mActiveSession == null) {
+            mActiveSession = new DeviceSession(null);
+            mSessions.put(null, mActiveSession);
         }
-        numItems = index;
-        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType, uid,
-                        type, playable, displayName, numAtt, attValues, attIds);
+        return mActiveSession;
+    }
+
+    private DeviceSession activateSession(String address) {
+        DeviceSession active = mActiveSession;
+        if (active != null && active.address == null) {
+            // Registrations made before the features arrived belong to this controller
+            mSessions.remove(null);
+            mSessions.remove(address);
+            active.address = address;
+            mSessions.put(address, active);
+            return active;
+        }
+        DeviceSession session = mSessions.get(address);
+        if (session == null) {
+            session = new DeviceSession(address);
+            mSessions.put(address, session);
+        }
+        if (active != null && active != session) {
+            if (DEBUG) Log.v(TAG, "Controller changed from " + active.address + " to " + address);
+            mHandler.removeMessages(MESSAGE_ABS_VOL_TIMEOUT);
+            active.resetNotifications();
+        }
+        mActiveSession = session;
+        return session;
     }
 
     class CachedRequest {
@@ -1486,9 +1588,12 @@ public final class Avrcp {
             updateTrackNumber();
             Log.v(TAG,"new mMetadata, mTrackNumber update to " + mTrackNumber);
 
-            if (mTrackChangedNT == NOTIFICATION_TYPE_INTERIM) {
-                mTrackChangedNT = NOTIFICATION_TYPE_CHANGED;
-                sendTrackChangedRsp();
+            byte[] track = getTrackId(mMetadata.tracknum);
+            for (DeviceSession session : mSessions.values()) {
+                if (session.trackChangedNT == NOTIFICATION_TYPE_INTERIM) {
+                    session.trackChangedNT = NOTIFICATION_TYPE_CHANGED;
+                    registerNotificationRspTrackChangeNative(session.trackChangedNT, track);
+                }
             }
 
             if (mCurrentPosMs != RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN) {
@@ -1498,10 +1603,7 @@ public final class Avrcp {
                 }
             }
             /* need send play position changed notification when track is changed */
-            if (mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) {
-                mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
-                registerNotificationRspPlayPosNative(mPlayPosChangedNT,
-                                                     (int)getPlayPosition());
+            if (sendPlayPosChangedRsp(getPlayPosition())) {
                 mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
             }
         }
@@ -1546,6 +1648,7 @@ public final class Avrcp {
         mCurrentPath = PATH_INVALID;
         mMediaUri = Uri.EMPTY;
         mCurrentPathUid = null;
+        clearBrowseCache();
         if (DEBUG) Log.v(TAG, "processSetBrowsedPlayer: PlayerID: " + playerId);
         if (mMediaPlayers.size() > 0) {
             final Iterator<MediaPlayerInfo> rccIterator = mMediaPlayers.iterator();
@@ -1621,234 +1724,46 @@ public final class Avrcp {
                 case FOLDER_DOWN:
                     if (folderUid == UID_TITLES) {
                         mCurrentPath = PATH_TITLES;
-                        numberOfItems = getNumItems(PATH_TITLES,
-                            MediaStore.Audio.Media.TITLE);
                     } else if (folderUid == UID_ALBUM) {
                         mCurrentPath = PATH_ALBUMS;
-                        numberOfItems = getNumItems(PATH_ALBUMS,
-                            MediaStore.Audio.Media.ALBUM_ID);
                     } else if (folderUid == UID_ARTIST) {
                         mCurrentPath = PATH_ARTISTS;
-                        numberOfItems = getNumItems(PATH_ARTISTS,
-                            MediaStore.Audio.Media.ARTIST_ID);
                     } else if (folderUid == UID_PLAYLIST) {
                         mCurrentPath = PATH_PLAYLISTS;
-                        numberOfItems = getNumPlaylistItems();
                     } else {
                         status = DOES_NOT_EXIST;
+                        break;
                     }
+                    numberOfItems = getFolderItemCount(mCurrentPath, null);
                     break;
                 default:
                     status = INVALID_DIRECTION;
                     break;
             }
-        } else if (mCurrentPath.equals(PATH_TITLES)) {
-            switch (direction) {
-                case FOLDER_UP:
-                    mCurrentPath = PATH_ROOT;
-                    numberOfItems = NUM_ROOT_ELEMENTS;
-                    break;
-                case FOLDER_DOWN:
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            new String[] {MediaStore.Audio.Media.TITLE},
-                            MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id="
-                            + folderUid, null, null);
-                        if (cursor != null)
-                            status = NOT_A_DIRECTORY;
-                        else
-                            status = DOES_NOT_EXIST;
-                    } catch (Exception e) {
-                        Log.e(TAG, "Exception " + e);
-                        changePathRspNative(INTERNAL_ERROR, numberOfItems);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                    break;
-                default:
-                    status = INVALID_DIRECTION;
-                    break;
-            }
-        } else if (mCurrentPath.equals(PATH_ALBUMS)) {
+        } else if (mCurrentPath.equals(PATH_TITLES) || mCurrentPath.equals(PATH_ALBUMS) ||
+                mCurrentPath.equals(PATH_ARTISTS) || mCurrentPath.equals(PATH_PLAYLISTS)) {
             switch (direction) {
-                case FOLDER_UP:
-                    if (mCurrentPathUid == null) { // Path @ Album
-                        mCurrentPath = PATH_ROOT;
-                        numberOfItems = NUM_ROOT_ELEMENTS;
-                    } else { // Path @ individual album id
-                        mCurrentPath = PATH_ALBUMS;
-                        mCurrentPathUid = null;
-                        numberOfItems = getNumItems(PATH_ALBUMS,
-                            MediaStore.Audio.Media.ALBUM_ID);
-                    }
-                    break;
-                case FOLDER_DOWN:
-                    if (mCurrentPathUid == null) { // Path @ Album
-                        Cursor cursor = null;
-                        try {
-                            cursor = mContext.getContentResolver().query(
-                                mMediaUri,
-                                new String[] {MediaStore.Audio.Media.ALBUM},
-                                MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                                MediaStore.Audio.Media.ALBUM_ID + "=" + folderUid,
-                                null, null);
-                            if ((cursor == null) || (cursor.getCount() == 0)) {
-                                status = DOES_NOT_EXIST;
-                            } else{
-                                numberOfItems = cursor.getCount();
-                                mCurrentPathUid = String.valueOf(folderUid);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Exception " + e);
-                            changePathRspNative(INTERNAL_ERROR, numberOfItems);
-                        } finally {
-                            if (cursor != null) {
-                                cursor.close();
-                            }
-                        }
-                    } else { // Path @ Individual Album id
-                        Cursor cursor = null;
-                        try {
-                            cursor = mContext.getContentResolver().query(
-                                mMediaUri,
-                                new String[] {MediaStore.Audio.Media.TITLE},
-                                MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + folderUid,
-                                null, null);
-                            // As Individual Album path can not have any folder in it hence return
-                            // the error as applicable, depending on whether uid passed exists.
-                            if (cursor != null)
-                                status = NOT_A_DIRECTORY;
-                            else
-                                status = DOES_NOT_EXIST;
-                        } catch (Exception e) {
-                            Log.e(TAG, "Exception " + e);
-                            changePathRspNative(INTERNAL_ERROR, numberOfItems);
-                        } finally {
-                            if (cursor != null) {
-                                cursor.close();
-                            }
-                        }
-                    }
-                    break;
-                default:
-                    status = INVALID_DIRECTION;
-                    break;
-            }
-        } else if (mCurrentPath.equals(PATH_ARTISTS)) {
-            switch(direction) {
-                case FOLDER_UP:
-                    if (mCurrentPathUid == null) {
-                        mCurrentPath = PATH_ROOT;
-                        numberOfItems = NUM_ROOT_ELEMENTS;
-                    } else {
-                        mCurrentPath = PATH_ARTISTS;
-                        mCurrentPathUid = null;
-                        numberOfItems = getNumItems(PATH_ARTISTS,
-                            MediaStore.Audio.Media.ARTIST_ID);
-                    }
-                    break;
-                case FOLDER_DOWN:
-                    if (mCurrentPathUid == null) {
-                        Cursor cursor = null;
-                        try {
-                            cursor = mContext.getContentResolver().query(
-                                mMediaUri,
-                                new String[] {MediaStore.Audio.Media.ARTIST},
-                                MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                                MediaStore.Audio.Media.ARTIST_ID + "=" + folderUid,
-                                null, null);
-                            if ((cursor == null) || (cursor.getCount() == 0)) {
-                                status = DOES_NOT_EXIST;
-                            } else{
-                                numberOfItems = cursor.getCount();
-                                mCurrentPathUid = String.valueOf(folderUid);
-                                mCurrentPath = PATH_ARTISTS;
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Exception " + e);
-                            changePathRspNative(INTERNAL_ERROR, numberOfItems);
-                        } finally {
-                            if (cursor != null) {
-                                cursor.close();
-                            }
-                        }
-                    } else {
-                        Cursor cursor = null;
-                        try {
-                            cursor = mContext.getContentResolver().query(
-                                mMediaUri,
-                                new String[] {MediaStore.Audio.Media.TITLE},
-                                MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id="
-                                + folderUid, null, null);
-                            if (cursor != null)
-                                status = NOT_A_DIRECTORY;
-                            else
-                                status = DOES_NOT_EXIST;
-                        } catch (Exception e) {
-                            Log.e(TAG, "Exception " + e);
-                            changePathRspNative(INTERNAL_ERROR, numberOfItems);
-                        } finally {
-                            if (cursor != null) {
-                                cursor.close();
-                            }
-                        }
-                    }
-                    break;
-                default:
-                    status = INVALID_DIRECTION;
-                    break;
-            }
-        } else if (mCurrentPath.equals(PATH_PLAYLISTS)) {
-            switch(direction) {
                 case FOLDER_UP:
                     if (mCurrentPathUid == null) {
                         mCurrentPath = PATH_ROOT;
                         numberOfItems = NUM_ROOT_ELEMENTS;
                     } else {
-                        mCurrentPath = PATH_PLAYLISTS;
                         mCurrentPathUid = null;
-                        numberOfItems = getNumPlaylistItems();
+                        numberOfItems = getFolderItemCount(mCurrentPath, null);
                     }
                     break;
                 case FOLDER_DOWN:
-                    if (mCurrentPathUid == null) {
-                        Cursor cursor = null;
-                        try {
-                            String[] cols = new String[] {
-                                MediaStore.Audio.Playlists._ID,
-                                MediaStore.Audio.Playlists.NAME
-                            };
-
-                            StringBuilder where = new StringBuilder();
-                            where.append(MediaStore.Audio.Playlists.NAME + " != ''");
-
-                            cursor = mContext.getContentResolver().query(
-                                MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
-                                cols, MediaStore.Audio.Playlists._ID + "=" + folderUid,
-                                null, null);
-
-                            if ((cursor == null) || (cursor.getCount() == 0)) {
-                                status = DOES_NOT_EXIST;
-                            } else{
-                                numberOfItems = cursor.getCount();
-                                mCurrentPathUid = String.valueOf(folderUid);
-                                mCurrentPath = PATH_PLAYLISTS;
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Exception " + e);
-                            changePathRspNative(INTERNAL_ERROR, numberOfItems);
-                        } finally {
-                            if (cursor != null) {
-                                cursor.close();
-                            }
-                        }
-                    } else {
-                        numberOfItems = 0;
+                    FolderOrder order = getFolderOrder(mCurrentPath, mCurrentPathUid);
+                    if (order == null) {
+                        status = INTERNAL_ERROR;
+                    } else if (!order.contains(folderUid)) {
                         status = DOES_NOT_EXIST;
+                    } else if (mCurrentPath.equals(PATH_TITLES) || mCurrentPathUid != null) {
+                        // Titles and the contents of an album, artist or playlist are tracks
+                        status = NOT_A_DIRECTORY;
+                    } else {
+                        mCurrentPathUid = String.valueOf(folderUid);
+                        numberOfItems = getFolderItemCount(mCurrentPath, mCurrentPathUid);
                     }
                     break;
                 default:
@@ -1863,27 +1778,160 @@ public final class Avrcp {
         changePathRspNative(status, numberOfItems);
     }
 
-    private long getNumPlaylistItems() {
+    /**
+     * Sort order of a browsable folder: item UIDs and, for folder listings, their
+     * display names. Built once per folder while a player is browsed so that any
+     * page is found by index rather than by walking a cursor from the start.
+     */
+    private static class FolderOrder {
+        final long[] uids;
+        final String[] names;
+        final long[] trackNums;
+
+        FolderOrder(long[] uids, String[] names, long[] trackNums) {
+            this.uids = uids;
+            this.names = names;
+            this.trackNums = trackNums;
+        }
+
+        boolean contains(long uid) {
+            for (long item : uids) {
+                if (item == uid) return true;
+            }
+            return false;
+        }
+    }
+
+    /* Browse cache: folder orders and per-item attribute strings, least recently used first.
+     * Only touched from the AVRCP handler thread and dropped when MediaStore changes. */
+    private static final int MAX_CACHED_FOLDERS = 32;
+    private static final int MAX_CACHED_ITEMS = 512;
+
+    private LinkedHashMap<String, FolderOrder> mFolderOrders =
+            new LinkedHashMap<String, FolderOrder>(MAX_CACHED_FOLDERS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FolderOrder> eldest) {
+                    return size() > MAX_CACHED_FOLDERS;
+                }
+            };
+
+    private LinkedHashMap<Long, String[]> mItemAttributes =
+            new LinkedHashMap<Long, String[]>(MAX_CACHED_ITEMS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+                    return size() > MAX_CACHED_ITEMS;
+                }
+            };
+
+    private void sendFolderItemsRsp(int status) {
+        // Errors carry no items, whatever was added before the failure
+        if (status != OPERATION_SUCCESSFUL) mFolderItemsRsp.reset();
+        getFolderItemsRspNative((byte)status, mFolderItemsRsp.getItemCount(),
+                mFolderItemsRsp.getBuffer(), mFolderItemsRsp.getLength());
+    }
+
+    private void clearBrowseCache() {
+        mFolderOrders.clear();
+        mItemAttributes.clear();
+    }
+
+    private long getFolderItemCount(String path, String pathUid) {
+        FolderOrder order = getFolderOrder(path, pathUid);
+        return (order != null) ? order.uids.length : 0;
+    }
+
+    private FolderOrder getFolderOrder(String path, String pathUid) {
+        String key = (pathUid == null) ? path : path + "/" + pathUid;
+        FolderOrder order = mFolderOrders.get(key);
+        if (order == null) {
+            order = queryFolderOrder(path, pathUid);
+            if (order != null) mFolderOrders.put(key, order);
+        }
+        return order;
+    }
+
+    private FolderOrder queryFolderOrder(String path, String pathUid) {
+        Uri uri = mMediaUri;
+        String[] cols;
+        String selection = MediaStore.Audio.Media.IS_MUSIC + "=1";
+        String sortOrder;
+        String idCol = "_id";
+        String groupCol = null;
+        String nameCol = null;
+        String trackCol = null;
+
+        if (path.equals(PATH_TITLES)) {
+            cols = new String[] {"audio._id AS _id"};
+            sortOrder = MediaStore.Audio.Media.DEFAULT_SORT_ORDER;
+        } else if (path.equals(PATH_ALBUMS) && pathUid == null) {
+            groupCol = idCol = MediaStore.Audio.Media.ALBUM_ID;
+            nameCol = MediaStore.Audio.Media.ALBUM;
+            cols = new String[] {groupCol, nameCol};
+            sortOrder = MediaStore.Audio.Albums.DEFAULT_SORT_ORDER;
+        } else if (path.equals(PATH_ALBUMS)) {
+            cols = new String[] {"audio._id AS _id"};
+            selection += " AND " + MediaStore.Audio.Media.ALBUM_ID + "=" + Long.valueOf(pathUid);
+            sortOrder = MediaStore.Audio.Albums.DEFAULT_SORT_ORDER;
+        } else if (path.equals(PATH_ARTISTS) && pathUid == null) {
+            groupCol = idCol = MediaStore.Audio.Media.ARTIST_ID;
+            nameCol = MediaStore.Audio.Media.ARTIST;
+            cols = new String[] {groupCol, nameCol};
+            sortOrder = MediaStore.Audio.Artists.DEFAULT_SORT_ORDER;
+        } else if (path.equals(PATH_ARTISTS)) {
+            cols = new String[] {"audio._id AS _id"};
+            selection += " AND " + MediaStore.Audio.Media.ARTIST_ID + "=" + Long.valueOf(pathUid);
+            sortOrder = MediaStore.Audio.Artists.DEFAULT_SORT_ORDER;
+        } else if (path.equals(PATH_PLAYLISTS) && pathUid == null) {
+            uri = MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI;
+            nameCol = MediaStore.Audio.Playlists.NAME;
+            cols = new String[] {MediaStore.Audio.Playlists._ID, nameCol};
+            selection = MediaStore.Audio.Playlists.NAME + " != ''";
+            sortOrder = MediaStore.Audio.Playlists.DEFAULT_SORT_ORDER;
+        } else if (path.equals(PATH_PLAYLISTS)) {
+            uri = MediaStore.Audio.Playlists.Members.getContentUri("external",
+                                                                Long.valueOf(pathUid));
+            idCol = MediaStore.Audio.Playlists.Members.AUDIO_ID;
+            trackCol = MediaStore.Audio.Playlists.Members._ID;
+            cols = new String[] {idCol, trackCol};
+            selection = MediaStore.Audio.Media.TITLE + " != ''";
+            sortOrder = MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER;
+        } else {
+            return null;
+        }
+
         Cursor cursor = null;
-        String[] cols = new String[] {
-                MediaStore.Audio.Playlists._ID,
-                MediaStore.Audio.Playlists.NAME
-        };
         try {
-            cursor = mContext.getContentResolver().query(
-                MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
-                cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
-                MediaStore.Audio.Playlists.NAME);
-
-            if ((cursor == null) || (cursor.getCount() == 0)) {
-                return 0;
-            } else {
-                long count = cursor.getCount();
-                return count;
-            }
+            cursor = mContext.getContentResolver().query(uri, cols, selection, null, sortOrder);
+            if (cursor == null) return null;
+
+            int count = cursor.getCount();
+            long[] uids = new long[count];
+            String[] names = (nameCol != null) ? new String[count] : null;
+            long[] trackNums = (trackCol != null) ? new long[count] : null;
+            int idColumn = cursor.getColumnIndexOrThrow(idCol);
+            int nameColumn = (nameCol != null) ? cursor.getColumnIndexOrThrow(nameCol) : -1;
+            int trackColumn = (trackCol != null) ? cursor.getColumnIndexOrThrow(trackCol) : -1;
+            int items = 0;
+            long prevElem = -1;
+            while (cursor.moveToNext()) {
+                long curElem = cursor.getLong(idColumn);
+                // Album and artist listings collapse consecutive rows of the same folder
+                if (groupCol != null && curElem == prevElem) continue;
+                prevElem = curElem;
+                uids[items] = curElem;
+                if (names != null) names[items] = cursor.getString(nameColumn);
+                if (trackNums != null) trackNums[items] = cursor.getLong(trackColumn);
+                items++;
+            }
+            if (items < count) {
+                uids = Arrays.copyOf(uids, items);
+                if (names != null) names = Arrays.copyOf(names, items);
+            }
+            if (DEBUG) Log.v(TAG, "queryFolderOrder: " + path + "/" + pathUid + " = " + items);
+            return new FolderOrder(uids, names, trackNums);
         } catch (Exception e) {
             Log.e(TAG, "Exception " + e);
-            return 0;
+            return null;
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -1891,48 +1939,105 @@ public final class Avrcp {
         }
     }
 
-    private long getNumItems(String path, String element) {
-        if (path == null || element == null)
-            return 0;
-        Cursor cursor = null;
-        try {
-            cursor = mContext.getContentResolver().query(
-                mMediaUri,
-                new String[] {element},
-                MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                element);
-            if ((cursor == null) || (cursor.getCount() == 0)) {
-                return 0;
-            } else if (path.equals(PATH_TITLES)) {
-                long count = cursor.getCount();
-                return count;
-            } else if (path.equals(PATH_ALBUMS) || path.equals(PATH_ARTISTS)){
-                long elemCount = 0;
-                cursor.moveToFirst();
-                long count = cursor.getCount();
-                long prevElem = 0;
-                long curElem = 0;
-                while (count > 0) {
-                    curElem = cursor.getLong(cursor.getColumnIndexOrThrow(element));
-                    Log.i(TAG, "curElem "+ curElem + "preElem " + prevElem);
-                    if (curElem != prevElem) {
-                        elemCount++;
+    private static int getFolderType(String path) {
+        if (path.equals(PATH_ALBUMS)) return FOLDER_TYPE_ALBUMS;
+        if (path.equals(PATH_ARTISTS)) return FOLDER_TYPE_ARTISTS;
+        if (path.equals(PATH_PLAYLISTS)) return FOLDER_TYPE_PLAYLISTS;
+        return FOLDER_TYPE_TITLES;
+    }
+
+    /**
+     * Adds count media items of a folder starting at offset to the response,
+     * using a single query for the page. Items that no longer exist are
+     * skipped. Returns the number of items added.
+     */
+    private int fillMediaItems(FolderOrder order, String selection, int offset, int count,
+            int numAttr, int[] attrs) {
+        // Only items missing from the browse cache are read, with one query for all of them.
+        // The cached rows are taken out first so that caching the missing ones can't evict them.
+        String[][] page = new String[count][];
+        StringBuilder ids = null;
+        for (int item = offset; item < offset + count; item++) {
+            page[item - offset] = mItemAttributes.get(order.uids[item]);
+            if (page[item - offset] != null) continue;
+            if (ids == null) {
+                ids = new StringBuilder();
+            } else {
+                ids.append(',');
+            }
+            ids.append(order.uids[item]);
+        }
+        if (ids != null) {
+            String where = "_id IN (" + ids + ")";
+            if (selection != null) where = selection + " AND " + where;
+            Cursor cursor = null;
+            try {
+                cursor = mContext.getContentResolver().query(
+                     mMediaUri, mCursorCols, where, null, null);
+                if (cursor != null) {
+                    HashMap<Long, String[]> read = new HashMap<Long, String[]>();
+                    int idColumn = cursor.getColumnIndexOrThrow("_id");
+                    while (cursor.moveToNext()) {
+                        String[] values = readItemAttributes(cursor);
+                        read.put(cursor.getLong(idColumn), values);
+                        mItemAttributes.put(cursor.getLong(idColumn), values);
+                    }
+                    for (int item = offset; item < offset + count; item++) {
+                        if (page[item - offset] == null) {
+                            page[item - offset] = read.get(order.uids[item]);
+                        }
                     }
-                    prevElem = curElem;
-                    cursor.moveToNext();
-                    count--;
                 }
-                Log.i(TAG, "element Count is "+ elemCount);
-                return elemCount;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Exception " + e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+
+        int index = 0;
+        for (int item = offset; item < offset + count; item++) {
+            String[] values = page[item - offset];
+            if (values == null) {
+                Log.i(TAG, "Item not found: " + order.uids[item]);
+                continue;
+            }
+            mFolderItemsRsp.addMediaItem(order.uids[item], MEDIA_TYPE_AUDIO,
+                                            values[MEDIA_ATTR_TITLE]);
+            for (int attIndex = 0; attIndex < numAttr; attIndex++) {
+                int attr = attrs[attIndex];
+                if ((attr <= MEDIA_ATTR_MAX) && (attr >= MEDIA_ATTR_MIN)) {
+                    String value;
+                    if (attr == MEDIA_ATTR_NUM_TRACKS) {
+                        value = String.valueOf(order.uids.length);
+                    } else if (attr == MEDIA_ATTR_TRACK_NUM && order.trackNums != null) {
+                        value = String.valueOf(order.trackNums[item]);
+                    } else {
+                        value = values[attr];
+                    }
+                    // Attributes without a value are left out of the item
+                    if (!TextUtils.isEmpty(value)) {
+                        mFolderItemsRsp.addAttribute(attr, value);
+                    }
+                }
+            }
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Reads the attribute strings of the item at the cursor position, indexed by
+     * attribute id. The number of tracks depends on the folder and is not stored.
+     */
+    private String[] readItemAttributes(Cursor cursor) {
+        String[] values = new String[MEDIA_ATTR_MAX + 1];
+        for (int attr = MEDIA_ATTR_MIN; attr <= MEDIA_ATTR_MAX; attr++) {
+            if (attr != MEDIA_ATTR_NUM_TRACKS) {
+                values[attr] = getAttributeStringFromCursor(cursor, attr);
             }
         }
-        return 0;
+        return values;
     }
 
     private void playItem(byte scope, long uid) {
@@ -1964,125 +2069,21 @@ public final class Avrcp {
         if (scope == SCOPE_VIRTUAL_FILE_SYS) {
             if (mCurrentPath.equals(PATH_ROOT)) {
                 playItemRspNative(UID_A_DIRECTORY);
-            } else if (mCurrentPath.equals(PATH_TITLES)) {
-                Cursor cursor = null;
-                try {
-                    cursor = mContext.getContentResolver().query(
-                        mMediaUri,
-                        new String[] {MediaStore.Audio.Media.TITLE},
-                        MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid,
-                        null, null);
-                    if ((cursor == null) || (cursor.getCount() == 0)) {
-                        Log.e(TAG, "No such track");
-                        playItemRspNative(DOES_NOT_EXIST);
-                    } else {
-                        Log.i(TAG, "Play uid:" + uid);
-                        mRemoteController.setRemoteControlClientPlayItem(uid, scope);
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Exception " + e);
-                    playItemRspNative(INTERNAL_ERROR);
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_ALBUMS)) {
-                if (mCurrentPathUid == null) {
+            } else if (mCurrentPath.equals(PATH_TITLES) || mCurrentPath.equals(PATH_ALBUMS) ||
+                    mCurrentPath.equals(PATH_ARTISTS) || mCurrentPath.equals(PATH_PLAYLISTS)) {
+                if (!mCurrentPath.equals(PATH_TITLES) && mCurrentPathUid == null) {
                     playItemRspNative(UID_A_DIRECTORY);
-                } else {
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            new String[] {MediaStore.Audio.Media.TITLE},
-                            MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid + " AND " +
-                            MediaStore.Audio.Media.ALBUM_ID + "=" + mCurrentPathUid,
-                            null, null);
-                        if ((cursor == null) || (cursor.getCount() == 0)) {
-                            Log.i(TAG, "No such track");
-                            playItemRspNative(DOES_NOT_EXIST);
-                        } else {
-                            Log.i(TAG, "Play uid:" + uid);
-                            mRemoteController.setRemoteControlClientPlayItem(uid, scope);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Exception " + e);
-                        playItemRspNative(INTERNAL_ERROR);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_ARTISTS)) {
-                if (mCurrentPathUid == null) {
-                    playItemRspNative(UID_A_DIRECTORY);
-                } else {
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            new String[] {MediaStore.Audio.Media.TITLE},
-                            MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid + " AND " +
-                            MediaStore.Audio.Media.ARTIST_ID + "=" + mCurrentPathUid,
-                            null, null);
-                        if ((cursor == null) || (cursor.getCount() == 0)) {
-                            Log.i(TAG, "No such track");
-                            playItemRspNative(DOES_NOT_EXIST);
-                        } else {
-                            Log.i(TAG, "Play uid:" + uid);
-                            mRemoteController.setRemoteControlClientPlayItem(uid, scope);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Exception " + e);
-                        playItemRspNative(INTERNAL_ERROR);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
+                    return;
                 }
-            } else if (mCurrentPath.equals(PATH_PLAYLISTS)) {
-                if (mCurrentPathUid == null) {
-                    playItemRspNative(UID_A_DIRECTORY);
+                FolderOrder order = getFolderOrder(mCurrentPath, mCurrentPathUid);
+                if (order == null) {
+                    playItemRspNative(INTERNAL_ERROR);
+                } else if (!order.contains(uid)) {
+                    Log.i(TAG, "No such track");
+                    playItemRspNative(DOES_NOT_EXIST);
                 } else {
-                    Cursor cursor = null;
-                    try {
-                        String[] playlistMemberCols = new String[] {
-                                MediaStore.Audio.Playlists.Members._ID,
-                                MediaStore.Audio.Media.TITLE,
-                                MediaStore.Audio.Media.DATA,
-                                MediaStore.Audio.Media.ALBUM,
-                                MediaStore.Audio.Media.ARTIST,
-                                MediaStore.Audio.Media.DURATION,
-                                MediaStore.Audio.Playlists.Members.PLAY_ORDER,
-                                MediaStore.Audio.Playlists.Members.AUDIO_ID,
-                                MediaStore.Audio.Media.IS_MUSIC
-                        };
-                        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external",
-                                                                Long.parseLong(mCurrentPathUid));
-                        StringBuilder where = new StringBuilder();
-                        where.append(MediaStore.Audio.Playlists.Members.AUDIO_ID + "=" + uid);
-                        cursor = mContext.getContentResolver().query(uri, playlistMemberCols,
-                                    where.toString(), null, MediaStore.Audio.Playlists.Members.
-                                                                            DEFAULT_SORT_ORDER);
-
-                        if ((cursor == null) || (cursor.getCount() == 0)) {
-                            Log.i(TAG, "No such track");
-                            playItemRspNative(DOES_NOT_EXIST);
-                        } else {
-                            Log.i(TAG, "Play uid:" + uid);
-                            mRemoteController.setRemoteControlClientPlayItem(uid, scope);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Exception " + e);
-                        playItemRspNative(INTERNAL_ERROR);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
+                    Log.i(TAG, "Play uid:" + uid);
+                    mRemoteController.setRemoteControlClientPlayItem(uid, scope);
                 }
             } else {
                 playItemRspNative(DOES_NOT_EXIST);
@@ -2294,19 +2295,10 @@ public final class Avrcp {
     private void processGetFolderItemsInternal(byte scope, long start, long end, long size,
                                                                     byte numAttr, int[] attrs) {
 
-        int status = OPERATION_SUCCESSFUL;
-        long numItems = 0;
         long reqItems = (end - start) + 1;
-        int[] itemType = new int[MAX_BROWSE_ITEM_TO_SEND];
-        long[] uid = new long[MAX_BROWSE_ITEM_TO_SEND];
-        int[] type = new int[MAX_BROWSE_ITEM_TO_SEND];
-        byte[] playable = new byte[MAX_BROWSE_ITEM_TO_SEND];
-        String[] displayName = new String[MAX_BROWSE_ITEM_TO_SEND];
-        byte[] numAtt = new byte[MAX_BROWSE_ITEM_TO_SEND];
-        String[] attValues = new String[MAX_BROWSE_ITEM_TO_SEND * 7];
-        int[] attIds = new int[MAX_BROWSE_ITEM_TO_SEND * 7];
 
         if (DEBUG) Log.v(TAG, "processGetFolderItemsInternal");
+        mFolderItemsRsp.reset();
 
         if (DEBUG) Log.v(TAG, "requested attribute count" + numAttr);
         for (int count = 0; count < numAttr; count++) {
@@ -2314,24 +2306,16 @@ public final class Avrcp {
         }
 
         if (scope == SCOPE_VIRTUAL_FILE_SYS) {
-            // Item specific attribute's entry starts from index*7
-            for (int count = 0; count < (MAX_BROWSE_ITEM_TO_SEND * 7); count++) {
-                attValues[count] = "";
-                attIds[count] = 0;
-            }
-
             if (DEBUG) Log.v(TAG, "mCurrentPath: " + mCurrentPath);
             if (DEBUG) Log.v(TAG, "mCurrentPathUID: " + mCurrentPathUid);
             if (!isCurrentPathValid()) {
-                getFolderItemsRspNative((byte)DOES_NOT_EXIST, numItems, itemType, uid, type,
-                                            playable, displayName, numAtt, attValues, attIds);
+                sendFolderItemsRsp(DOES_NOT_EXIST);
                 Log.e(TAG, "Current path not set");
                 return;
             }
 
             if ((start < 0) || (end < 0) || (start > end)) {
-                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
+                sendFolderItemsRsp(RANGE_OUT_OF_BOUNDS);
                 Log.e(TAG, "Wrong start/end index");
                 return;
             }
@@ -2340,8 +2324,7 @@ public final class Avrcp {
                 long availableItems = NUM_ROOT_ELEMENTS;
                 if (start >= availableItems) {
                     Log.i(TAG, "startIteam exceeds the available item index");
-                    getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType, uid,
-                                        type, playable, displayName, numAtt, attValues, attIds);
+                    sendFolderItemsRsp(RANGE_OUT_OF_BOUNDS);
                     return;
                 }
                 if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
@@ -2353,623 +2336,73 @@ public final class Avrcp {
                     reqItems = availableItems;
                 if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
 
-                numItems = reqItems;
-
                 for (int count = 0; count < reqItems; count ++) {
                     long index = start + count;
                     switch ((int)index) {
                         case ALBUMS_ITEM_INDEX:
-                            itemType[count] = TYPE_FOLDER_ITEM;
-                            uid[count] = UID_ALBUM;
-                            type[count] = FOLDER_TYPE_ALBUMS;
-                            playable[count] = 0;
-                            displayName[count] = PATH_ALBUMS;
-                            numAtt[count] = 0;
+                            mFolderItemsRsp.addFolderItem(UID_ALBUM, FOLDER_TYPE_ALBUMS,
+                                                            false, PATH_ALBUMS);
                             break;
                         case ARTISTS_ITEM_INDEX:
-                            itemType[count] = TYPE_FOLDER_ITEM;
-                            uid[count] = UID_ARTIST;
-                            type[count] = FOLDER_TYPE_ARTISTS;
-                            playable[count] = 0;
-                            displayName[count] = PATH_ARTISTS;
-                            numAtt[count] = 0;
+                            mFolderItemsRsp.addFolderItem(UID_ARTIST, FOLDER_TYPE_ARTISTS,
+                                                            false, PATH_ARTISTS);
                             break;
                         case PLAYLISTS_ITEM_INDEX:
-                            itemType[count] = TYPE_FOLDER_ITEM;
-                            uid[count] = UID_PLAYLIST;
-                            type[count] = FOLDER_TYPE_PLAYLISTS;
-                            playable[count] = 0;
-                            displayName[count] = PATH_PLAYLISTS;
-                            numAtt[count] = 0;
+                            mFolderItemsRsp.addFolderItem(UID_PLAYLIST, FOLDER_TYPE_PLAYLISTS,
+                                                            false, PATH_PLAYLISTS);
                             break;
                         case TITLES_ITEM_INDEX:
-                            itemType[count] = TYPE_FOLDER_ITEM;
-                            uid[count] = UID_TITLES;
-                            type[count] = FOLDER_TYPE_TITLES;
-                            playable[count] = 0;
-                            displayName[count] = PATH_TITLES;
-                            numAtt[count] = 0;
+                            mFolderItemsRsp.addFolderItem(UID_TITLES, FOLDER_TYPE_TITLES,
+                                                            false, PATH_TITLES);
                             break;
                         default:
                             Log.i(TAG, "wrong index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                            itemType, uid, type, playable, displayName, numAtt, attValues,
-                                                                                    attIds);
+                            sendFolderItemsRsp(RANGE_OUT_OF_BOUNDS);
+                            return;
                     }
                 }
-
-                for (int count = 0; count < numItems; count++) {
-                    Log.v(TAG, itemType[count] + "," + uid[count] + "," + type[count]);
+                sendFolderItemsRsp(OPERATION_SUCCESSFUL);
+            } else if (mCurrentPath.equals(PATH_TITLES) || mCurrentPath.equals(PATH_ALBUMS) ||
+                    mCurrentPath.equals(PATH_ARTISTS) || mCurrentPath.equals(PATH_PLAYLISTS)) {
+                FolderOrder order = getFolderOrder(mCurrentPath, mCurrentPathUid);
+                if (order == null) {
+                    Log.i(TAG, "Error: could not fetch the elements");
+                    sendFolderItemsRsp(INTERNAL_ERROR);
+                    return;
+                }
+                long availableItems = order.uids.length;
+                if (start >= availableItems) {
+                    Log.i(TAG, "startIteam exceeds the available item index");
+                    sendFolderItemsRsp(RANGE_OUT_OF_BOUNDS);
+                    return;
                 }
-                getFolderItemsRspNative((byte)status, numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds);
-            } else if (mCurrentPath.equals(PATH_TITLES)) {
-                long availableItems = 0;
-                Cursor cursor = null;
+                if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
+                if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
+                availableItems = availableItems - start;
+                if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
+                    availableItems = MAX_BROWSE_ITEM_TO_SEND;
+                if (reqItems > availableItems)
+                    reqItems = availableItems;
+                if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
+
                 try {
-                    cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                            MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
-                    if (cursor != null) {
-                        availableItems = cursor.getCount();
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                            itemType, uid, type, playable, displayName, numAtt, attValues,
-                                                                                    attIds);
-                            return;
-                        }
-                        cursor.moveToFirst();
-                        for (int i = 0; i < start; i++) {
-                            cursor.moveToNext();
+                    if (order.names != null) {
+                        // Folder listing, served entirely from the cached order
+                        int folderType = getFolderType(mCurrentPath);
+                        for (int index = 0; index < reqItems; index++) {
+                            mFolderItemsRsp.addFolderItem(order.uids[(int)start + index],
+                                    folderType, false, order.names[(int)start + index]);
                         }
                     } else {
-                        Log.i(TAG, "Error: could not fetch the elements");
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                        return;
-                    }
-                    if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                    if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                    availableItems = availableItems - start;
-                    if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                        availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                    if (reqItems > availableItems)
-                        reqItems = availableItems;
-                    if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                    int attIndex;
-                    int index;
-                    for (index = 0; index < reqItems; index++) {
-                        itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                        uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                        type[index] = MEDIA_TYPE_AUDIO;
-                        playable[index] = 0;
-                        displayName[index] =
-                            cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                    Audio.Media.TITLE));
-                        int validAttrib = 0;
-                        for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                            if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                        (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                attValues[(7 * index) + attIndex] =
-                                    getAttributeStringFromCursor(cursor, attrs[attIndex]);
-                                attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                validAttrib ++;
-                            }
-                        }
-                        numAtt[index] = (byte)validAttrib;
-                        cursor.moveToNext();
+                        fillMediaItems(order, null, (int)start, (int)reqItems, numAttr, attrs);
                     }
-                    numItems = index;
-                    getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType, uid,
-                                        type, playable, displayName, numAtt, attValues, attIds);
+                    sendFolderItemsRsp(OPERATION_SUCCESSFUL);
                 } catch(Exception e) {
                     Log.i(TAG, "Exception e" + e);
-                    getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                            playable, displayName, numAtt, attValues, attIds);
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_ALBUMS)) {
-                if (mCurrentPathUid == null) {
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        availableItems = getNumItems(PATH_ALBUMS, MediaStore.Audio.Media.ALBUM_ID);
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = (int)availableItems;
-                        Log.i(TAG, "revised reqItems: " + reqItems);
-
-                        cursor = mContext.getContentResolver().query(
-                                            mMediaUri, mCursorCols,
-                                            MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                                            MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
-
-                        int count = 0;
-                        if (cursor != null) {
-                            count = cursor.getCount();
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-                        if (count < reqItems) {
-                            reqItems = count;
-                        }
-                        cursor.moveToFirst();
-                        int index = 0;
-                        long prevElem = -1;
-                        long curElem = -1;
-                        while ((reqItems > 0) && (count > 0)) {
-                            curElem = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                    MediaStore.Audio.Media.ALBUM_ID));
-                            if (curElem != prevElem) {
-                                if (start > 0) {
-                                    --start;
-                                } else {
-                                    itemType[index] = TYPE_FOLDER_ITEM;
-                                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                        MediaStore.Audio.Media.ALBUM_ID));
-                                    type[index] = FOLDER_TYPE_ALBUMS;
-                                    playable[index] = 0;
-                                    displayName[index] = cursor.getString(
-                                                cursor.getColumnIndexOrThrow(
-                                                MediaStore.Audio.Media.ALBUM));
-                                    numAtt[index] = 0;
-                                    index++;
-                                    reqItems--;
-                                }
-                            }
-                            prevElem = curElem;
-                            cursor.moveToNext();
-                            count--;
-                        }
-                        if (index > 0) {
-                            numItems = index;
-                            getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems,
-                                itemType, uid, type, playable, displayName, numAtt, attValues,
-                                attIds);
-                        } else {
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                itemType, uid, type, playable, displayName, numAtt, attValues,
-                                attIds);
-                        }
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                } else {
-                    long folderUid = Long.valueOf(mCurrentPathUid);
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                            MediaStore.Audio.Media.ALBUM_ID + "=" + folderUid, null,
-                                            MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
-
-                        if (cursor != null) {
-                            availableItems = cursor.getCount();
-                            if (start >= availableItems) {
-                                Log.i(TAG, "startIteam exceeds the available item index");
-                                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                    itemType, uid, type, playable, displayName, numAtt,
-                                    attValues, attIds);
-                                return;
-                            }
-                            cursor.moveToFirst();
-                            for (int i = 0; i < start; i++) {
-                                cursor.moveToNext();
-                            }
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems,
-                                itemType, uid, type, playable, displayName, numAtt,
-                                attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        int attIndex;
-                        int index;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                            type[index] = MEDIA_TYPE_AUDIO;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                        Audio.Media.TITLE));                            
-                            int validAttrib = 0;
-                            for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                            (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                    attValues[(7 * index) + attIndex] =
-                                        getAttributeStringFromCursor(cursor, attrs[attIndex]);
-                                    attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                    validAttrib ++;
-                                }
-                            }
-                            numAtt[index] = (byte)validAttrib;
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-                        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType, uid,
-                                            type, playable, displayName, numAtt, attValues, attIds);
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                        cursor.close();
-                        }
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_ARTISTS)) {
-                if (mCurrentPathUid == null) {
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        availableItems = getNumItems(PATH_ARTISTS,
-                                    MediaStore.Audio.Media.ARTIST_ID);
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = (int)availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri, mCursorCols,
-                            MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                            MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
-
-                        int count = 0;
-                        if (cursor != null) {
-                            count = cursor.getCount();
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-                        if (count < reqItems) {
-                            reqItems = count;
-                        }
-                        cursor.moveToFirst();
-                        int index = 0;
-                        long prevElem = -1;
-                        long curElem = -1;
-                        while ((reqItems > 0) && (count > 0)) {
-                            curElem = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                    MediaStore.Audio.Media.ARTIST_ID));
-                            if (curElem != prevElem) {
-                                if (start > 0) {
-                                    --start;
-                                } else {
-                                    itemType[index] = TYPE_FOLDER_ITEM;
-                                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                        MediaStore.Audio.Media.ARTIST_ID));
-                                    type[index] = FOLDER_TYPE_ARTISTS;
-                                    playable[index] = 0;
-                                    displayName[index] = cursor.getString(
-                                        cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST));
-                                    numAtt[index] = 0;
-                                    index++;
-                                    reqItems--;
-                                }
-                            }
-                            prevElem = curElem;
-                            cursor.moveToNext();
-                            count--;
-                        }
-                        if (index > 0) {
-                            numItems = index;
-                            getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                        } else {
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                        }
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                } else {
-                    long folderUid = Long.valueOf(mCurrentPathUid);
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                            MediaStore.Audio.Media.ARTIST_ID + "=" + folderUid, null,
-                            MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
-
-                        if (cursor != null) {
-                            availableItems = cursor.getCount();
-                            if (start >= availableItems) {
-                                Log.i(TAG, "startIteam exceeds the available item index");
-                                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                itemType, uid, type, playable, displayName, numAtt, attValues,
-                                                                                        attIds);
-                                return;
-                            }
-                            cursor.moveToFirst();
-                            for (int i = 0; i < start; i++) {
-                                cursor.moveToNext();
-                            }
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        int attIndex;
-                        int index;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                            type[index] = MEDIA_TYPE_AUDIO;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                        Audio.Media.TITLE));
-                            int validAttrib = 0;
-                            for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                            (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                    attValues[(7 * index) + attIndex] =
-                                        getAttributeStringFromCursor(cursor, attrs[attIndex]);
-                                    attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                    validAttrib ++;
-                                }
-                            }
-                            numAtt[index] = (byte)validAttrib;
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-                        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType,
-                            uid, type, playable, displayName, numAtt, attValues, attIds);
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid,
-                                        type, playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_PLAYLISTS)) {
-                if (mCurrentPathUid == null) {
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        availableItems = getNumPlaylistItems();
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = (int)availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        String[] cols = new String[] {
-                                MediaStore.Audio.Playlists._ID,
-                                MediaStore.Audio.Playlists.NAME
-                        };
-
-                        cursor = mContext.getContentResolver().query(
-                            MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
-                            cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
-                            MediaStore.Audio.Playlists.DEFAULT_SORT_ORDER);
-
-                        int count = 0;
-                        if (cursor != null) {
-                            count = cursor.getCount();
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-                        if (count < reqItems) {
-                            reqItems = count;
-                        }
-                        cursor.moveToFirst();
-                        int index = 0;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_FOLDER_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                        MediaStore.Audio.Playlists._ID));
-                            type[index] = FOLDER_TYPE_PLAYLISTS;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(
-                                                MediaStore.Audio.Playlists.NAME));
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-
-                        if (index > 0) {
-                            numItems = index;
-                            getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems,
-                                itemType, uid, type, playable, displayName, numAtt,
-                                attValues, attIds);
-                        } else {
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                itemType, uid, type, playable, displayName, numAtt,
-                                attValues, attIds);
-                        }
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                            uid, type, playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                } else {
-                    long folderUid = Long.valueOf(mCurrentPathUid);
-                    long availableItems = 0;
-                    Cursor cursor = null;
-
-                    String[] playlistMemberCols = new String[] {
-                            MediaStore.Audio.Playlists.Members._ID,
-                            MediaStore.Audio.Media.TITLE,
-                            MediaStore.Audio.Media.DATA,
-                            MediaStore.Audio.Media.ALBUM,
-                            MediaStore.Audio.Media.ARTIST,
-                            MediaStore.Audio.Media.DURATION,
-                            MediaStore.Audio.Playlists.Members.PLAY_ORDER,
-                            MediaStore.Audio.Playlists.Members.AUDIO_ID,
-                            MediaStore.Audio.Media.IS_MUSIC
-                    };
-
-                    try {
-                        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external",
-                                                                                    folderUid);
-                        StringBuilder where = new StringBuilder();
-                        where.append(MediaStore.Audio.Media.TITLE + " != ''");
-                        cursor = mContext.getContentResolver().query(uri, playlistMemberCols,
-                                        where.toString(), null,
-                                        MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
-
-                        if (cursor != null) {
-                            availableItems = cursor.getCount();
-                            if (start >= availableItems) {
-                                Log.i(TAG, "startIteam exceeds the available item index");
-                                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                    itemType, uid, type, playable, displayName, numAtt,
-                                    attValues, attIds);
-                                return;
-                            }
-                            cursor.moveToFirst();
-                            for (int i = 0; i < start; i++) {
-                                cursor.moveToNext();
-                            }
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        int attIndex;
-                        int index;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                Audio.Playlists.Members.AUDIO_ID));
-                            type[index] = MEDIA_TYPE_AUDIO;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                        Audio.Media.TITLE));
-                            int validAttrib = 0;
-                            for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                            (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                    attValues[(7 * index) + attIndex] =
-                                        getAttributeStringFromCursor(cursor, attrs[attIndex]);
-                                    attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                    validAttrib ++;
-                                }
-                            }
-                            numAtt[index] = (byte)validAttrib;
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-                        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType, uid,
-                                            type, playable, displayName, numAtt, attValues, attIds);
-                    } catch(Exception e) {
-                        Log.e(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
+                    sendFolderItemsRsp(INTERNAL_ERROR);
                 }
             } else {
-                getFolderItemsRspNative((byte)DOES_NOT_EXIST, numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds);
+                sendFolderItemsRsp(DOES_NOT_EXIST);
                 Log.e(TAG, "GetFolderItems fail as player is not browsable");
             }
         } else if (scope == SCOPE_NOW_PLAYING) {
@@ -2979,8 +2412,7 @@ public final class Avrcp {
                     final MediaPlayerInfo di = rccIterator.next();
                     if (di.GetPlayerFocus()) {
                         if (!di.IsRemoteAddressable() || mCurrentPath.equals(PATH_INVALID)) {
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
+                            sendFolderItemsRsp(INTERNAL_ERROR);
                             Log.e(TAG, "GetFolderItems fails: addressed player is not browsable");
                             return;
                         }
@@ -3071,21 +2503,25 @@ public final class Avrcp {
     }
 
     private void processRegisterNotification(int eventId, int param) {
+        // Registrations always come from the controller the native interface is bound to
+        DeviceSession session = getActiveSession();
         switch (eventId) {
             case EVT_PLAY_STATUS_CHANGED:
-                mPlayStatusChangedNT = NOTIFICATION_TYPE_INTERIM;
-                registerNotificationRspPlayStatusNative(mPlayStatusChangedNT,
+                session.playStatusChangedNT = NOTIFICATION_TYPE_INTERIM;
+                registerNotificationRspPlayStatusNative(session.playStatusChangedNT,
                                        convertPlayStateToPlayStatus(mCurrentPlayState));
                 break;
 
             case EVT_TRACK_CHANGED:
-                mTrackChangedNT = NOTIFICATION_TYPE_INTERIM;
-                sendTrackChangedRsp();
+                if(DEBUG) Log.v(TAG,"mCurrentPlayState" + mCurrentPlayState );
+                session.trackChangedNT = NOTIFICATION_TYPE_INTERIM;
+                registerNotificationRspTrackChangeNative(session.trackChangedNT,
+                                                         getTrackId(mMetadata.tracknum));
                 break;
 
             case EVT_PLAY_POS_CHANGED:
                 long songPosition = getPlayPosition();
-                mPlayPosChangedNT = NOTIFICATION_TYPE_INTERIM;
+                session.playPosChangedNT = NOTIFICATION_TYPE_INTERIM;
                 mPlaybackIntervalMs = (long)param * 1000L;
                 if (mCurrentPosMs != RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN) {
                     mNextPosMs = songPosition + mPlaybackIntervalMs;
@@ -3095,31 +2531,34 @@ public final class Avrcp {
                         mHandler.sendMessageDelayed(msg, mPlaybackIntervalMs);
                     }
                 }
-                registerNotificationRspPlayPosNative(mPlayPosChangedNT, (int)songPosition);
+                registerNotificationRspPlayPosNative(session.playPosChangedNT, (int)songPosition);
                 break;
 
 
             case EVT_APP_SETTINGS_CHANGED:
-                mPlayerStatusChangeNT = NOTIFICATION_TYPE_INTERIM;
-                sendPlayerAppChangedRsp(mPlayerStatusChangeNT);
+                session.playerStatusChangeNT = NOTIFICATION_TYPE_INTERIM;
+                sendPlayerAppChangedRsp(session.playerStatusChangeNT, getPlayerAppSettings());
                 break;
 
             case EVT_ADDRESSED_PLAYER_CHANGED:
                 if (DEBUG) Log.v(TAG, "Process EVT_ADDRESSED_PLAYER_CHANGED Interim: Player ID: " + mAddressedPlayerId);
-                mAddressedPlayerChangedNT = NOTIFICATION_TYPE_INTERIM;
-                registerNotificationRspAddressedPlayerChangedNative(mAddressedPlayerChangedNT, mAddressedPlayerId);
+                session.addressedPlayerChangedNT = NOTIFICATION_TYPE_INTERIM;
+                registerNotificationRspAddressedPlayerChangedNative(session.addressedPlayerChangedNT,
+                                                                    mAddressedPlayerId);
                 break;
 
             case EVT_AVAILABLE_PLAYERS_CHANGED:
                 if (DEBUG) Log.v(TAG, "Process EVT_AVAILABLE_PLAYERS_CHANGED Interim");
-                mAvailablePlayersChangedNT = NOTIFICATION_TYPE_INTERIM;
-                registerNotificationRspAvailablePlayersChangedNative(mAvailablePlayersChangedNT);
+                session.availablePlayersChangedNT = NOTIFICATION_TYPE_INTERIM;
+                registerNotificationRspAvailablePlayersChangedNative(
+                        session.availablePlayersChangedNT);
                 break;
 
             case EVT_NOW_PLAYING_CONTENT_CHANGED:
                 if (DEBUG) Log.v(TAG, "Process EVT_NOW_PLAYING_CONTENT_CHANGED Interim");
-                mNowPlayingContentChangedNT = NOTIFICATION_TYPE_INTERIM;
-                registerNotificationRspNowPlayingContentChangedNative(mNowPlayingContentChangedNT);
+                session.nowPlayingContentChangedNT = NOTIFICATION_TYPE_INTERIM;
+                registerNotificationRspNowPlayingContentChangedNative(
+                        session.nowPlayingContentChangedNT);
                 break;
 
             default:
@@ -3152,30 +2591,60 @@ public final class Avrcp {
         return (int) Math.min(MAX_MULTIPLIER_VALUE, multi);
     }
 
-    private void sendTrackChangedRsp() {
+    private static byte[] getTrackId(long trackNumber) {
         byte[] track = new byte[TRACK_ID_SIZE];
-        long TrackNumberRsp = -1L;
-
-        if(DEBUG) Log.v(TAG,"mCurrentPlayState" + mCurrentPlayState );
-
-            TrackNumberRsp = mMetadata.tracknum ;
-
         /* track is stored in big endian format */
         for (int i = 0; i < TRACK_ID_SIZE; ++i) {
-            track[i] = (byte) (TrackNumberRsp >> (56 - 8 * i));
+            track[i] = (byte) (trackNumber >> (56 - 8 * i));
         }
-        registerNotificationRspTrackChangeNative(mTrackChangedNT, track);
+        return track;
     }
 
-    private void sendPlayerAppChangedRsp(int rsptype) {
+    /**
+     * Sends a play position CHANGED response to every controller registered for it.
+     * Returns true if any controller was notified.
+     */
+    private boolean sendPlayPosChangedRsp(long playPosition) {
+        boolean notified = false;
+        for (DeviceSession session : mSessions.values()) {
+            if (session.playPosChangedNT == NOTIFICATION_TYPE_INTERIM) {
+                session.playPosChangedNT = NOTIFICATION_TYPE_CHANGED;
+                registerNotificationRspPlayPosNative(session.playPosChangedNT, (int)playPosition);
+                notified = true;
+            }
+        }
+        return notified;
+    }
+
+    private void updatePlayerAppSettings() {
+        byte[] settings = null;
+        for (DeviceSession session : mSessions.values()) {
+            if (session.playerStatusChangeNT == NOTIFICATION_TYPE_INTERIM) {
+                Log.v(TAG,"Send Player appl attribute changed response");
+                if (settings == null) {
+                    settings = getPlayerAppSettings();
+                }
+                session.playerStatusChangeNT = NOTIFICATION_TYPE_CHANGED;
+                sendPlayerAppChangedRsp(session.playerStatusChangeNT, settings);
+            }
+        }
+        if (settings == null) {
+            Log.v(TAG,"Drop Set Attr Val update from media player");
+        }
+    }
+
+    private byte[] getPlayerAppSettings() {
         int j = 0;
-        byte i = NUMPLAYER_ATTRIBUTE*2;
-        byte [] retVal = new byte [i];
+        byte [] retVal = new byte [NUMPLAYER_ATTRIBUTE*2];
         retVal[j++] = ATTRIBUTE_REPEATMODE;
         retVal[j++] = settingValues.repeat_value;
         retVal[j++] = ATTRIBUTE_SHUFFLEMODE;
         retVal[j++] = settingValues.shuffle_value;
-        registerNotificationPlayerAppRspNative(rsptype, i, retVal);
+        return retVal;
+    }
+
+    private void sendPlayerAppChangedRsp(int rsptype, byte[] settings) {
+        registerNotificationPlayerAppRspNative(rsptype, (byte)settings.length, settings);
     }
 
     private long getPlayPosition() {
@@ -3334,7 +2803,8 @@ public final class Avrcp {
      * NOT USED AT THE MOMENT.
      */
     public boolean isAbsoluteVolumeSupported() {
-        return ((mFeatures & BTRC_FEAT_ABSOLUTE_VOLUME) != 0);
+        DeviceSession session = mActiveSession;
+        return session != null && ((session.features & BTRC_FEAT_ABSOLUTE_VOLUME) != 0);
     }
 
     /**
@@ -3570,26 +3040,21 @@ public final class Avrcp {
         ProfileService.println(sb, "mMetadata: " + mMetadata);
         ProfileService.println(sb, "mTransportControlFlags: " + mTransportControlFlags);
         ProfileService.println(sb, "mCurrentPlayState: " + mCurrentPlayState);
-        ProfileService.println(sb, "mPlayStatusChangedNT: " + mPlayStatusChangedNT);
-        ProfileService.println(sb, "mTrackChangedNT: " + mTrackChangedNT);
         ProfileService.println(sb, "mTrackNumber: " + mTrackNumber);
         ProfileService.println(sb, "mCurrentPosMs: " + mCurrentPosMs);
         ProfileService.println(sb, "mPlayStartTimeMs: " + mPlayStartTimeMs);
         ProfileService.println(sb, "mSongLengthMs: " + mSongLengthMs);
         ProfileService.println(sb, "mPlaybackIntervalMs: " + mPlaybackIntervalMs);
-        ProfileService.println(sb, "mPlayPosChangedNT: " + mPlayPosChangedNT);
         ProfileService.println(sb, "mNextPosMs: " + mNextPosMs);
         ProfileService.println(sb, "mPrevPosMs: " + mPrevPosMs);
         ProfileService.println(sb, "mSkipStartTime: " + mSkipStartTime);
-        ProfileService.println(sb, "mFeatures: " + mFeatures);
-        ProfileService.println(sb, "mAbsoluteVolume: " + mAbsoluteVolume);
-        ProfileService.println(sb, "mLastSetVolume: " + mLastSetVolume);
-        ProfileService.println(sb, "mLastDirection: " + mLastDirection);
         ProfileService.println(sb, "mVolumeStep: " + mVolumeStep);
         ProfileService.println(sb, "mAudioStreamMax: " + mAudioStreamMax);
-        ProfileService.println(sb, "mVolCmdInProgress: " + mVolCmdInProgress);
-        ProfileService.println(sb, "mAbsVolRetryTimes: " + mAbsVolRetryTimes);
         ProfileService.println(sb, "mSkipAmount: " + mSkipAmount);
+        for (DeviceSession session : mSessions.values()) {
+            ProfileService.println(sb, (session == mActiveSession ? "active " : "")
+                    + session.toString());
+        }
     }
 
     // Do not modify without updating the HAL bt_rc.h files.
@@ -3951,9 +3416,8 @@ public final class Avrcp {
     private native boolean setAdressedPlayerRspNative(byte statusCode);
     private native boolean getMediaPlayerListRspNative(byte statusCode, int uidCounter,
                                     int itemCount, byte[] folderItems, int[] folderItemLengths);
-    private native boolean getFolderItemsRspNative(byte statusCode, long numItems,
-        int[] itemType, long[] uid, int[] type, byte[] playable, String[] displayName,
-        byte[] numAtt, String[] attValues, int[] attIds);
+    private native boolean getFolderItemsRspNative(byte statusCode, int numItems,
+        ByteBuffer itemBuffer, int length);
     private native boolean getListPlayerappAttrRspNative(byte attr, byte[] attrIds);
     private native boolean getPlayerAppValueRspNative(byte numberattr, byte[]values );
     private native boolean SendCurrentPlayerValueRspNative(byte numberattr, byte[]attr );
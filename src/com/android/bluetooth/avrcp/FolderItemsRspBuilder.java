@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.avrcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the item list of a GetFolderItems response into a direct buffer in
+ * AVRCP wire format, so the native layer can read it without converting each
+ * string through JNI. One builder is reused for every response; its buffer
+ * only grows when a response does not fit.
+ *
+ * Folder item: type(1) length(2) uid(8) folder type(1) playable(1)
+ *              charset(2) name length(2) name
+ * Media item:  type(1) length(2) uid(8) media type(1) charset(2)
+ *              name length(2) name attribute count(1)
+ *              [attribute id(4) charset(2) value length(2) value]...
+ *
+ * All fields are big endian and strings are UTF-8.
+ *
+ * @hide
+ */
+/* package */class FolderItemsRspBuilder {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int CHARSET_UTF8 = 0x006A;
+    private static final int TYPE_FOLDER_ITEM = 0x02;
+    private static final int TYPE_MEDIA_ELEMENT_ITEM = 0x03;
+
+    private static final int ITEM_HEADER_LENGTH = 3;
+    private static final int FOLDER_ITEM_LENGTH = ITEM_HEADER_LENGTH + 8 + 1 + 1 + 2 + 2;
+    private static final int MEDIA_ITEM_LENGTH = ITEM_HEADER_LENGTH + 8 + 1 + 2 + 2 + 1;
+    private static final int ATTRIBUTE_LENGTH = 4 + 2 + 2;
+
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private int mItemCount;
+    private int mItemStart;
+    private int mNumAttrPosition;
+
+    FolderItemsRspBuilder() {
+        reset();
+    }
+
+    void reset() {
+        mBuffer.clear();
+        mItemCount = 0;
+        mItemStart = -1;
+        mNumAttrPosition = -1;
+    }
+
+    void addFolderItem(long uid, int folderType, boolean playable, String name) {
+        int nameLength = utf8Length(name);
+        ensureCapacity(FOLDER_ITEM_LENGTH + nameLength);
+        beginItem(TYPE_FOLDER_ITEM);
+        mBuffer.putLong(uid);
+        mBuffer.put((byte)folderType);
+        mBuffer.put((byte)(playable ? 1 : 0));
+        mBuffer.putShort((short)CHARSET_UTF8);
+        mBuffer.putShort((short)nameLength);
+        putUtf8(name);
+        mNumAttrPosition = -1;
+        endItem();
+    }
+
+    /**
+     * Starts a media element item. Its attributes are added with
+     * {@link #addAttribute} until the next item is started.
+     */
+    void addMediaItem(long uid, int mediaType, String name) {
+        int nameLength = utf8Length(name);
+        ensureCapacity(MEDIA_ITEM_LENGTH + nameLength);
+        beginItem(TYPE_MEDIA_ELEMENT_ITEM);
+        mBuffer.putLong(uid);
+        mBuffer.put((byte)mediaType);
+        mBuffer.putShort((short)CHARSET_UTF8);
+        mBuffer.putShort((short)nameLength);
+        putUtf8(name);
+        mNumAttrPosition = mBuffer.position();
+        mBuffer.put((byte)0);
+        endItem();
+    }
+
+    void addAttribute(int attrId, String value) {
+        if (mNumAttrPosition < 0) {
+            throw new IllegalStateException("Attribute added without a media item");
+        }
+        int valueLength = utf8Length(value);
+        ensureCapacity(ATTRIBUTE_LENGTH + valueLength);
+        mBuffer.putInt(attrId);
+        mBuffer.putShort((short)CHARSET_UTF8);
+        mBuffer.putShort((short)valueLength);
+        putUtf8(value);
+        mBuffer.put(mNumAttrPosition, (byte)(mBuffer.get(mNumAttrPosition) + 1));
+        endItem();
+    }
+
+    int getItemCount() {
+        return mItemCount;
+    }
+
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    int getLength() {
+        return mBuffer.position();
+    }
+
+    private void beginItem(int itemType) {
+        mItemStart = mBuffer.position();
+        mBuffer.put((byte)itemType);
+        mBuffer.putShort((short)0);
+        mItemCount++;
+    }
+
+    private void endItem() {
+        mBuffer.putShort(mItemStart + 1,
+                (short)(mBuffer.position() - mItemStart - ITEM_HEADER_LENGTH));
+    }
+
+    private void ensureCapacity(int length) {
+        if (mBuffer.remaining() >= length) return;
+
+        int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + length);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        mBuffer.flip();
+        buffer.put(mBuffer);
+        mBuffer = buffer;
+    }
+
+    /* Unpaired surrogates are written as '?', as String.getBytes() would */
+    private static int utf8Length(String str) {
+        if (str == null) return 0;
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < str.length() &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 1;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void putUtf8(String str) {
+        if (str == null) return;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                mBuffer.put((byte)c);
+            } else if (c < 0x800) {
+                mBuffer.put((byte)(0xC0 | (c >> 6)));
+                mBuffer.put((byte)(0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < str.length() &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                    mBuffer.put((byte)(0xF0 | (codePoint >> 18)));
+                    mBuffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+                    mBuffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+                    mBuffer.put((byte)(0x80 | (codePoint & 0x3F)));
+                } else {
+                    mBuffer.put((byte)'?');
+                }
+            } else {
+                mBuffer.put((byte)(0xE0 | (c >> 12)));
+                mBuffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                mBuffer.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -15,15 +15,20 @@
  */
 package com.android.bluetooth.gatt;
 
+import android.bluetooth.BluetoothGatt;
 import android.os.IBinder;
 import android.os.IBinder.DeathRecipient;
 import android.os.IInterface;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.util.Log;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
@@ -36,6 +41,13 @@ import java.util.UUID;
 /*package*/ class ContextMap<T> {
     private static final String TAG = GattServiceConfig.TAG_PREFIX + "ContextMap";
 
+    /**
+     * Callbacks held back for one congested connection before the
+     * application is told about the congestion
+     */
+    static final int MAX_CONGESTION_QUEUE = SystemProperties.getInt(
+            "persist.bt.gatt.congestion_queue", 64);
+
     /**
      * Connection class helps map connection IDs to device addresses.
      */
@@ -67,11 +79,15 @@ import java.util.UUID;
         /** Death receipient */
         private IBinder.DeathRecipient mDeathRecipient;
 
-        /** Flag to signal that transport is congested */
-        Boolean isCongested = false;
+        /** Connection IDs whose transport is congested */
+        private Set<Integer> mCongestedConnIds = new HashSet<Integer>();
 
-        /** Internal callback info queue, waiting to be send on congestion clear */
-        private List<CallbackInfo> congestionQueue = new ArrayList<CallbackInfo>();
+        /**
+         * Internal callback info queues per connection ID, waiting to be
+         * sent on congestion clear. Guarded by mCongestedConnIds.
+         */
+        private Map<Integer, ArrayDeque<CallbackInfo>> mCongestionQueues =
+                new HashMap<Integer, ArrayDeque<CallbackInfo>>();
 
         /**
          * Creates a new app context.
@@ -108,13 +124,69 @@ import java.util.UUID;
             }
         }
 
-        void queueCallback(CallbackInfo callbackInfo) {
-            congestionQueue.add(callbackInfo);
+        void setCongested(int connId, boolean congested) {
+            synchronized (mCongestedConnIds) {
+                if (congested) {
+                    mCongestedConnIds.add(connId);
+                } else {
+                    mCongestedConnIds.remove(connId);
+                }
+            }
+        }
+
+        /**
+         * Holds a callback back until congestion on the connection clears.
+         * Callbacks are also held while earlier ones for the connection are
+         * still queued, so they are delivered in order.
+         *
+         * A congested status is reported as success while the queue is
+         * short. Once the queue is full, callbacks keep their congested
+         * status so the application sees the congestion, but they are still
+         * queued behind the earlier ones.
+         *
+         * Returns false if the connection is not congested and nothing is
+         * queued for it, so the caller should deliver the callback right away.
+         */
+        boolean holdCallback(int connId, CallbackInfo callbackInfo) {
+            synchronized (mCongestedConnIds) {
+                ArrayDeque<CallbackInfo> queue = mCongestionQueues.get(connId);
+                if (queue == null) {
+                    if (!mCongestedConnIds.contains(connId)) return false;
+                    queue = new ArrayDeque<CallbackInfo>();
+                    mCongestionQueues.put(connId, queue);
+                }
+                if (queue.size() >= MAX_CONGESTION_QUEUE) {
+                    Log.w(TAG, "Congestion queue full for app id " + id + ", conn " + connId);
+                } else if (callbackInfo.status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+                    callbackInfo.status = BluetoothGatt.GATT_SUCCESS;
+                }
+                queue.add(callbackInfo);
+                return true;
+            }
+        }
+
+        /**
+         * Returns the next held callback for a connection that is no longer
+         * congested, or null if there is none. The queue is only dropped once
+         * a call finds it empty, so callbacks arriving while the previous one
+         * is being delivered still wait their turn.
+         */
+        CallbackInfo popQueuedCallback(int connId) {
+            synchronized (mCongestedConnIds) {
+                if (mCongestedConnIds.contains(connId)) return null;
+                ArrayDeque<CallbackInfo> queue = mCongestionQueues.get(connId);
+                if (queue == null) return null;
+                CallbackInfo callbackInfo = queue.poll();
+                if (callbackInfo == null) mCongestionQueues.remove(connId);
+                return callbackInfo;
+            }
         }
 
-        CallbackInfo popQueuedCallback() {
-            if (congestionQueue.size() == 0) return null;
-            return congestionQueue.remove(0);
+        void removeCongestion(int connId) {
+            synchronized (mCongestedConnIds) {
+                mCongestedConnIds.remove(connId);
+                mCongestionQueues.remove(connId);
+            }
         }
     }
 
@@ -124,6 +196,14 @@ import java.util.UUID;
     /** Internal list of connected devices **/
     Set<Connection> mConnections = new HashSet<Connection>();
 
+    /** Registered applications by ID, guarded by mApps */
+    private Map<Integer, App> mAppsById = new HashMap<Integer, App>();
+
+    /** Connections by connection ID and by device address, guarded by mConnections */
+    private Map<Integer, Connection> mConnectionsByConnId = new HashMap<Integer, Connection>();
+    private Map<String, List<Connection>> mConnectionsByAddress =
+            new HashMap<String, List<Connection>>();
+
     /**
      * Add an entry to the application context list.
      */
@@ -144,6 +224,7 @@ import java.util.UUID;
                 if (entry.uuid.equals(uuid)) {
                     entry.unlinkToDeath();
                     i.remove();
+                    removeAppIndex(entry);
                     break;
                 }
             }
@@ -161,6 +242,7 @@ import java.util.UUID;
                 if (entry.id == id) {
                     entry.unlinkToDeath();
                     i.remove();
+                    removeAppIndex(entry);
                     break;
                 }
             }
@@ -171,11 +253,40 @@ import java.util.UUID;
                 Connection connection = i.next();
                 if (connection.appId == id) {
                     i.remove();
+                    removeConnectionIndex(connection);
                 }
             }
         }
     }
 
+    /**
+     * Assign the ID the stack registered an application under.
+     */
+    void setId(App app, int id) {
+        synchronized (mApps) {
+            removeAppIndex(app);
+            app.id = id;
+            mAppsById.put(id, app);
+        }
+    }
+
+    private void removeAppIndex(App app) {
+        if (mAppsById.get(app.id) == app) {
+            mAppsById.remove(app.id);
+        }
+    }
+
+    private void removeConnectionIndex(Connection connection) {
+        if (mConnectionsByConnId.get(connection.connId) == connection) {
+            mConnectionsByConnId.remove(connection.connId);
+        }
+        List<Connection> connections = mConnectionsByAddress.get(connection.address);
+        if (connections != null) {
+            connections.remove(connection);
+            if (connections.isEmpty()) mConnectionsByAddress.remove(connection.address);
+        }
+    }
+
     /**
      * Add a new connection for a given application ID.
      */
@@ -183,7 +294,15 @@ import java.util.UUID;
         synchronized (mConnections) {
             App entry = getById(id);
             if (entry != null){
-                mConnections.add(new Connection(connId, address, id));
+                Connection connection = new Connection(connId, address, id);
+                mConnections.add(connection);
+                mConnectionsByConnId.put(connId, connection);
+                List<Connection> connections = mConnectionsByAddress.get(address);
+                if (connections == null) {
+                    connections = new ArrayList<Connection>();
+                    mConnectionsByAddress.put(address, connections);
+                }
+                connections.add(connection);
             }
         }
     }
@@ -198,8 +317,17 @@ import java.util.UUID;
                 Connection connection = i.next();
                 if (connection.connId == connId) {
                     i.remove();
+                    removeConnectionIndex(connection);
                 }
             }
+            // The app may already be unregistered on disconnect, so look it up quietly
+            App entry;
+            synchronized (mApps) {
+                entry = mAppsById.get(id);
+            }
+            if (entry != null) {
+                entry.removeCongestion(connId);
+            }
         }
     }
 
@@ -207,13 +335,12 @@ import java.util.UUID;
      * Get an application context by ID.
      */
     App getById(int id) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.id == id) return entry;
+        App entry;
+        synchronized (mApps) {
+            entry = mAppsById.get(id);
         }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        if (entry == null) Log.e(TAG, "Context not found for ID " + id);
+        return entry;
     }
 
     /**
@@ -246,14 +373,12 @@ import java.util.UUID;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        Iterator<Connection> ii = mConnections.iterator();
-        while(ii.hasNext()) {
-            Connection connection = ii.next();
-            if (connection.connId == connId){
-                return getById(connection.appId);
-            }
+        Connection connection;
+        synchronized (mConnections) {
+            connection = mConnectionsByConnId.get(connId);
         }
-        return null;
+        if (connection == null) return null;
+        return getById(connection.appId);
     }
 
     /**
@@ -263,11 +388,12 @@ import java.util.UUID;
         App entry = getById(id);
         if (entry == null) return null;
 
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.address.equals(address) && connection.appId == id)
-                return connection.connId;
+        synchronized (mConnections) {
+            List<Connection> connections = mConnectionsByAddress.get(address);
+            if (connections == null) return null;
+            for (Connection connection : connections) {
+                if (connection.appId == id) return connection.connId;
+            }
         }
         return null;
     }
@@ -276,12 +402,10 @@ import java.util.UUID;
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.connId == connId) return connection.address;
+        synchronized (mConnections) {
+            Connection connection = mConnectionsByConnId.get(connId);
+            return connection == null ? null : connection.address;
         }
-        return null;
     }
 
     List<Connection> getConnectionByApp(int appId) {
@@ -306,10 +430,13 @@ import java.util.UUID;
                 entry.unlinkToDeath();
                 i.remove();
             }
+            mAppsById.clear();
         }
 
         synchronized (mConnections) {
             mConnections.clear();
+            mConnectionsByConnId.clear();
+            mConnectionsByAddress.clear();
         }
     }
 
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.gatt;
+
+import android.os.RemoteException;
+import android.os.SystemProperties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps the attribute table of bonded remote devices once it has been
+ * discovered, so a later service discovery on the same link can be answered
+ * without walking the remote database through the native stack again.
+ *
+ * A table is dropped whenever a new link to the device comes up and whenever
+ * a native search starts for it: the remote may have changed its database
+ * (Service Changed) and the native stack then hands out new instance IDs,
+ * which a replayed table would not match.
+ *
+ * Disabled unless persist.bt.gatt.discovery_cache is set.
+ *
+ * @hide
+ */
+/* package */class DiscoveryCache {
+    static final boolean ENABLED =
+            SystemProperties.getBoolean("persist.bt.gatt.discovery_cache", false);
+
+    private static final int MAX_DEVICES = 32;
+
+    static class Descriptor {
+        final int instId;
+        final UUID uuid;
+
+        Descriptor(int instId, UUID uuid) {
+            this.instId = instId;
+            this.uuid = uuid;
+        }
+    }
+
+    static class Characteristic {
+        final int instId;
+        final UUID uuid;
+        final int properties;
+        final List<Descriptor> descriptors = new ArrayList<Descriptor>();
+
+        Characteristic(int instId, UUID uuid, int properties) {
+            this.instId = instId;
+            this.uuid = uuid;
+            this.properties = properties;
+        }
+    }
+
+    static class Service {
+        final int type;
+        final int instId;
+        final UUID uuid;
+        final List<Characteristic> characteristics = new ArrayList<Characteristic>();
+        final List<Service> includedServices = new ArrayList<Service>();
+
+        Service(int type, int instId, UUID uuid) {
+            this.type = type;
+            this.instId = instId;
+            this.uuid = uuid;
+        }
+
+        Characteristic getCharacteristic(int instId, UUID uuid) {
+            for (Characteristic characteristic : characteristics) {
+                if (characteristic.instId == instId && characteristic.uuid.equals(uuid)) {
+                    return characteristic;
+                }
+            }
+            return null;
+        }
+    }
+
+    static class Database {
+        final List<Service> services = new ArrayList<Service>();
+
+        Service getService(int type, int instId, UUID uuid) {
+            for (Service service : services) {
+                if (service.type == type && service.instId == instId
+                        && service.uuid.equals(uuid)) {
+                    return service;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Receives a cached table in discovery order.
+     */
+    interface ReplayCallback {
+        void onService(Service service) throws RemoteException;
+        void onCharacteristic(Service service, Characteristic characteristic)
+                throws RemoteException;
+        void onIncludedService(Service service, Service included) throws RemoteException;
+        void onDescriptor(Service service, Characteristic characteristic,
+                Descriptor descriptor) throws RemoteException;
+    }
+
+    private final boolean mEnabled;
+
+    /* Tables being built by a running discovery, keyed by connection */
+    private final Map<Integer, Database> mPending = new HashMap<Integer, Database>();
+
+    /* Completed tables, keyed by device address, least recently used first */
+    private final LinkedHashMap<String, Database> mDatabases =
+            new LinkedHashMap<String, Database>(MAX_DEVICES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Database> eldest) {
+                    return size() > MAX_DEVICES;
+                }
+            };
+
+    DiscoveryCache() {
+        this(ENABLED);
+    }
+
+    DiscoveryCache(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    synchronized void beginDiscovery(int connId, String address) {
+        if (address != null) mDatabases.remove(address);
+        if (!mEnabled) return;
+        mPending.put(connId, new Database());
+    }
+
+    synchronized void addService(int connId, int srvcType, int srvcInstId, UUID srvcUuid) {
+        Database database = mPending.get(connId);
+        if (database == null) return;
+        database.services.add(new Service(srvcType, srvcInstId, srvcUuid));
+    }
+
+    synchronized void addCharacteristic(int connId, int srvcType, int srvcInstId,
+            UUID srvcUuid, int charInstId, UUID charUuid, int charProp) {
+        Service service = getPendingService(connId, srvcType, srvcInstId, srvcUuid);
+        if (service == null) return;
+        service.characteristics.add(new Characteristic(charInstId, charUuid, charProp));
+    }
+
+    synchronized void addIncludedService(int connId, int srvcType, int srvcInstId,
+            UUID srvcUuid, int inclSrvcType, int inclSrvcInstId, UUID inclSrvcUuid) {
+        Service service = getPendingService(connId, srvcType, srvcInstId, srvcUuid);
+        if (service == null) return;
+        service.includedServices.add(new Service(inclSrvcType, inclSrvcInstId, inclSrvcUuid));
+    }
+
+    synchronized void addDescriptor(int connId, int srvcType, int srvcInstId,
+            UUID srvcUuid, int charInstId, UUID charUuid, int descrInstId, UUID descrUuid) {
+        Service service = getPendingService(connId, srvcType, srvcInstId, srvcUuid);
+        if (service == null) return;
+        Characteristic characteristic = service.getCharacteristic(charInstId, charUuid);
+        if (characteristic == null) return;
+        characteristic.descriptors.add(new Descriptor(descrInstId, descrUuid));
+    }
+
+    /**
+     * Finishes the discovery running on a connection. The table is kept for
+     * the device only when requested, i.e. the search succeeded and the
+     * device is bonded.
+     */
+    synchronized void endDiscovery(int connId, String address, boolean keep) {
+        Database database = mPending.remove(connId);
+        if (database == null || address == null) return;
+        if (keep) {
+            mDatabases.put(address, database);
+        } else {
+            mDatabases.remove(address);
+        }
+    }
+
+    synchronized Database get(String address) {
+        if (!mEnabled) return null;
+        return mDatabases.get(address);
+    }
+
+    synchronized void remove(String address) {
+        mDatabases.remove(address);
+    }
+
+    /**
+     * Reports a table in the same order as a discovery through the native
+     * stack would: all services, then characteristics and included services
+     * per service, then descriptors.
+     */
+    static void replay(Database database, ReplayCallback callback) throws RemoteException {
+        for (Service service : database.services) {
+            callback.onService(service);
+        }
+
+        for (Service service : database.services) {
+            for (Characteristic characteristic : service.characteristics) {
+                callback.onCharacteristic(service, characteristic);
+            }
+            for (Service included : service.includedServices) {
+                callback.onIncludedService(service, included);
+            }
+        }
+
+        for (Service service : database.services) {
+            for (Characteristic characteristic : service.characteristics) {
+                for (Descriptor descriptor : characteristic.descriptors) {
+                    callback.onDescriptor(service, characteristic, descriptor);
+                }
+            }
+        }
+    }
+
+    synchronized void removeConnId(int connId) {
+        mPending.remove(connId);
+    }
+
+    synchronized void clear() {
+        mPending.clear();
+        mDatabases.clear();
+    }
+
+    private Service getPendingService(int connId, int srvcType, int srvcInstId, UUID srvcUuid) {
+        Database database = mPending.get(connId);
+        if (database == null) return null;
+        return database.getService(srvcType, srvcInstId, srvcUuid);
+    }
+}
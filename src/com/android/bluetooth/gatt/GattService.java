@@ -33,16 +33,18 @@ import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
-import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
@@ -50,6 +52,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -90,6 +93,11 @@ public class GattService extends ProfileService {
      */
     SearchQueue mSearchQueue = new SearchQueue();
 
+    /**
+     * Attribute tables of bonded devices from earlier discoveries.
+     */
+    private DiscoveryCache mDiscoveryCache = new DiscoveryCache();
+
     /**
      * List of our registered clients.
      */
@@ -103,6 +111,17 @@ public class GattService extends ProfileService {
     class ServerMap extends ContextMap<IBluetoothGattServerCallback> {}
     ServerMap mServerMap = new ServerMap();
 
+    /**
+     * Thread delivering callbacks held back during link congestion.
+     */
+    private Handler mCongestionHandler;
+
+    /**
+     * Recently seen attribute UUIDs, so each notification does not allocate new ones.
+     */
+    private static final int MAX_CACHED_UUIDS = 512;
+    private final LongSparseArray<ParcelUuid> mUuidCache = new LongSparseArray<ParcelUuid>();
+
     /**
      * Server handle map.
      */
@@ -196,6 +215,10 @@ public class GattService extends ProfileService {
         mScanManager = new ScanManager(this);
         mScanManager.start();
 
+        HandlerThread thread = new HandlerThread("BluetoothGattCongestion");
+        thread.start();
+        mCongestionHandler = new Handler(thread.getLooper());
+
         return true;
     }
 
@@ -204,6 +227,7 @@ public class GattService extends ProfileService {
         mClientMap.clear();
         mServerMap.clear();
         mSearchQueue.clear();
+        mDiscoveryCache.clear();
         mHandleMap.clear();
         mServiceDeclarations.clear();
         mActiveServiceDeclarations.clear();
@@ -216,6 +240,10 @@ public class GattService extends ProfileService {
             mScanManager.cleanup();
             mScanManager = null;
         }
+        if (mCongestionHandler != null) {
+            mCongestionHandler.getLooper().quit();
+            mCongestionHandler = null;
+        }
         return true;
     }
 
@@ -230,6 +258,10 @@ public class GattService extends ProfileService {
             mScanManager.cleanup();
             mScanManager = null;
         }
+        if (mCongestionHandler != null) {
+            mCongestionHandler.getLooper().quit();
+            mCongestionHandler = null;
+        }
         return true;
     }
 
@@ -589,52 +621,41 @@ public class GattService extends ProfileService {
     void onScanResult(String address, int rssi, byte[] adv_data) {
         if (VDBG) Log.d(TAG, "onScanResult() - address=" + address
                     + ", rssi=" + rssi);
-        List<UUID> remoteUuids = parseUuids(adv_data);
-        for (ScanClient client : mScanManager.getRegularScanQueue()) {
-            if (client.uuids.length > 0) {
-                int matches = 0;
-                for (UUID search : client.uuids) {
-                    for (UUID remote: remoteUuids) {
-                        if (remote.equals(search)) {
-                            ++matches;
-                            break; // Only count 1st match in case of duplicates
-                        }
-                    }
-                }
-
-                if (matches < client.uuids.length) continue;
-            }
-
+        ScanFilterIndex index = mScanManager.getRegularScanIndex();
+        if (index.isEmpty()) return;
+
+        // Parse the advertisement once and share the result among all clients.
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
+                rssi, SystemClock.elapsedRealtimeNanos());
+        for (ScanClient client : index.match(result, adv_data)) {
             if (!client.isServer) {
                 ClientMap.App app = mClientMap.getById(client.clientIf);
                 if (app != null) {
-                    BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(address);
-                    ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
-                            rssi, SystemClock.elapsedRealtimeNanos());
-                    if (matchesFilters(client, result)) {
-                        try {
-                            ScanSettings settings = client.settings;
-                            // framework detects the first match, hw signal is
-                            // used to detect the onlost
-                            // ToDo: make scanClient+result, 1 to many when hw
-                            // support is available
-                            if ((settings.getCallbackType() &
-                                    ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0) {
-                                synchronized (mOnFoundResults) {
-                                    mOnFoundResults.put(client, result);
-                                }
-                                app.callback.onFoundOrLost(true, result);
-                            }
-                            if ((settings.getCallbackType() &
-                                    ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0) {
-                                app.callback.onScanResult(result);
+                    try {
+                        ScanSettings settings = client.settings;
+                        // framework detects the first match, hw signal is
+                        // used to detect the onlost
+                        // ToDo: make scanClient+result, 1 to many when hw
+                        // support is available
+                        if ((settings.getCallbackType() &
+                                ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0) {
+                            synchronized (mOnFoundResults) {
+                                mOnFoundResults.put(client, result);
                             }
-                        } catch (RemoteException e) {
-                            Log.e(TAG, "Exception: " + e);
-                            mClientMap.remove(client.clientIf);
-                            mScanManager.stopScan(client);
+                            app.callback.onFoundOrLost(true, result);
                         }
+                        if ((settings.getCallbackType() &
+                                ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0
+                                && (client.duplicateFilter == null
+                                        || !client.duplicateFilter.isDuplicate(address, adv_data,
+                                                rssi, SystemClock.elapsedRealtime()))) {
+                            app.callback.onScanResult(result);
+                        }
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Exception: " + e);
+                        mClientMap.remove(client.clientIf);
+                        mScanManager.stopScan(client);
                     }
                 }
             } else {
@@ -652,19 +673,6 @@ public class GattService extends ProfileService {
         }
     }
 
-    // Check if a scan record matches a specific filters.
-    private boolean matchesFilters(ScanClient client, ScanResult scanResult) {
-        if (client.filters == null || client.filters.isEmpty()) {
-            return true;
-        }
-        for (ScanFilter filter : client.filters) {
-            if (filter.matches(scanResult)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     void onClientRegistered(int status, int clientIf, long uuidLsb, long uuidMsb)
             throws RemoteException {
         UUID uuid = new UUID(uuidMsb, uuidLsb);
@@ -672,7 +680,7 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
             if (status == 0) {
-                app.id = clientIf;
+                mClientMap.setId(app, clientIf);
                 app.linkToDeath(new ClientDeathRecipient(clientIf));
             } else {
                 mClientMap.remove(uuid);
@@ -686,7 +694,13 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onConnected() - clientIf=" + clientIf
             + ", connId=" + connId + ", address=" + address);
 
-        if (status == 0) mClientMap.addConnection(clientIf, connId, address);
+        if (status == 0) {
+            // A new link may come with a changed remote database
+            if (!mClientMap.getConnectedDevices().contains(address)) {
+                mDiscoveryCache.remove(address);
+            }
+            mClientMap.addConnection(clientIf, connId, address);
+        }
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf,
@@ -701,6 +715,7 @@ public class GattService extends ProfileService {
 
         mClientMap.removeConnection(clientIf, connId);
         mSearchQueue.removeConnId(connId);
+        mDiscoveryCache.removeConnId(connId);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -722,6 +737,7 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "onSearchResult() - address=" + address + ", uuid=" + uuid);
 
         mSearchQueue.add(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+        mDiscoveryCache.addService(connId, srvcType, srvcInstId, uuid);
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -746,6 +762,8 @@ public class GattService extends ProfileService {
             mSearchQueue.add(connId, srvcType,
                             srvcInstId, srvcUuidLsb, srvcUuidMsb,
                             charInstId, charUuidLsb, charUuidMsb);
+            mDiscoveryCache.addCharacteristic(connId, srvcType, srvcInstId, srvcUuid,
+                            charInstId, charUuid, charProp);
 
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
@@ -780,6 +798,9 @@ public class GattService extends ProfileService {
             + ", status=" + status + ", descUuid=" + descUuid);
 
         if (status == 0) {
+            mDiscoveryCache.addDescriptor(connId, srvcType, srvcInstId, srvcUuid,
+                            charInstId, charUuid, descrInstId, descUuid);
+
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
                 app.callback.onGetDescriptor(address, srvcType,
@@ -812,6 +833,9 @@ public class GattService extends ProfileService {
             + ", inclUuid=" + inclSrvcUuid);
 
         if (status == 0) {
+            mDiscoveryCache.addIncludedService(connId, srvcType, srvcInstId, srvcUuid,
+                            inclSrvcType, inclSrvcInstId, inclSrvcUuid);
+
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
                 app.callback.onGetIncludedService(address,
@@ -845,14 +869,14 @@ public class GattService extends ProfileService {
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb,
             boolean isNotify, byte[] data) throws RemoteException {
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+        ParcelUuid srvcUuid = getParcelUuid(srvcUuidLsb, srvcUuidMsb);
+        ParcelUuid charUuid = getParcelUuid(charUuidLsb, charUuidMsb);
 
         if (VDBG) Log.d(TAG, "onNotify() - address=" + address
             + ", charUuid=" + charUuid + ", length=" + data.length);
 
 
-        if (isHidUuid(charUuid) &&
+        if (isHidUuid(charUuid.getUuid()) &&
                (0 != checkCallingOrSelfPermission(BLUETOOTH_PRIVILEGED))) {
             return;
         }
@@ -860,12 +884,30 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onNotify(address, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid),
+                        srvcInstId, srvcUuid,
+                        charInstId, charUuid,
                         data);
         }
     }
 
+    private ParcelUuid getParcelUuid(long uuidLsb, long uuidMsb) {
+        synchronized (mUuidCache) {
+            long key = uuidMsb ^ uuidLsb;
+            ParcelUuid uuid = mUuidCache.get(key);
+            if (uuid != null
+                    && uuid.getUuid().getMostSignificantBits() == uuidMsb
+                    && uuid.getUuid().getLeastSignificantBits() == uuidLsb) {
+                return uuid;
+            }
+            if (mUuidCache.size() >= MAX_CACHED_UUIDS) {
+                mUuidCache.clear();
+            }
+            uuid = new ParcelUuid(new UUID(uuidMsb, uuidLsb));
+            mUuidCache.put(key, uuid);
+            return uuid;
+        }
+    }
+
     void onReadCharacteristic(int connId, int status, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb,
@@ -901,17 +943,12 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) return;
 
-        if (!app.isCongested) {
+        CallbackInfo callbackInfo = new CallbackInfo(address, status, srvcType,
+                srvcInstId, srvcUuid, charInstId, charUuid);
+        if (!app.holdCallback(connId, callbackInfo)) {
             app.callback.onCharacteristicWrite(address, status, srvcType,
                     srvcInstId, new ParcelUuid(srvcUuid),
                     charInstId, new ParcelUuid(charUuid));
-        } else {
-            if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
-                status = BluetoothGatt.GATT_SUCCESS;
-            }
-            CallbackInfo callbackInfo = new CallbackInfo(address, status, srvcType,
-                    srvcInstId, srvcUuid, charInstId, charUuid);
-            app.queueCallback(callbackInfo);
         }
     }
 
@@ -987,7 +1024,7 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onScanFilterEnableDisabled() - clientIf=" + clientIf + ", status=" + status
                     + ", action=" + action);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(ScanManager.OP_FILTER_ENABLE, clientIf, status);
     }
 
     void onScanFilterParamsConfigured(int action, int status, int clientIf, int availableSpace) {
@@ -996,7 +1033,10 @@ public class GattService extends ProfileService {
                     + ", status=" + status + ", action=" + action
                     + ", availableSpace=" + availableSpace);
         }
-        mScanManager.callbackDone(clientIf, status);
+        if (status == 0) {
+            mScanManager.filterSpaceUpdated(availableSpace);
+        }
+        mScanManager.callbackDone(ScanManager.OP_FILTER_PARAM, clientIf, status);
     }
 
     void onScanFilterConfig(int action, int status, int clientIf, int filterType,
@@ -1007,14 +1047,14 @@ public class GattService extends ProfileService {
                     + ", availableSpace=" + availableSpace);
         }
 
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(ScanManager.OP_FILTER_CONFIG, clientIf, status);
     }
 
     void onBatchScanStorageConfigured(int status, int clientIf) {
         if (DBG) {
             Log.d(TAG, "onBatchScanStorageConfigured() - clientIf="+ clientIf + ", status=" + status);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(ScanManager.OP_BATCH_STORAGE, clientIf, status);
     }
 
     // TODO: split into two different callbacks : onBatchScanStarted and onBatchScanStopped.
@@ -1023,7 +1063,7 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onBatchScanStartStopped() - clientIf=" + clientIf
                     + ", status=" + status + ", startStopAction=" + startStopAction);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(ScanManager.OP_BATCH_START_STOP, clientIf, status);
     }
 
     void onBatchScanReports(int status, int clientIf, int reportType, int numRecords,
@@ -1032,37 +1072,41 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onBatchScanReports() - clientIf=" + clientIf + ", status=" + status
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
-        mScanManager.callbackDone(clientIf, status);
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        mScanManager.callbackDone(ScanManager.OP_BATCH_READ_REPORTS, clientIf, status);
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
             ClientMap.App app = mClientMap.getById(clientIf);
             if (app == null) return;
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(results));
+            app.callback.onBatchScanResults(new ArrayList<ScanResult>(
+                    parseBatchScanResults(numRecords, reportType, recordData)));
         } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
-            }
+            Set<ScanClient> clients = mScanManager.getFullBatchScanQueue();
+            if (clients.isEmpty()) return;
+            deliverBatchScan(clients, parseBatchScanResults(numRecords, reportType, recordData));
         }
     }
 
-    // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults) throws
+    // Match the scan results against the filters of all clients in one pass and deliver them.
+    private void deliverBatchScan(Set<ScanClient> clients, Set<ScanResult> allResults) throws
             RemoteException {
-        ClientMap.App app = mClientMap.getById(client.clientIf);
-        if (app == null) return;
-        if (client.filters == null || client.filters.isEmpty()) {
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(allResults));
+        Map<ScanClient, List<ScanResult>> clientResults =
+                new HashMap<ScanClient, List<ScanResult>>();
+        for (ScanClient client : clients) {
+            clientResults.put(client, new ArrayList<ScanResult>());
         }
-        // Reconstruct the scan results.
-        List<ScanResult> results = new ArrayList<ScanResult>();
+        ScanFilterIndex index = new ScanFilterIndex(clients);
         for (ScanResult scanResult : allResults) {
-            if (matchesFilters(client, scanResult)) {
-                results.add(scanResult);
+            ScanRecord record = scanResult.getScanRecord();
+            byte[] advData = (record == null) ? new byte[0] : record.getBytes();
+            for (ScanClient client : index.match(scanResult, advData)) {
+                clientResults.get(client).add(scanResult);
             }
         }
-        app.callback.onBatchScanResults(results);
+        for (Map.Entry<ScanClient, List<ScanResult>> entry : clientResults.entrySet()) {
+            ClientMap.App app = mClientMap.getById(entry.getKey().clientIf);
+            if (app == null) continue;
+            app.callback.onBatchScanResults(entry.getValue());
+        }
     }
 
     private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
@@ -1078,83 +1122,77 @@ public class GattService extends ProfileService {
         }
     }
 
+    // The parsers below walk batchRecord by offset; only the data each ScanResult keeps
+    // is copied out of it. Duplicate records are dropped, in report order.
     private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
+        if (VDBG) Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
+        Set<ScanResult> results = new LinkedHashSet<ScanResult>(numRecords);
         long now = SystemClock.elapsedRealtimeNanos();
+        byte[] address = new byte[MAC_ADDRESS_LENGTH];
+        // Truncated results carry no advertisement, they can all share one empty record.
+        ScanRecord emptyRecord = ScanRecord.parseFromBytes(new byte[0]);
         for (int i = 0; i < numRecords; ++i) {
-            byte[] record = extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE,
-                    TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]),
-                    rssi, timestampNanos));
+            int offset = i * TRUNCATED_RESULT_SIZE;
+            BluetoothDevice device = mAdapter.getRemoteDevice(
+                    readReversedAddress(batchRecord, offset, address));
+            int rssi = batchRecord[offset + 8];
+            long timestampNanos = now - parseTimestampNanos(batchRecord, offset + 9);
+            results.add(new ScanResult(device, emptyRecord, rssi, timestampNanos));
         }
         return results;
     }
 
+    // Parse the little endian timestamp in the two bytes at offset.
     @VisibleForTesting
-    long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
+    long parseTimestampNanos(byte[] data, int offset) {
+        long timestampUnit = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
         // Timestamp is in every 50 ms.
         return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
     }
 
     private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
+        if (VDBG) Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
+        Set<ScanResult> results = new LinkedHashSet<ScanResult>(numRecords);
         int position = 0;
         long now = SystemClock.elapsedRealtimeNanos();
+        byte[] address = new byte[MAC_ADDRESS_LENGTH];
         while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
             // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
+            BluetoothDevice device = mAdapter.getRemoteDevice(
+                    readReversedAddress(batchRecord, position, address));
             position += 6;
             // Skip address type.
             position++;
             // Skip tx power level.
             position++;
             int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
+            long timestampNanos = now - parseTimestampNanos(batchRecord, position);
             position += 2;
 
             // Combine advertise packet and scan response packet.
             int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
+            int advertiseStart = position;
             position += advertisePacketLen;
             int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
             byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord,
+            System.arraycopy(batchRecord, advertiseStart, scanRecord, 0, advertisePacketLen);
+            System.arraycopy(batchRecord, position, scanRecord,
                     advertisePacketLen, scanResponsePacketLen);
-            Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
+            position += scanResponsePacketLen;
+            if (VDBG) Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
             results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord),
                     rssi, timestampNanos));
         }
         return results;
     }
 
-    // Reverse byte array.
-    private void reverse(byte[] address) {
+    // Copy the address at offset into the given array in reverse byte order.
+    private static byte[] readReversedAddress(byte[] data, int offset, byte[] address) {
         int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
+        for (int i = 0; i < len; ++i) {
+            address[i] = data[offset + len - 1 - i];
         }
-    }
-
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+        return address;
     }
 
     void onBatchScanThresholdCrossed(int clientIf) {
@@ -1278,18 +1316,36 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByConnId(connId);
 
         if (app != null) {
-            app.isCongested = congested;
-            while(!app.isCongested) {
-                CallbackInfo callbackInfo = app.popQueuedCallback();
-                if (callbackInfo == null)  return;
-                app.callback.onCharacteristicWrite(callbackInfo.address,
-                        callbackInfo.status, callbackInfo.srvcType,
-                        callbackInfo.srvcInstId, new ParcelUuid(callbackInfo.srvcUuid),
-                        callbackInfo.charInstId, new ParcelUuid(callbackInfo.charUuid));
-            }
+            app.setCongested(connId, congested);
+            if (!congested) drainCongestionQueue(app, connId);
         }
     }
 
+    /**
+     * Delivers callbacks held back while a client connection was congested.
+     * Runs on the congestion thread so the native callback thread is not held up.
+     */
+    private void drainCongestionQueue(final ClientMap.App app, final int connId) {
+        Handler handler = mCongestionHandler;
+        if (handler == null) return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                CallbackInfo callbackInfo;
+                while ((callbackInfo = app.popQueuedCallback(connId)) != null) {
+                    try {
+                        app.callback.onCharacteristicWrite(callbackInfo.address,
+                                callbackInfo.status, callbackInfo.srvcType,
+                                callbackInfo.srvcInstId, new ParcelUuid(callbackInfo.srvcUuid),
+                                callbackInfo.charInstId, new ParcelUuid(callbackInfo.charUuid));
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Exception: " + e);
+                    }
+                }
+            }
+        });
+    }
+
     /**************************************************************************
      * GATT Service functions - Shared CLIENT/SERVER
      *************************************************************************/
@@ -1436,6 +1492,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "refreshDevice() - address=" + address);
+        mDiscoveryCache.remove(address);
         gattClientRefreshNative(clientIf, address);
     }
 
@@ -1445,10 +1502,30 @@ public class GattService extends ProfileService {
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId);
 
-        if (connId != null)
-            gattClientSearchServiceNative(connId, true, 0, 0);
-        else
+        if (connId == null) {
             Log.e(TAG, "discoverServices() - No connection for " + address + "...");
+            return;
+        }
+
+        DiscoveryCache.Database database = mDiscoveryCache.get(address);
+        if (database != null) {
+            if (isBonded(address)) {
+                ClientMap.App app = mClientMap.getById(clientIf);
+                if (app != null) {
+                    try {
+                        replayDiscovery(app, address, database);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Exception: " + e);
+                    }
+                    return;
+                }
+            } else {
+                mDiscoveryCache.remove(address);
+            }
+        }
+
+        mDiscoveryCache.beginDiscovery(connId, address);
+        gattClientSearchServiceNative(connId, true, 0, 0);
     }
 
     void readCharacteristic(int clientIf, String address, int srvcType,
@@ -1642,7 +1719,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onServerRegistered() - UUID=" + uuid + ", serverIf=" + serverIf);
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            mServerMap.setId(app, serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -1722,6 +1799,9 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onConnected() connId=" + connId
             + ", address=" + address + ", connected=" + connected);
 
+        // Notified values are only trusted for the connection they were sent on
+        mHandleMap.invalidateAddress(address);
+
         ServerMap.App app = mServerMap.getById(serverIf);
         if (app == null) return;
 
@@ -1744,6 +1824,16 @@ public class GattService extends ProfileService {
         HandleMap.Entry entry = mHandleMap.getByHandle(attrHandle);
         if (entry == null) return;
 
+        if (entry.type == HandleMap.TYPE_CHARACTERISTIC && offset == 0) {
+            byte[] value = mHandleMap.getCachedValue(attrHandle, address);
+            if (value != null) {
+                if (VDBG) Log.d(TAG, "onAttributeRead() - answered from cache");
+                gattServerSendResponseNative(entry.serverIf, connId, transId,
+                        (byte)BluetoothGatt.GATT_SUCCESS, attrHandle, 0, value, (byte)0);
+                return;
+            }
+        }
+
         mHandleMap.addRequest(transId, attrHandle);
 
         ServerMap.App app = mServerMap.getById(entry.serverIf);
@@ -1800,6 +1890,7 @@ public class GattService extends ProfileService {
         if (entry == null) return;
 
         mHandleMap.addRequest(transId, attrHandle);
+        mHandleMap.invalidateValue(attrHandle);
 
         ServerMap.App app = mServerMap.getById(entry.serverIf);
         if (app == null) return;
@@ -1867,13 +1958,8 @@ public class GattService extends ProfileService {
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
-        if (!app.isCongested) {
+        if (!app.holdCallback(connId, new CallbackInfo(address, status))) {
             app.callback.onNotificationSent(address, status);
-        } else {
-            if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
-                status = BluetoothGatt.GATT_SUCCESS;
-            }
-            app.queueCallback(new CallbackInfo(address, status));
         }
     }
 
@@ -1883,12 +1969,30 @@ public class GattService extends ProfileService {
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
-        app.isCongested = congested;
-        while(!app.isCongested) {
-            CallbackInfo callbackInfo = app.popQueuedCallback();
-            if (callbackInfo == null) return;
-            app.callback.onNotificationSent(callbackInfo.address, callbackInfo.status);
-        }
+        app.setCongested(connId, congested);
+        if (!congested) drainCongestionQueue(app, connId);
+    }
+
+    /**
+     * Delivers callbacks held back while a server connection was congested.
+     */
+    private void drainCongestionQueue(final ServerMap.App app, final int connId) {
+        Handler handler = mCongestionHandler;
+        if (handler == null) return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                CallbackInfo callbackInfo;
+                while ((callbackInfo = app.popQueuedCallback(connId)) != null) {
+                    try {
+                        app.callback.onNotificationSent(callbackInfo.address,
+                                callbackInfo.status);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Exception: " + e);
+                    }
+                }
+            }
+        });
     }
 
     void onMtuChanged(int connId, int mtu) throws RemoteException {
@@ -2046,6 +2150,8 @@ public class GattService extends ProfileService {
             gattServerSendResponseNative(serverIf, connId, requestId, (byte)status,
                                      handle, offset, value, (byte)0);
         }
+        // The app answered itself, so a value it notified earlier may be stale
+        if (handle != 0) mHandleMap.invalidateValue(handle);
         mHandleMap.deleteRequest(requestId);
     }
 
@@ -2065,6 +2171,7 @@ public class GattService extends ProfileService {
 
         Integer connId = mServerMap.connIdByAddress(serverIf, address);
         if (connId == null) return;
+        mHandleMap.setCachedValue(charHandle, address, value);
         if (confirm) {
             gattServerSendIndicationNative(serverIf, charHandle, connId, value);
         } else {
@@ -2120,8 +2227,8 @@ public class GattService extends ProfileService {
     }
 
     private void continueSearch(int connId, int status) throws RemoteException {
-        if (status == 0 && !mSearchQueue.isEmpty()) {
-            SearchQueue.Entry svc = mSearchQueue.pop();
+        if (status == 0 && !mSearchQueue.isEmpty(connId)) {
+            SearchQueue.Entry svc = mSearchQueue.pop(connId);
 
             if (svc.charUuidLsb == 0) {
                 // Characteristic is up next
@@ -2134,13 +2241,70 @@ public class GattService extends ProfileService {
                     svc.charInstId, svc.charUuidLsb, svc.charUuidMsb, 0, 0, 0);
             }
         } else {
+            mSearchQueue.removeConnId(connId);
+            String address = mClientMap.addressByConnId(connId);
+            mDiscoveryCache.endDiscovery(connId, address, status == 0 && isBonded(address));
+
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
-                app.callback.onSearchComplete(mClientMap.addressByConnId(connId), status);
+                app.callback.onSearchComplete(address, status);
             }
         }
     }
 
+    private boolean isBonded(String address) {
+        if (address == null) return false;
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return device.getBondState() == BluetoothDevice.BOND_BONDED;
+    }
+
+    /**
+     * Reports a cached attribute table to an app in the same order as a
+     * discovery through the native stack would.
+     */
+    private void replayDiscovery(final ClientMap.App app, final String address,
+            DiscoveryCache.Database database) throws RemoteException {
+        if (DBG) Log.d(TAG, "replayDiscovery() - address=" + address
+            + ", services=" + database.services.size());
+
+        DiscoveryCache.replay(database, new DiscoveryCache.ReplayCallback() {
+            @Override
+            public void onService(DiscoveryCache.Service service) throws RemoteException {
+                app.callback.onGetService(address, service.type, service.instId,
+                                            new ParcelUuid(service.uuid));
+            }
+
+            @Override
+            public void onCharacteristic(DiscoveryCache.Service service,
+                    DiscoveryCache.Characteristic characteristic) throws RemoteException {
+                app.callback.onGetCharacteristic(address, service.type,
+                            service.instId, new ParcelUuid(service.uuid),
+                            characteristic.instId, new ParcelUuid(characteristic.uuid),
+                            characteristic.properties);
+            }
+
+            @Override
+            public void onIncludedService(DiscoveryCache.Service service,
+                    DiscoveryCache.Service included) throws RemoteException {
+                app.callback.onGetIncludedService(address,
+                    service.type, service.instId, new ParcelUuid(service.uuid),
+                    included.type, included.instId, new ParcelUuid(included.uuid));
+            }
+
+            @Override
+            public void onDescriptor(DiscoveryCache.Service service,
+                    DiscoveryCache.Characteristic characteristic,
+                    DiscoveryCache.Descriptor descriptor) throws RemoteException {
+                app.callback.onGetDescriptor(address, service.type,
+                            service.instId, new ParcelUuid(service.uuid),
+                            characteristic.instId, new ParcelUuid(characteristic.uuid),
+                            descriptor.instId, new ParcelUuid(descriptor.uuid));
+            }
+        });
+
+        app.callback.onSearchComplete(address, BluetoothGatt.GATT_SUCCESS);
+    }
+
     private void continueServiceDeclaration(int serverIf, int status, int srvcHandle) throws RemoteException {
         if (mServiceDeclarations.size() == 0) return;
         if (DBG) Log.d(TAG, "continueServiceDeclaration() - srvcHandle=" + srvcHandle);
@@ -2264,36 +2428,6 @@ public class GattService extends ProfileService {
         }
     }
 
-    private List<UUID> parseUuids(byte[] adv_data) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while(offset < (adv_data.length-2)) {
-            int len = adv_data[offset++];
-            if (len == 0) break;
-
-            int type = adv_data[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = adv_data[offset++];
-                        uuid16 += (adv_data[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format(
-                            "%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-
-                default:
-                    offset += (len - 1);
-                    break;
-            }
-        }
-
-        return uuids;
-    }
-
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
@@ -15,6 +15,7 @@
  */
 package com.android.bluetooth.gatt;
 
+import android.os.SystemProperties;
 import android.util.Log;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -32,6 +33,15 @@ class HandleMap {
     public static final int TYPE_CHARACTERISTIC = 2;
     public static final int TYPE_DESCRIPTOR = 3;
 
+    /**
+     * When set, a characteristic value a server app has pushed to a remote
+     * device through a notification or indication is kept and used to
+     * answer that device's reads without calling back into the app.
+     * Values the app returns from read requests are never cached.
+     */
+    static final boolean CACHE_NOTIFIED_VALUES =
+            SystemProperties.getBoolean("persist.bt.gatt.server_read_cache", false);
+
     class Entry {
         int serverIf = 0;
         int type = TYPE_UNDEFINED;
@@ -87,59 +97,112 @@ class HandleMap {
     List<Entry> mEntries = null;
     Map<Integer, Integer> mRequestMap = null;
     int mLastCharacteristic = 0;
+    final boolean mCacheValues;
+
+    /* Lookup indexes over mEntries, kept in step by the add and delete methods */
+    Map<Integer, Entry> mEntriesByHandle = null;
+    Map<UUID, List<Entry>> mServicesByUuid = null;
+    Map<Integer, List<Entry>> mCharacteristicsByService = null;
+
+    /* Last notified value per characteristic handle and remote address. Values are
+     * set from app binder threads and dropped from the callback thread, so all access
+     * is synchronized on the map. */
+    final Map<Integer, Map<String, byte[]>> mCachedValues =
+            new HashMap<Integer, Map<String, byte[]>>();
 
     HandleMap() {
+        this(CACHE_NOTIFIED_VALUES);
+    }
+
+    HandleMap(boolean cacheValues) {
+        mCacheValues = cacheValues;
         mEntries = new ArrayList<Entry>();
         mRequestMap = new HashMap<Integer, Integer>();
+        mEntriesByHandle = new HashMap<Integer, Entry>();
+        mServicesByUuid = new HashMap<UUID, List<Entry>>();
+        mCharacteristicsByService = new HashMap<Integer, List<Entry>>();
     }
 
     void clear() {
         mEntries.clear();
         mRequestMap.clear();
+        mEntriesByHandle.clear();
+        mServicesByUuid.clear();
+        mCharacteristicsByService.clear();
+        synchronized (mCachedValues) {
+            mCachedValues.clear();
+        }
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
         boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
+        add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
     }
 
-    void setStarted(int serverIf, int handle, boolean started) {
-        for(Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE ||
-                entry.serverIf != serverIf ||
-                entry.handle != handle)
-                continue;
+    private void add(Entry entry) {
+        mEntries.add(entry);
+        // The first entry added for a handle wins, as with the list scan
+        if (!mEntriesByHandle.containsKey(entry.handle)) {
+            mEntriesByHandle.put(entry.handle, entry);
+        }
+        if (entry.type == TYPE_SERVICE) {
+            addToIndex(mServicesByUuid, entry.uuid, entry);
+        } else if (entry.type == TYPE_CHARACTERISTIC) {
+            addToIndex(mCharacteristicsByService, entry.serviceHandle, entry);
+        }
+    }
 
-            entry.started = started;
-            return;
+    private static <K> void addToIndex(Map<K, List<Entry>> index, K key, Entry entry) {
+        List<Entry> entries = index.get(key);
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            index.put(key, entries);
         }
+        entries.add(entry);
+    }
+
+    private static <K> void removeFromIndex(Map<K, List<Entry>> index, K key, Entry entry) {
+        List<Entry> entries = index.get(key);
+        if (entries == null) return;
+        entries.remove(entry);
+        if (entries.isEmpty()) index.remove(key);
+    }
+
+    void setStarted(int serverIf, int handle, boolean started) {
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null ||
+            entry.type != TYPE_SERVICE ||
+            entry.serverIf != serverIf)
+            return;
+
+        entry.started = started;
     }
 
     Entry getByHandle(int handle) {
-        for(Entry entry : mEntries) {
-            if (entry.handle == handle)
-                return entry;
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        return entry;
     }
 
     int getServiceHandle(UUID uuid, int serviceType, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE &&
-                entry.serviceType == serviceType &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
+        List<Entry> services = mServicesByUuid.get(uuid);
+        if (services != null) {
+            for(Entry entry : services) {
+                if (entry.serviceType == serviceType &&
+                    entry.instance == instance) {
+                    return entry.handle;
+                }
             }
         }
         Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
@@ -147,12 +210,13 @@ class HandleMap {
     }
 
     int getCharacteristicHandle(int serviceHandle, UUID uuid, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_CHARACTERISTIC &&
-                entry.serviceHandle == serviceHandle &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
+        List<Entry> characteristics = mCharacteristicsByService.get(serviceHandle);
+        if (characteristics != null) {
+            for(Entry entry : characteristics) {
+                if (entry.instance == instance &&
+                    entry.uuid.equals(uuid)) {
+                    return entry.handle;
+                }
             }
         }
         Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
@@ -166,8 +230,18 @@ class HandleMap {
             if (entry.serverIf != serverIf) continue;
 
             if (entry.handle == serviceHandle ||
-                entry.serviceHandle == serviceHandle)
+                entry.serviceHandle == serviceHandle) {
                 it.remove();
+                if (mEntriesByHandle.get(entry.handle) == entry) {
+                    mEntriesByHandle.remove(entry.handle);
+                }
+                if (entry.type == TYPE_SERVICE) {
+                    removeFromIndex(mServicesByUuid, entry.uuid, entry);
+                } else if (entry.type == TYPE_CHARACTERISTIC) {
+                    removeFromIndex(mCharacteristicsByService, entry.serviceHandle, entry);
+                    invalidateValue(entry.handle);
+                }
+            }
         }
     }
 
@@ -183,6 +257,65 @@ class HandleMap {
         mRequestMap.remove(requestId);
     }
 
+    /**
+     * Returns the value last notified to the given device for a
+     * characteristic, or null if reads must go to the server app.
+     */
+    byte[] getCachedValue(int handle, String address) {
+        if (!mCacheValues) return null;
+        synchronized (mCachedValues) {
+            Map<String, byte[]> values = mCachedValues.get(handle);
+            return (values == null) ? null : values.get(address);
+        }
+    }
+
+    /**
+     * Keeps a value the server app notified to the given device.
+     */
+    void setCachedValue(int handle, String address, byte[] value) {
+        if (!mCacheValues) return;
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null || entry.type != TYPE_CHARACTERISTIC) return;
+        if (value == null) {
+            invalidateValue(handle);
+            return;
+        }
+        synchronized (mCachedValues) {
+            Map<String, byte[]> values = mCachedValues.get(handle);
+            if (values == null) {
+                values = new HashMap<String, byte[]>();
+                mCachedValues.put(handle, values);
+            }
+            values.put(address, value.clone());
+        }
+    }
+
+    /**
+     * Drops the cached values of a characteristic for all devices, e.g.
+     * when it is written or the app answers a request for it itself.
+     */
+    void invalidateValue(int handle) {
+        if (!mCacheValues) return;
+        synchronized (mCachedValues) {
+            mCachedValues.remove(handle);
+        }
+    }
+
+    /**
+     * Drops every value cached for a device that disconnected.
+     */
+    void invalidateAddress(String address) {
+        if (!mCacheValues) return;
+        synchronized (mCachedValues) {
+            for (Iterator<Map<String, byte[]>> it = mCachedValues.values().iterator();
+                    it.hasNext();) {
+                Map<String, byte[]> values = it.next();
+                values.remove(address);
+                if (values.isEmpty()) it.remove();
+            }
+        }
+    }
+
     Entry getByRequestId(int requestId) {
         Integer handle = mRequestMap.get(requestId);
         if (handle == null) {
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.gatt;
+
+import android.os.SystemProperties;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Suppresses repeated advertisements for a scan client. An advertisement is
+ * a duplicate if the same device sent the same payload within the time to
+ * live and its RSSI moved by less than the threshold since it was last
+ * forwarded. The most recently seen advertisements are kept in a bounded
+ * LRU.
+ *
+ * Disabled unless persist.bt.scan.dedup_ttl_ms is set above 0.
+ *
+ * @hide
+ */
+/* package */class ScanDuplicateFilter {
+    static final long TTL_MILLIS = SystemProperties.getLong("persist.bt.scan.dedup_ttl_ms", 0);
+    static final int RSSI_THRESHOLD = SystemProperties.getInt("persist.bt.scan.dedup_rssi", 6);
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static class Key {
+        final String address;
+        final int payloadHash;
+
+        Key(String address, int payloadHash) {
+            this.address = address;
+            this.payloadHash = payloadHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return payloadHash == other.payloadHash && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, payloadHash);
+        }
+    }
+
+    private static class Entry {
+        long forwardedAt;
+        int rssi;
+    }
+
+    private final long mTtlMillis;
+    private final int mRssiThreshold;
+    private final LinkedHashMap<Key, Entry> mEntries;
+
+    /**
+     * Returns a filter configured from the system properties, or null if
+     * deduplication is disabled.
+     */
+    static ScanDuplicateFilter create() {
+        if (TTL_MILLIS <= 0) return null;
+        return new ScanDuplicateFilter(TTL_MILLIS, RSSI_THRESHOLD, MAX_ENTRIES);
+    }
+
+    ScanDuplicateFilter(long ttlMillis, int rssiThreshold, final int maxEntries) {
+        mTtlMillis = ttlMillis;
+        mRssiThreshold = rssiThreshold;
+        mEntries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns true if the advertisement should not be forwarded. Otherwise
+     * records it as forwarded at nowMillis.
+     */
+    synchronized boolean isDuplicate(String address, byte[] advData, int rssi,
+            long nowMillis) {
+        Key key = new Key(address, Arrays.hashCode(advData));
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        } else if (nowMillis - entry.forwardedAt < mTtlMillis
+                && Math.abs(rssi - entry.rssi) < mRssiThreshold) {
+            return true;
+        }
+        entry.forwardedAt = nowMillis;
+        entry.rssi = rssi;
+        return false;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Immutable lookup structure over the filters of the regular scan clients.
+ *
+ * Every ScanFilter is filed under its most selective exact key: device
+ * address, then manufacturer id, then unmasked service UUID. Filters without
+ * such a key, and clients without filters, are kept in a list that is
+ * checked for every result. Matching an advertisement only visits the
+ * filters filed under the keys it actually carries, and each candidate is
+ * still confirmed with {@link ScanFilter#matches} so the outcome is the same
+ * as checking every filter of every client.
+ *
+ * @hide
+ */
+/* package */class ScanFilterIndex {
+    static final ScanFilterIndex EMPTY =
+            new ScanFilterIndex(Collections.<ScanClient>emptyList());
+
+    private static class Entry {
+        final ScanClient client;
+        // null if the client accepts any result
+        final ScanFilter filter;
+
+        Entry(ScanClient client, ScanFilter filter) {
+            this.client = client;
+            this.filter = filter;
+        }
+    }
+
+    private final HashMap<String, List<Entry>> mByAddress = new HashMap<String, List<Entry>>();
+    private final SparseArray<List<Entry>> mByManufacturer = new SparseArray<List<Entry>>();
+    private final HashMap<UUID, List<Entry>> mByServiceUuid = new HashMap<UUID, List<Entry>>();
+    private final List<Entry> mUnindexed = new ArrayList<Entry>();
+    private final int mClientCount;
+    private final boolean mHasLegacyUuids;
+
+    ScanFilterIndex(Collection<ScanClient> clients) {
+        boolean hasLegacyUuids = false;
+        for (ScanClient client : clients) {
+            if (client.uuids.length > 0) {
+                hasLegacyUuids = true;
+            }
+            // Server scans have never been subject to ScanFilters.
+            if (client.isServer || client.filters == null || client.filters.isEmpty()) {
+                mUnindexed.add(new Entry(client, null));
+                continue;
+            }
+            for (ScanFilter filter : client.filters) {
+                add(new Entry(client, filter));
+            }
+        }
+        mClientCount = clients.size();
+        mHasLegacyUuids = hasLegacyUuids;
+    }
+
+    private void add(Entry entry) {
+        ScanFilter filter = entry.filter;
+        if (filter.getDeviceAddress() != null) {
+            addTo(mByAddress, filter.getDeviceAddress(), entry);
+        } else if (filter.getManufacturerId() >= 0) {
+            List<Entry> entries = mByManufacturer.get(filter.getManufacturerId());
+            if (entries == null) {
+                entries = new ArrayList<Entry>();
+                mByManufacturer.put(filter.getManufacturerId(), entries);
+            }
+            entries.add(entry);
+        } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+            addTo(mByServiceUuid, filter.getServiceUuid().getUuid(), entry);
+        } else {
+            mUnindexed.add(entry);
+        }
+    }
+
+    private static <K> void addTo(HashMap<K, List<Entry>> map, K key, Entry entry) {
+        List<Entry> entries = map.get(key);
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            map.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+    boolean isEmpty() {
+        return mClientCount == 0;
+    }
+
+    /**
+     * Returns the clients that should receive the given result, each at most
+     * once. advData is the raw advertisement the result was parsed from.
+     */
+    List<ScanClient> match(ScanResult result, byte[] advData) {
+        List<ScanClient> matched = new ArrayList<ScanClient>();
+        if (isEmpty()) {
+            return matched;
+        }
+        // Only parsed when a candidate client asked for legacy service UUIDs
+        List<UUID> legacyUuids = null;
+
+        List<List<Entry>> candidates = new ArrayList<List<Entry>>();
+        candidates.add(mUnindexed);
+        addCandidates(candidates, mByAddress.get(result.getDevice().getAddress()));
+        ScanRecord record = result.getScanRecord();
+        if (record != null) {
+            SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
+            if (manufacturerData != null && mByManufacturer.size() > 0) {
+                for (int i = 0; i < manufacturerData.size(); i++) {
+                    addCandidates(candidates, mByManufacturer.get(manufacturerData.keyAt(i)));
+                }
+            }
+            List<ParcelUuid> serviceUuids = record.getServiceUuids();
+            if (serviceUuids != null && !mByServiceUuid.isEmpty()) {
+                for (ParcelUuid uuid : serviceUuids) {
+                    addCandidates(candidates, mByServiceUuid.get(uuid.getUuid()));
+                }
+            }
+        }
+
+        for (List<Entry> entries : candidates) {
+            for (Entry entry : entries) {
+                ScanClient client = entry.client;
+                if (matched.contains(client)) continue;
+                if (entry.filter != null && !entry.filter.matches(result)) continue;
+                if (client.uuids.length > 0) {
+                    if (legacyUuids == null) {
+                        legacyUuids = parseUuids(advData);
+                    }
+                    if (!containsAll(legacyUuids, client.uuids)) continue;
+                }
+                matched.add(client);
+            }
+        }
+        return matched;
+    }
+
+    private static void addCandidates(List<List<Entry>> candidates, List<Entry> entries) {
+        if (entries != null) {
+            candidates.add(entries);
+        }
+    }
+
+    private static boolean containsAll(List<UUID> remoteUuids, UUID[] searchUuids) {
+        for (UUID search : searchUuids) {
+            if (!remoteUuids.contains(search)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Extracts the 16-bit service UUIDs legacy (UUID[] based) scans filter on.
+    static List<UUID> parseUuids(byte[] adv_data) {
+        List<UUID> uuids = new ArrayList<UUID>();
+
+        int offset = 0;
+        while(offset < (adv_data.length-2)) {
+            int len = adv_data[offset++];
+            if (len == 0) break;
+
+            int type = adv_data[offset++];
+            switch (type) {
+                case 0x02: // Partial list of 16-bit UUIDs
+                case 0x03: // Complete list of 16-bit UUIDs
+                    while (len > 1) {
+                        int uuid16 = adv_data[offset++];
+                        uuid16 += (adv_data[offset++] << 8);
+                        len -= 2;
+                        uuids.add(UUID.fromString(String.format(
+                            "%08x-0000-1000-8000-00805f9b34fb", uuid16)));
+                    }
+                    break;
+
+                default:
+                    offset += (len - 1);
+                    break;
+            }
+        }
+
+        return uuids;
+    }
+}
@@ -29,6 +29,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemProperties;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -39,10 +40,10 @@ import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Class that handles Bluetooth LE scan related operations.
@@ -66,9 +67,22 @@ public class ScanManager {
     private static final String ACTION_REFRESH_BATCHED_SCAN =
             "com.android.bluetooth.gatt.REFRESH_BATCHED_SCAN";
 
+    // Controller operations, used to match completion callbacks to the commands issued.
+    static final int OP_FILTER_ENABLE = 0;
+    static final int OP_FILTER_PARAM = 1;
+    static final int OP_FILTER_CONFIG = 2;
+    static final int OP_BATCH_STORAGE = 3;
+    static final int OP_BATCH_START_STOP = 4;
+    static final int OP_BATCH_READ_REPORTS = 5;
+
     // Timeout for each controller operation.
     private static final int OPERATION_TIME_OUT_MILLIS = 500;
 
+    // Controller operations that may be outstanding before issuing another one blocks.
+    // At least one, as beginOperation() waits on the oldest outstanding operation.
+    private static final int MAX_OPERATIONS_IN_FLIGHT =
+            Math.max(1, SystemProperties.getInt("persist.bt.scan.max_in_flight", 4));
+
     private int mLastConfiguredScanSetting = Integer.MIN_VALUE;
     // Scan parameters for batch scan.
     private BatchScanParams mBatchScanParms;
@@ -81,8 +95,32 @@ public class ScanManager {
 
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
+    // Snapshot of mRegularScanClients' filters, read from the scan result callback thread.
+    private volatile ScanFilterIndex mRegularScanIndex = ScanFilterIndex.EMPTY;
+
+    /**
+     * A controller operation whose completion callback has not arrived yet.
+     */
+    private static class PendingOperation {
+        final int op;
+        final int clientIf;
+        final long issuedAt;
+        // Whether the operation adds filter parameters, taking a controller filter entry.
+        final boolean addsFilter;
+
+        PendingOperation(int op, int clientIf, long issuedAt, boolean addsFilter) {
+            this.op = op;
+            this.clientIf = clientIf;
+            this.issuedAt = issuedAt;
+            this.addsFilter = addsFilter;
+        }
+    }
+
+    // Free filter entries last reported by the controller, -1 until known.
+    private volatile int mAvailableFilterSpace = -1;
 
-    private CountDownLatch mLatch;
+    // Outstanding controller operations, oldest first.
+    private final Deque<PendingOperation> mPendingOperations = new ArrayDeque<PendingOperation>();
 
     ScanManager(GattService service) {
         mRegularScanClients = new HashSet<ScanClient>();
@@ -97,8 +135,17 @@ public class ScanManager {
         mHandler = new ClientHandler(thread.getLooper());
     }
 
+    private void updateRegularScanIndex() {
+        mRegularScanIndex = new ScanFilterIndex(mRegularScanClients);
+    }
+
     void cleanup() {
+        synchronized (mPendingOperations) {
+            mPendingOperations.clear();
+            mPendingOperations.notifyAll();
+        }
         mRegularScanClients.clear();
+        mRegularScanIndex = ScanFilterIndex.EMPTY;
         mBatchClients.clear();
         mScanNative.cleanup();
 
@@ -120,6 +167,13 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the filters of the regular scan queue, compiled for matching.
+     */
+    ScanFilterIndex getRegularScanIndex() {
+        return mRegularScanIndex;
+    }
+
     /**
      * Returns batch scan queue.
      */
@@ -154,12 +208,30 @@ public class ScanManager {
         sendMessage(MSG_FLUSH_BATCH_RESULTS, client);
     }
 
-    void callbackDone(int clientIf, int status) {
-        logd("callback done for clientIf - " + clientIf + " status - " + status);
-        if (status == 0) {
-            mLatch.countDown();
+    void callbackDone(int op, int clientIf, int status) {
+        logd("callback done for op - " + op + " clientIf - " + clientIf + " status - " + status);
+        if (status != 0) {
+            // TODO: add a callback for scan failure.
+            Log.e(TAG, "controller operation " + op + " failed for clientIf " + clientIf
+                    + ", status " + status);
         }
-        // TODO: add a callback for scan failure.
+        synchronized (mPendingOperations) {
+            Iterator<PendingOperation> i = mPendingOperations.iterator();
+            while (i.hasNext()) {
+                PendingOperation pending = i.next();
+                if (pending.op == op && pending.clientIf == clientIf) {
+                    i.remove();
+                    mPendingOperations.notifyAll();
+                    return;
+                }
+            }
+        }
+        logd("no pending operation " + op + " for clientIf " + clientIf);
+    }
+
+    void filterSpaceUpdated(int availableSpace) {
+        logd("available filter space - " + availableSpace);
+        mAvailableFilterSpace = availableSpace;
     }
 
     private void sendMessage(int what, ScanClient client) {
@@ -218,7 +290,9 @@ public class ScanManager {
                 mBatchClients.add(client);
                 mScanNative.startBatchScan(client);
             } else {
+                client.duplicateFilter = ScanDuplicateFilter.create();
                 mRegularScanClients.add(client);
+                updateRegularScanIndex();
                 mScanNative.startRegularScan(client);
                 mScanNative.configureRegularScanParams();
             }
@@ -298,6 +372,55 @@ public class ScanManager {
         }
     }
 
+    /**
+     * Identifies a controller filter that can be shared by every client
+     * registering the same ScanFilter with the same delivery parameters.
+     */
+    private static class FilterSlotKey {
+        final ScanFilter filter;
+        final int deliveryMode;
+        final int timeout;
+
+        FilterSlotKey(ScanFilter filter, int deliveryMode, int timeout) {
+            this.filter = filter;
+            this.deliveryMode = deliveryMode;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            FilterSlotKey other = (FilterSlotKey) obj;
+            return deliveryMode == other.deliveryMode && timeout == other.timeout
+                    && Objects.equals(filter, other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(filter, deliveryMode, timeout);
+        }
+    }
+
+    /**
+     * A controller filter index and the number of client filters using it.
+     */
+    private static class FilterSlot {
+        final int filterIndex;
+        // null if the slot cannot be shared
+        final FilterSlotKey key;
+        int refCount = 1;
+
+        FilterSlot(int filterIndex, FilterSlotKey key) {
+            this.filterIndex = filterIndex;
+            this.key = key;
+        }
+    }
+
     private class ScanNative {
 
         // Delivery mode defined in bt stack.
@@ -341,6 +464,11 @@ public class ScanManager {
         private final Deque<Integer> mFilterIndexStack;
         // Map of clientIf and Filter indices used by client.
         private final Map<Integer, Deque<Integer>> mClientFilterIndexMap;
+        // Filter indices in use, with the number of client filters sharing each.
+        private final Map<Integer, FilterSlot> mFilterSlots = new HashMap<Integer, FilterSlot>();
+        // Shareable filter indices by the filter and parameters they were configured with.
+        private final Map<FilterSlotKey, FilterSlot> mSharedFilterSlots =
+                new HashMap<FilterSlotKey, FilterSlot>();
         // Keep track of the clients that uses ALL_PASS filters.
         private final Set<Integer> mAllPassRegularClients = new HashSet<>();
         private final Set<Integer> mAllPassBatchClients = new HashSet<>();
@@ -377,17 +505,45 @@ public class ScanManager {
             mBatchAlarmReceiverRegistered = true;
         }
 
-        private void resetCountDownLatch() {
-            mLatch = new CountDownLatch(1);
+        // Records a controller operation about to be issued. The controller runs
+        // operations in order, so several may be outstanding; this only blocks while
+        // MAX_OPERATIONS_IN_FLIGHT are, and for at most OPERATION_TIME_OUT_MILLIS.
+        private void beginOperation(int op, int clientIf) {
+            beginOperation(op, clientIf, false);
         }
 
-        // Returns true if mLatch reaches 0, false if timeout or interrupted.
-        private boolean waitForCallback() {
-            try {
-                return mLatch.await(OPERATION_TIME_OUT_MILLIS, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                return false;
+        private void beginOperation(int op, int clientIf, boolean addsFilter) {
+            synchronized (mPendingOperations) {
+                while (mPendingOperations.size() >= MAX_OPERATIONS_IN_FLIGHT) {
+                    PendingOperation oldest = mPendingOperations.peekFirst();
+                    long waitMillis = oldest.issuedAt + OPERATION_TIME_OUT_MILLIS
+                            - SystemClock.elapsedRealtime();
+                    if (waitMillis <= 0) {
+                        Log.w(TAG, "timed out waiting for operation " + oldest.op
+                                + " on clientIf " + oldest.clientIf);
+                        mPendingOperations.removeFirst();
+                        continue;
+                    }
+                    try {
+                        mPendingOperations.wait(waitMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                mPendingOperations.addLast(new PendingOperation(op, clientIf,
+                        SystemClock.elapsedRealtime(), addsFilter));
+            }
+        }
+
+        // Filter entries taken by operations the controller has not reported space for yet.
+        private int getPendingFilterAdds() {
+            int count = 0;
+            synchronized (mPendingOperations) {
+                for (PendingOperation pending : mPendingOperations) {
+                    if (pending.addsFilter) count++;
+                }
             }
+            return count;
         }
 
         void configureRegularScanParams() {
@@ -453,7 +609,7 @@ public class ScanManager {
 
         void startRegularScan(ScanClient client) {
             if (isFilteringSupported() && mFilterIndexStack.isEmpty() &&
-                    mClientFilterIndexMap.isEmpty()) {
+                    mFilterSlots.isEmpty()) {
                 initFilterIndexStack();
             }
             if (isFilteringSupported()) {
@@ -466,7 +622,7 @@ public class ScanManager {
         }
 
         void startBatchScan(ScanClient client) {
-            if (mFilterIndexStack.isEmpty() && isFilteringSupported()) {
+            if (mFilterIndexStack.isEmpty() && mFilterSlots.isEmpty() && isFilteringSupported()) {
                 initFilterIndexStack();
             }
             configureScanFilters(client);
@@ -480,9 +636,8 @@ public class ScanManager {
             // Stop batch if batch scan params changed and previous params is not null.
             if (mBatchScanParms != null && (!mBatchScanParms.equals(batchScanParams))) {
                 logd("stopping BLe Batch");
-                resetCountDownLatch();
+                beginOperation(OP_BATCH_START_STOP, clientIf);
                 gattClientStopBatchScanNative(clientIf);
-                waitForCallback();
                 // Clear pending results as it's illegal to config storage if there are still
                 // pending results.
                 flushBatchResults(clientIf);
@@ -493,19 +648,17 @@ public class ScanManager {
                 logd("Starting BLE batch scan");
                 int resultType = getResultType(batchScanParams);
                 int fullScanPercent = getFullScanStoragePercent(resultType);
-                resetCountDownLatch();
                 logd("configuring batch scan storage, appIf " + client.clientIf);
+                beginOperation(OP_BATCH_STORAGE, client.clientIf);
                 gattClientConfigBatchScanStorageNative(client.clientIf, fullScanPercent,
                         100 - fullScanPercent, notifyThreshold);
-                waitForCallback();
-                resetCountDownLatch();
                 int scanInterval =
                         Utils.millsToUnit(getBatchScanIntervalMillis(batchScanParams.scanMode));
                 int scanWindow =
                         Utils.millsToUnit(getBatchScanWindowMillis(batchScanParams.scanMode));
+                beginOperation(OP_BATCH_START_STOP, clientIf);
                 gattClientStartBatchScanNative(clientIf, resultType, scanInterval,
                         scanWindow, 0, DISCARD_OLDEST_WHEN_BUFFER_FULL);
-                waitForCallback();
             }
             mBatchScanParms = batchScanParams;
             setBatchAlarm();
@@ -590,6 +743,7 @@ public class ScanManager {
             // Remove scan filters and recycle filter indices.
             removeScanFilters(client.clientIf);
             mRegularScanClients.remove(client);
+            updateRegularScanIndex();
             if (mRegularScanClients.isEmpty()) {
                 logd("stop scan");
                 gattClientScanNative(false);
@@ -605,16 +759,14 @@ public class ScanManager {
         void flushBatchResults(int clientIf) {
             logd("flushPendingBatchResults - clientIf = " + clientIf);
             if (mBatchScanParms.fullScanClientIf != -1) {
-                resetCountDownLatch();
+                beginOperation(OP_BATCH_READ_REPORTS, mBatchScanParms.fullScanClientIf);
                 gattClientReadScanReportsNative(mBatchScanParms.fullScanClientIf,
                         SCAN_RESULT_TYPE_FULL);
-                waitForCallback();
             }
             if (mBatchScanParms.truncatedScanClientIf != -1) {
-                resetCountDownLatch();
+                beginOperation(OP_BATCH_READ_REPORTS, mBatchScanParms.truncatedScanClientIf);
                 gattClientReadScanReportsNative(mBatchScanParms.truncatedScanClientIf,
                         SCAN_RESULT_TYPE_TRUNCATED);
-                waitForCallback();
             }
             setBatchAlarm();
         }
@@ -642,56 +794,109 @@ public class ScanManager {
         // Add scan filters. The logic is:
         // If no offload filter can/needs to be set, set ALL_PASS filter.
         // Otherwise offload all filters to hardware and enable all filters.
+        // Filters identical to one already offloaded by another client share its index.
         private void configureScanFilters(ScanClient client) {
             int clientIf = client.clientIf;
             int deliveryMode = getDeliveryMode(client);
-            if (!shouldAddAllPassFilterToController(client, deliveryMode)) {
+            boolean useAllPass = shouldUseAllPassFilter(client);
+            if (!useAllPass && !hasFilterSlotsFor(client, deliveryMode)) {
+                // Results are still filtered on the host, at the cost of more wakeups.
+                Log.w(TAG, "Out of hardware filters, using ALL_PASS filter for " + clientIf);
+                useAllPass = true;
+            }
+            if (useAllPass && !shouldAddAllPassFilterToController(client, deliveryMode)) {
                 return;
             }
 
-            resetCountDownLatch();
+            beginOperation(OP_FILTER_ENABLE, clientIf);
             gattClientScanFilterEnableNative(clientIf, true);
-            waitForCallback();
 
-            if (shouldUseAllPassFilter(client)) {
+            if (useAllPass) {
                 int filterIndex = (deliveryMode == DELIVERY_MODE_BATCH) ?
                         ALL_PASS_FILTER_INDEX_BATCH_SCAN : ALL_PASS_FILTER_INDEX_REGULAR_SCAN;
-                resetCountDownLatch();
                 configureFilterParamter(clientIf, client, ALL_PASS_FILTER_SELECTION, filterIndex);
-                waitForCallback();
             } else {
                 Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
-                int featureSelection;
-                int filterIndex;
                 for (ScanFilter filter : client.filters) {
-                    ScanFilterQueue queue = new ScanFilterQueue();
-                    if (null != queue) {
-                        queue.addScanFilter(filter);
-                        featureSelection = queue.getFeatureSelection();
-                        filterIndex = mFilterIndexStack.pop();
-                        while (!queue.isEmpty()) {
-                            resetCountDownLatch();
-                            addFilterToController(clientIf, queue.pop(), filterIndex);
-                            waitForCallback();
-                        }
-                        resetCountDownLatch();
-                        configureFilterParamter(clientIf, client, featureSelection, filterIndex);
-                        waitForCallback();
-                        clientFilterIndices.add(filterIndex);
-                    }
+                    clientFilterIndices.add(acquireFilterSlot(client, filter, deliveryMode));
                 }
                 mClientFilterIndexMap.put(clientIf, clientFilterIndices);
             }
         }
 
-        // Check whether the filter should be added to controller.
-        // Note only on ALL_PASS filter should be added.
-        private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode) {
-            // Not an ALL_PASS client, need to add filter.
-            if (!shouldUseAllPassFilter(client)) {
-                return true;
+        // Found/lost events are reported per filter index to the client that configured it,
+        // so only filters delivered immediately or in batches can be shared.
+        private FilterSlotKey getFilterSlotKey(ScanClient client, ScanFilter filter,
+                int deliveryMode) {
+            if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
+                return null;
             }
+            return new FilterSlotKey(filter, deliveryMode, getOnfoundLostTimeout(client));
+        }
 
+        // Check whether the controller has room for the filters of the client that cannot
+        // share an existing index. The reported space does not yet count filter parameter
+        // adds still in flight, so those are taken off it.
+        private boolean hasFilterSlotsFor(ScanClient client, int deliveryMode) {
+            Set<FilterSlotKey> newKeys = new HashSet<FilterSlotKey>();
+            int needed = 0;
+            for (ScanFilter filter : client.filters) {
+                FilterSlotKey key = getFilterSlotKey(client, filter, deliveryMode);
+                if (key == null) {
+                    needed++;
+                } else if (!mSharedFilterSlots.containsKey(key) && newKeys.add(key)) {
+                    needed++;
+                }
+            }
+            if (needed > mFilterIndexStack.size()) {
+                return false;
+            }
+            int availableSpace = mAvailableFilterSpace;
+            return availableSpace < 0 || needed <= availableSpace - getPendingFilterAdds();
+        }
+
+        private int acquireFilterSlot(ScanClient client, ScanFilter filter, int deliveryMode) {
+            FilterSlotKey key = getFilterSlotKey(client, filter, deliveryMode);
+            FilterSlot slot = (key == null) ? null : mSharedFilterSlots.get(key);
+            if (slot != null) {
+                slot.refCount++;
+                logd("sharing filter index " + slot.filterIndex + " with " + client.clientIf);
+                return slot.filterIndex;
+            }
+
+            ScanFilterQueue queue = new ScanFilterQueue();
+            queue.addScanFilter(filter);
+            int featureSelection = queue.getFeatureSelection();
+            int filterIndex = mFilterIndexStack.pop();
+            while (!queue.isEmpty()) {
+                addFilterToController(client.clientIf, queue.pop(), filterIndex);
+            }
+            configureFilterParamter(client.clientIf, client, featureSelection, filterIndex);
+
+            slot = new FilterSlot(filterIndex, key);
+            mFilterSlots.put(filterIndex, slot);
+            if (key != null) {
+                mSharedFilterSlots.put(key, slot);
+            }
+            return filterIndex;
+        }
+
+        // Returns true if nobody uses the filter index any more.
+        private boolean releaseFilterSlot(int filterIndex) {
+            FilterSlot slot = mFilterSlots.get(filterIndex);
+            if (slot != null && --slot.refCount > 0) {
+                return false;
+            }
+            mFilterSlots.remove(filterIndex);
+            if (slot != null && slot.key != null) {
+                mSharedFilterSlots.remove(slot.key);
+            }
+            return true;
+        }
+
+        // Check whether the ALL_PASS filter should be added to controller.
+        // Note only on ALL_PASS filter should be added.
+        private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode) {
             if (deliveryMode == DELIVERY_MODE_BATCH) {
                 mAllPassBatchClients.add(client.clientIf);
                 return mAllPassBatchClients.size() == 1;
@@ -704,11 +909,11 @@ public class ScanManager {
         private void removeScanFilters(int clientIf) {
             Deque<Integer> filterIndices = mClientFilterIndexMap.remove(clientIf);
             if (filterIndices != null) {
-                mFilterIndexStack.addAll(filterIndices);
                 for (Integer filterIndex : filterIndices) {
-                    resetCountDownLatch();
+                    if (!releaseFilterSlot(filterIndex)) continue;
+                    mFilterIndexStack.add(filterIndex);
+                    beginOperation(OP_FILTER_PARAM, clientIf);
                     gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                    waitForCallback();
                 }
             }
             // Remove if ALL_PASS filters are used.
@@ -725,9 +930,8 @@ public class ScanManager {
             clients.remove(clientIf);
             // Remove ALL_PASS filter iff no app is using it.
             if (clients.isEmpty()) {
-                resetCountDownLatch();
+                beginOperation(OP_FILTER_PARAM, clientIf);
                 gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                waitForCallback();
             }
         }
 
@@ -773,12 +977,14 @@ public class ScanManager {
             switch (entry.type) {
                 case ScanFilterQueue.TYPE_DEVICE_ADDRESS:
                     logd("add address " + entry.address);
+                    beginOperation(OP_FILTER_CONFIG, clientIf);
                     gattClientScanFilterAddNative(clientIf, entry.type, filterIndex, 0, 0, 0, 0, 0,
                             0,
                             "", entry.address, (byte) 0, new byte[0], new byte[0]);
                     break;
 
                 case ScanFilterQueue.TYPE_SERVICE_DATA:
+                    beginOperation(OP_FILTER_CONFIG, clientIf);
                     gattClientScanFilterAddNative(clientIf, entry.type, filterIndex, 0, 0, 0, 0, 0,
                             0,
                             "", "", (byte) 0, entry.data, entry.data_mask);
@@ -786,6 +992,7 @@ public class ScanManager {
 
                 case ScanFilterQueue.TYPE_SERVICE_UUID:
                 case ScanFilterQueue.TYPE_SOLICIT_UUID:
+                    beginOperation(OP_FILTER_CONFIG, clientIf);
                     gattClientScanFilterAddNative(clientIf, entry.type, filterIndex, 0, 0,
                             entry.uuid.getLeastSignificantBits(),
                             entry.uuid.getMostSignificantBits(),
@@ -796,6 +1003,7 @@ public class ScanManager {
 
                 case ScanFilterQueue.TYPE_LOCAL_NAME:
                     logd("adding filters: " + entry.name);
+                    beginOperation(OP_FILTER_CONFIG, clientIf);
                     gattClientScanFilterAddNative(clientIf, entry.type, filterIndex, 0, 0, 0, 0, 0,
                             0,
                             entry.name, "", (byte) 0, new byte[0], new byte[0]);
@@ -805,6 +1013,7 @@ public class ScanManager {
                     int len = entry.data.length;
                     if (entry.data_mask.length != len)
                         return;
+                    beginOperation(OP_FILTER_CONFIG, clientIf);
                     gattClientScanFilterAddNative(clientIf, entry.type, filterIndex, entry.company,
                             entry.company_mask, 0, 0, 0, 0, "", "", (byte) 0,
                             entry.data, entry.data_mask);
@@ -832,6 +1041,7 @@ public class ScanManager {
             int deliveryMode = getDeliveryMode(client);
             int rssiThreshold = Byte.MIN_VALUE;
             int timeout = getOnfoundLostTimeout(client);
+            beginOperation(OP_FILTER_PARAM, clientIf, true);
             gattClientScanFilterParamAddNative(
                     clientIf, filterIndex, featureSelection, LIST_LOGIC_TYPE,
                     FILTER_LOGIC_TYPE, rssiThreshold, rssiThreshold, deliveryMode,
@@ -16,9 +16,9 @@
 
 package com.android.bluetooth.gatt;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Helper class to store characteristics and descriptors that will be
@@ -37,7 +37,8 @@ import java.util.List;
         public long charUuidMsb;
     }
 
-    private List<Entry> mEntries = new ArrayList<Entry>();
+    /* Pending entries per connection, so searches on different links do not mix */
+    private Map<Integer, ArrayDeque<Entry>> mEntries = new HashMap<Integer, ArrayDeque<Entry>>();
 
     void add(int connId, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb) {
@@ -48,7 +49,7 @@ import java.util.List;
         entry.srvcUuidLsb = srvcUuidLsb;
         entry.srvcUuidMsb = srvcUuidMsb;
         entry.charUuidLsb = 0;
-        mEntries.add(entry);
+        queue(connId).add(entry);
     }
 
     void add(int connId, int srvcType,
@@ -64,22 +65,32 @@ import java.util.List;
         entry.charInstId = charInstId;
         entry.charUuidLsb = charUuidLsb;
         entry.charUuidMsb = charUuidMsb;
-        mEntries.add(entry);
+        queue(connId).add(entry);
     }
 
-    Entry pop() {
-        Entry entry = mEntries.get(0);
-        mEntries.remove(0);
+    private ArrayDeque<Entry> queue(int connId) {
+        ArrayDeque<Entry> entries = mEntries.get(connId);
+        if (entries == null) {
+            entries = new ArrayDeque<Entry>();
+            mEntries.put(connId, entries);
+        }
+        return entries;
+    }
+
+    Entry pop(int connId) {
+        ArrayDeque<Entry> entries = mEntries.get(connId);
+        if (entries == null) return null;
+        Entry entry = entries.poll();
+        if (entries.isEmpty()) mEntries.remove(connId);
         return entry;
     }
 
     void removeConnId(int connId) {
-        for (Iterator<Entry> it = mEntries.iterator(); it.hasNext();) {
-            Entry entry = it.next();
-            if (entry.connId == connId) {
-                it.remove();
-            }
-        }
+        mEntries.remove(connId);
+    }
+
+    boolean isEmpty(int connId) {
+        return !mEntries.containsKey(connId);
     }
 
     boolean isEmpty() {
@@ -52,6 +52,11 @@ import android.util.Pair;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class provides a simplified interface on top of other Bluetooth service
@@ -103,6 +108,8 @@ public class BluetoothOppManager {
 
     private static final int ALLOWED_INSERT_SHARE_THREAD_NUMBER = 3;
 
+    private static final int INSERT_SHARE_KEEP_ALIVE_SECONDS = 30;
+
     // used to judge if need continue sending process after received a
     // ENABLED_ACTION
     public boolean mSendingFlag;
@@ -111,7 +118,16 @@ public class BluetoothOppManager {
 
     private int mfileNumInBatch = 1;
 
-    private int mInsertShareThreadNum = 0;
+    // Runs the share inserts one at a time, with up to
+    // ALLOWED_INSERT_SHARE_THREAD_NUMBER more waiting
+    private final ThreadPoolExecutor mInsertShareExecutor = new ThreadPoolExecutor(1, 1,
+            INSERT_SHARE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(ALLOWED_INSERT_SHARE_THREAD_NUMBER),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Insert ShareInfo Thread");
+                }
+            });
 
     // A list of devices that may send files over OPP to this device
     // without user confirmation. Used for connection handover from forex NFC.
@@ -153,6 +169,9 @@ public class BluetoothOppManager {
             if (V) Log.v(TAG, "BLUETOOTH_SERVICE is not started! ");
         }
 
+        // Don't keep the insert thread around between shares
+        mInsertShareExecutor.allowCoreThreadTimeOut(true);
+
         // Restore data from preference
         restoreApplicationData();
         isA2DPPlaying = false;
@@ -372,13 +391,18 @@ public class BluetoothOppManager {
     }
 
     /**
-     * Fork a thread to insert share info to db.
+     * Queue a task to insert share info to db.
      */
     public void startTransfer(BluetoothDevice device) {
-        if (V) Log.v(TAG, "Active InsertShareThread number is : " + mInsertShareThreadNum);
-        InsertShareInfoThread insertThread;
+        if (V) Log.v(TAG, "Active InsertShareTask number is : "
+                + (mInsertShareExecutor.getActiveCount() + mInsertShareExecutor.getQueue().size()));
         synchronized (BluetoothOppManager.this) {
-            if (mInsertShareThreadNum > ALLOWED_INSERT_SHARE_THREAD_NUMBER) {
+            InsertShareInfoTask insertTask = new InsertShareInfoTask(device, mMultipleFlag,
+                    mMimeTypeOfSendingFile, mUriOfSendingFile, mNameOfSendingFile,
+                    mMimeTypeOfSendingFiles, mUrisOfSendingFiles, mIsHandoverInitiated);
+            try {
+                mInsertShareExecutor.execute(insertTask);
+            } catch (RejectedExecutionException e) {
                 Log.e(TAG, "Too many shares user triggered concurrently!");
 
                 // Notice user
@@ -390,26 +414,21 @@ public class BluetoothOppManager {
 
                 return;
             }
-            insertThread = new InsertShareInfoThread(device, mMultipleFlag, mMimeTypeOfSendingFile,
-                    mUriOfSendingFile, mNameOfSendingFile, mMimeTypeOfSendingFiles, mUrisOfSendingFiles,
-                    mIsHandoverInitiated);
             if (mMultipleFlag) {
                 mfileNumInBatch = mUrisOfSendingFiles.size();
             }
         }
-
-        insertThread.start();
     }
 
     /**
-     * Thread to insert share info to db. In multiple files (say 100 files)
+     * Task to insert share info to db. In multiple files (say 100 files)
      * share case, the inserting share info to db operation would be a time
-     * consuming operation, so need a thread to handle it. This thread allows
-     * multiple instances to support below case: User select multiple files to
+     * consuming operation, so need a background thread to handle it. Several
+     * tasks may be queued to support below case: User select multiple files to
      * share to one device (say device 1), and then right away share to second
      * device (device 2), we need insert all these share info to db.
      */
-    private class InsertShareInfoThread extends Thread {
+    private class InsertShareInfoTask implements Runnable {
         private final BluetoothDevice mRemoteDevice;
 
         private final String mTypeOfSingleFile;
@@ -426,11 +445,10 @@ public class BluetoothOppManager {
 
         private final boolean mIsHandoverInitiated;
 
-        public InsertShareInfoThread(BluetoothDevice device, boolean multiple,
+        public InsertShareInfoTask(BluetoothDevice device, boolean multiple,
                 String typeOfSingleFile, String uri, String nameOfSingleFile,
                 String typeOfMultipleFiles, ArrayList<Uri> uris,
                 boolean handoverInitiated) {
-            super("Insert ShareInfo Thread");
             this.mRemoteDevice = device;
             this.mIsMultiple = multiple;
             this.mTypeOfSingleFile = typeOfSingleFile;
@@ -439,12 +457,6 @@ public class BluetoothOppManager {
             this.mTypeOfMultipleFiles = typeOfMultipleFiles;
             this.mUris = uris;
             this.mIsHandoverInitiated = handoverInitiated;
-
-            synchronized (BluetoothOppManager.this) {
-                mInsertShareThreadNum++;
-            }
-
-            if (V) Log.v(TAG, "Thread id is: " + this.getId());
         }
 
         @Override
@@ -463,10 +475,6 @@ public class BluetoothOppManager {
                     } else {
                         insertSingleShare();
                     }
-
-                    synchronized (BluetoothOppManager.this) {
-                        mInsertShareThreadNum--;
-                    }
                     return;
                 } else if (!isEnabled()) {
                     Log.v(TAG, "BT is OFF");
@@ -476,10 +484,12 @@ public class BluetoothOppManager {
         }
 
         /**
-         * Insert multiple sending sessions to db, only used by Opp application.
+         * Insert multiple sending sessions to db in one transaction, only used
+         * by Opp application.
          */
         private void insertMultipleShare() {
             int count = mUris.size();
+            ContentValues[] shares = new ContentValues[count];
             Long ts = System.currentTimeMillis();
             for (int i = 0; i < count; i++) {
                 Uri fileUri = mUris.get(i);
@@ -503,11 +513,12 @@ public class BluetoothOppManager {
                     values.put(BluetoothShare.USER_CONFIRMATION,
                             BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED);
                 }
-                final Uri contentUri = mContext.getContentResolver().insert(
-                        BluetoothShare.CONTENT_URI, values);
-                if (V) Log.v(TAG, "Insert contentUri: " + contentUri + "  to device: "
-                            + getDeviceName(mRemoteDevice));
+                shares[i] = values;
             }
+            final int inserted = mContext.getContentResolver().bulkInsert(
+                    BluetoothShare.CONTENT_URI, shares);
+            if (V) Log.v(TAG, "Inserted " + inserted + " shares to device: "
+                        + getDeviceName(mRemoteDevice));
         }
 
          /**
@@ -44,12 +44,15 @@ import android.database.CursorWindowAllocationException;
 import android.database.sqlite.SQLiteException;
 import android.content.res.Resources.NotFoundException;
 import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 import android.os.PowerManager;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 /**
  * This class handles the updating of the Notification Manager for the cases
@@ -77,29 +80,34 @@ class BluetoothOppNotification {
 
     static final String WHERE_RUNNING = status + " AND " + visible + " AND " + confirm;
 
-    private static final String WHERE_RUNNING_OUTBOUND = WHERE_RUNNING + " AND " + "("
-            + BluetoothShare.DIRECTION + " == " + BluetoothShare.DIRECTION_OUTBOUND + ")";
-
-    private static final String WHERE_RUNNING_INBOUND = WHERE_RUNNING + " AND " + "("
-            + BluetoothShare.DIRECTION + " == " + BluetoothShare.DIRECTION_INBOUND + ")";
-
     static final String WHERE_COMPLETED = BluetoothShare.STATUS + " >= '200' AND " + visible +
             " AND " + not_through_handover; // Don't show handover-initiated transfers
 
-    private static final String WHERE_COMPLETED_OUTBOUND = WHERE_COMPLETED + " AND " + "("
-            + BluetoothShare.DIRECTION + " == " + BluetoothShare.DIRECTION_OUTBOUND + ")";
-
-    private static final String WHERE_COMPLETED_INBOUND = WHERE_COMPLETED + " AND " + "("
-            + BluetoothShare.DIRECTION + " == " + BluetoothShare.DIRECTION_INBOUND + ")";
-
     static final String WHERE_CONFIRM_PENDING = BluetoothShare.USER_CONFIRMATION + " == '"
             + BluetoothShare.USER_CONFIRMATION_PENDING + "'" + " AND " + visible;
 
+    // Running, completed and waiting for confirmation; sorted out in updateNotifications()
+    static final String WHERE_NOTIFICATION = visible + " AND (" + status + " OR "
+            + BluetoothShare.STATUS + " >= '200' OR " + BluetoothShare.USER_CONFIRMATION
+            + " == '" + BluetoothShare.USER_CONFIRMATION_PENDING + "')";
+
+    private static final String[] PROJECTION_NOTIFICATION = new String[] {
+        BluetoothShare._ID, BluetoothShare.TIMESTAMP, BluetoothShare.DIRECTION,
+        BluetoothShare.STATUS, BluetoothShare.TOTAL_BYTES, BluetoothShare.CURRENT_BYTES,
+        BluetoothShare._DATA, BluetoothShare.FILENAME_HINT, BluetoothShare.USER_CONFIRMATION,
+        BluetoothShare.DESTINATION
+    };
+
     public NotificationManager mNotificationMgr;
 
     private Context mContext;
 
-    private HashMap<String, NotificationItem> mNotifications;
+    // Active transfer notifications as last posted, keyed by share id
+    private HashMap<Integer, NotificationItem> mNotifications;
+
+    // Completed transfer notifications as last posted, null until the first update
+    private CompletedItem mOutboundCompleted;
+    private CompletedItem mInboundCompleted;
 
     private NotificationUpdateThread mUpdateNotificationThread;
 
@@ -114,11 +122,9 @@ class BluetoothOppNotification {
     private boolean mInboundUpdateCompleteNotification = true;
 
     private int mConfirmation = 0;
-    private int mInboundActiveNotificationId = 0;
-    private int mOutboundActiveNotificationId = 0;
     private int mRunning = 0;
 
-    private int mIncomingShownId = 0;
+    private HashSet<Integer> mIncomingShownIds = new HashSet<Integer>();
 
     /**
      * This inner class is used to describe some properties for one transfer.
@@ -139,6 +145,60 @@ class BluetoothOppNotification {
         boolean handoverInitiated = false; // transfer initiated by connection handover (eg NFC)
 
         String destination; // destination associated with this transfer
+
+        int getProgress() {
+            if (totalTotal == 0) {
+                return 100;
+            }
+            return (int)((totalCurrent * 100) / totalTotal);
+        }
+
+        /** The progress text shown next to the progress bar */
+        String getProgressText() {
+            return BluetoothOppUtility.formatProgressText(totalTotal, totalCurrent);
+        }
+
+        /**
+         * Returns whether posting this item would show the same thing as
+         * posting {@code other}.
+         */
+        boolean sameVisibleState(NotificationItem other) {
+            return other != null && direction == other.direction
+                    && timeStamp == other.timeStamp
+                    && getProgress() == other.getProgress()
+                    && TextUtils.equals(getProgressText(), other.getProgressText())
+                    && (totalTotal == -1) == (other.totalTotal == -1)
+                    && handoverInitiated == other.handoverInitiated
+                    && TextUtils.equals(description, other.description)
+                    && TextUtils.equals(destination, other.destination);
+        }
+    }
+
+    /**
+     * This inner class is used to describe the summary of completed transfers
+     * in one direction.
+     */
+    static class CompletedItem {
+        int succNumber = 0;
+
+        int failNumber = 0;
+
+        long timeStamp = 0; // time stamp of the latest transfer
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CompletedItem)) {
+                return false;
+            }
+            CompletedItem other = (CompletedItem)o;
+            return succNumber == other.succNumber && failNumber == other.failNumber
+                    && timeStamp == other.timeStamp;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * succNumber + failNumber) + (int)(timeStamp ^ (timeStamp >>> 32));
+        }
     }
 
     /**
@@ -151,7 +211,7 @@ class BluetoothOppNotification {
         mContext = ctx;
         mNotificationMgr = (NotificationManager)mContext
                 .getSystemService(Context.NOTIFICATION_SERVICE);
-        mNotifications = new HashMap<String, NotificationItem>();
+        mNotifications = new HashMap<Integer, NotificationItem>();
         mPowerManager = (PowerManager)mContext.getSystemService(Context.POWER_SERVICE);
     }
 
@@ -183,11 +243,7 @@ class BluetoothOppNotification {
                 }
             }
 
-            updateActiveNotification();
-            mInboundUpdateCompleteNotification = true;
-            mOutboundUpdateCompleteNotification = true;
-            updateCompletedNotification();
-            cancelIncomingFileConfirmNotification();
+            updateNotifications(true);
         }
     }
 
@@ -209,9 +265,7 @@ class BluetoothOppNotification {
                 mPendingUpdate = false;
                 }
 
-                updateActiveNotification();
-                updateCompletedNotification();
-                updateIncomingFileConfirmNotification();
+                updateNotifications(false);
 
                 try {
                     if ((mConfirmation == BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED)
@@ -237,93 +291,109 @@ class BluetoothOppNotification {
         }
     }
 
-    private void updateActiveNotification() {
-        int inboundRunning = 0, outboundRunning = 0;
+    /**
+     * Refreshes all transfer notifications from a single pass over the
+     * visible shares, posting only the ones whose visible state changed
+     * since the last pass.
+     *
+     * @param turningOff true when Bluetooth is turning off: completed
+     *            notifications are always refreshed and the incoming file
+     *            confirmation notifications are removed
+     */
+    private void updateNotifications(boolean turningOff) {
         Cursor cursor;
-
-        // Active transfers
         try {
-            cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                    WHERE_RUNNING_INBOUND, null, BluetoothShare._ID);
-            if (cursor != null) {
-                inboundRunning = cursor.getCount();
-                cursor.close();
-                cursor = null;
-            }
-
-            cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                    WHERE_RUNNING_OUTBOUND, null, BluetoothShare._ID);
-            if (cursor != null) {
-                outboundRunning = cursor.getCount();
-                cursor.close();
-                cursor = null;
-            }
-
-            cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                    WHERE_RUNNING, null, BluetoothShare._ID);
-            mRunning  = cursor.getCount();
+            cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI,
+                    PROJECTION_NOTIFICATION, WHERE_NOTIFICATION, null, BluetoothShare._ID);
         } catch (SQLiteException e) {
             cursor = null;
             Log.e(TAG, "SQLite exception: " + e);
+        } catch (CursorWindowAllocationException e) {
+            cursor = null;
+            Log.e(TAG, "updateNotifications: " + e);
         }
 
         if (cursor == null) {
             return;
         }
 
-        // If there is active transfers, then no need to update completed transfer
-        // notifications
-        if (V) Log.v(TAG, "Running: inbound = " + inboundRunning + " outbound = " + outboundRunning);
-        if (inboundRunning > 0) {
-            mInboundUpdateCompleteNotification = false;
-        } else {
-            mInboundUpdateCompleteNotification = true;
-        }
-
-        if (outboundRunning > 0) {
-            mOutboundUpdateCompleteNotification = false;
-        } else {
-            mOutboundUpdateCompleteNotification = true;
-        }
-
-        // Collate the notifications
-        final int timestampIndex;
-        final int directionIndex;
-        final int idIndex;
-        final int totalBytesIndex;
-        final int currentBytesIndex;
-        final int dataIndex;
-        final int filenameHintIndex;
-        final int confirmIndex;
-        final int destinationIndex;
+        int inboundRunning = 0, outboundRunning = 0;
+        HashMap<Integer, NotificationItem> active = new HashMap<Integer, NotificationItem>();
+        HashSet<Long> batches = new HashSet<Long>();
+        CompletedItem outboundCompleted = new CompletedItem();
+        CompletedItem inboundCompleted = new CompletedItem();
+        HashMap<Integer, Long> confirmPending = new HashMap<Integer, Long>();
 
         try {
-            timestampIndex = cursor.getColumnIndexOrThrow(BluetoothShare.TIMESTAMP);
-            directionIndex = cursor.getColumnIndexOrThrow(BluetoothShare.DIRECTION);
-            idIndex = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
-            totalBytesIndex = cursor.getColumnIndexOrThrow(BluetoothShare.TOTAL_BYTES);
-            currentBytesIndex = cursor.getColumnIndexOrThrow(BluetoothShare.CURRENT_BYTES);
-            dataIndex = cursor.getColumnIndexOrThrow(BluetoothShare._DATA);
-            filenameHintIndex = cursor.getColumnIndexOrThrow(BluetoothShare.FILENAME_HINT);
-            confirmIndex = cursor.getColumnIndexOrThrow(BluetoothShare.USER_CONFIRMATION);
-            destinationIndex = cursor.getColumnIndexOrThrow(BluetoothShare.DESTINATION);
-        } catch (IllegalArgumentException e) {
-            cursor.close();
-            cursor = null;
-            Log.e(TAG, "Invalid share info");
-            return;
-        }
-        mNotifications.clear();
-        if (cursor != null) {
+            final int idIndex = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
+            final int timestampIndex = cursor.getColumnIndexOrThrow(BluetoothShare.TIMESTAMP);
+            final int directionIndex = cursor.getColumnIndexOrThrow(BluetoothShare.DIRECTION);
+            final int statusIndex = cursor.getColumnIndexOrThrow(BluetoothShare.STATUS);
+            final int totalBytesIndex = cursor.getColumnIndexOrThrow(BluetoothShare.TOTAL_BYTES);
+            final int currentBytesIndex =
+                    cursor.getColumnIndexOrThrow(BluetoothShare.CURRENT_BYTES);
+            final int dataIndex = cursor.getColumnIndexOrThrow(BluetoothShare._DATA);
+            final int filenameHintIndex =
+                    cursor.getColumnIndexOrThrow(BluetoothShare.FILENAME_HINT);
+            final int confirmIndex =
+                    cursor.getColumnIndexOrThrow(BluetoothShare.USER_CONFIRMATION);
+            final int destinationIndex = cursor.getColumnIndexOrThrow(BluetoothShare.DESTINATION);
+
             for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                int id = cursor.getInt(idIndex);
                 long timeStamp = cursor.getLong(timestampIndex);
                 int dir = cursor.getInt(directionIndex);
-                int id = cursor.getInt(idIndex);
-                long total = cursor.getLong(totalBytesIndex);
-                long current = cursor.getLong(currentBytesIndex);
-                mConfirmation = cursor.getInt(confirmIndex);
+                int status = cursor.getInt(statusIndex);
+                int confirmation = cursor.getInt(confirmIndex);
+
+                if (confirmation == BluetoothShare.USER_CONFIRMATION_PENDING) {
+                    confirmPending.put(id, timeStamp);
+                }
+
+                if (status >= 200) {
+                    // Don't show handover-initiated transfers
+                    if (confirmation == BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED) {
+                        continue;
+                    }
+                    CompletedItem completed;
+                    if (dir == BluetoothShare.DIRECTION_OUTBOUND) {
+                        completed = outboundCompleted;
+                    } else if (dir == BluetoothShare.DIRECTION_INBOUND) {
+                        completed = inboundCompleted;
+                    } else {
+                        continue;
+                    }
+                    if (BluetoothShare.isStatusError(status)) {
+                        completed.failNumber++;
+                    } else {
+                        completed.succNumber++;
+                    }
+                    // Display the time for the latest transfer
+                    completed.timeStamp = Math.max(completed.timeStamp, timeStamp);
+                    continue;
+                }
+
+                if (status != BluetoothShare.STATUS_RUNNING
+                        || (confirmation != BluetoothShare.USER_CONFIRMATION_CONFIRMED
+                        && confirmation != BluetoothShare.USER_CONFIRMATION_AUTO_CONFIRMED
+                        && confirmation != BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED)) {
+                    continue;
+                }
+
+                if (dir == BluetoothShare.DIRECTION_OUTBOUND) {
+                    outboundRunning++;
+                } else if (dir == BluetoothShare.DIRECTION_INBOUND) {
+                    inboundRunning++;
+                }
+                mConfirmation = confirmation;
+
+                // sending objects in one batch has same timeStamp
+                if (!batches.add(timeStamp)) {
+                    // NOTE: currently no such case
+                    // Batch sending case
+                    continue;
+                }
 
-                String destination = cursor.getString(destinationIndex);
                 String fileName = cursor.getString(dataIndex);
                 if (fileName == null) {
                     fileName = cursor.getString(filenameHintIndex);
@@ -332,42 +402,71 @@ class BluetoothOppNotification {
                     fileName = mContext.getString(R.string.unknown_file);
                 }
 
-                String batchID = Long.toString(timeStamp);
-
-                // sending objects in one batch has same timeStamp
-                if (mNotifications.containsKey(batchID)) {
-                    // NOTE: currently no such case
-                    // Batch sending case
+                NotificationItem item = new NotificationItem();
+                item.timeStamp = timeStamp;
+                item.id = id;
+                item.direction = dir;
+                if (item.direction == BluetoothShare.DIRECTION_OUTBOUND) {
+                    item.description = mContext.getString(R.string.notification_sending, fileName);
+                } else if (item.direction == BluetoothShare.DIRECTION_INBOUND) {
+                    item.description = mContext
+                            .getString(R.string.notification_receiving, fileName);
                 } else {
-                    NotificationItem item = new NotificationItem();
-                    item.timeStamp = timeStamp;
-                    item.id = id;
-                    item.direction = dir;
-                    if (item.direction == BluetoothShare.DIRECTION_OUTBOUND) {
-                        item.description = mContext.getString(R.string.notification_sending, fileName);
-                    } else if (item.direction == BluetoothShare.DIRECTION_INBOUND) {
-                        item.description = mContext
-                                .getString(R.string.notification_receiving, fileName);
-                    } else {
-                        if (V) Log.v(TAG, "mDirection ERROR!");
-                    }
-                    item.totalCurrent = current;
-                    item.totalTotal = total;
-                    item.handoverInitiated =
-                        mConfirmation == BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED;
-                    item.destination = destination;
-                    mNotifications.put(batchID, item);
-
-                    if (V) Log.v(TAG, "ID=" + item.id + "; batchID=" + batchID + "; totoalCurrent"
-                            + item.totalCurrent + "; totalTotal=" + item.totalTotal);
+                    if (V) Log.v(TAG, "mDirection ERROR!");
                 }
+                item.totalCurrent = cursor.getLong(currentBytesIndex);
+                item.totalTotal = cursor.getLong(totalBytesIndex);
+                item.handoverInitiated =
+                    confirmation == BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED;
+                item.destination = cursor.getString(destinationIndex);
+                active.put(id, item);
+
+                if (V) Log.v(TAG, "ID=" + item.id + "; batchID=" + timeStamp + "; totoalCurrent"
+                        + item.totalCurrent + "; totalTotal=" + item.totalTotal);
             }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid share info");
+            return;
+        } finally {
             cursor.close();
-            cursor = null;
         }
 
-        // Add the notifications
+        mRunning = inboundRunning + outboundRunning;
+
+        // If there is active transfers, then no need to update completed transfer
+        // notifications
+        if (V) Log.v(TAG, "Running: inbound = " + inboundRunning + " outbound = " + outboundRunning);
+        mInboundUpdateCompleteNotification = turningOff || inboundRunning == 0;
+        mOutboundUpdateCompleteNotification = turningOff || outboundRunning == 0;
+
+        updateActiveNotification(active);
+        if (mInboundUpdateCompleteNotification || mOutboundUpdateCompleteNotification) {
+            updateCompletedNotification(outboundCompleted, inboundCompleted);
+        } else {
+            if (V) Log.v(TAG, "No need to update complete notification");
+        }
+        if (turningOff) {
+            cancelIncomingFileConfirmNotification(confirmPending);
+        } else {
+            updateIncomingFileConfirmNotification(confirmPending);
+        }
+    }
+
+    private void updateActiveNotification(HashMap<Integer, NotificationItem> active) {
+        // Remove the notifications of transfers that are no longer running
         for (NotificationItem item : mNotifications.values()) {
+            if (!active.containsKey(item.id) && !item.handoverInitiated
+                    && mNotificationMgr != null) {
+                mNotificationMgr.cancel(item.id);
+                if (V) Log.v(TAG, "Active transfer notification " + item.id + " was removed");
+            }
+        }
+
+        // Add the notifications
+        for (NotificationItem item : active.values()) {
+            if (item.sameVisibleState(mNotifications.get(item.id))) {
+                continue;
+            }
             if (item.handoverInitiated) {
                 float progress = 0;
                 if (item.totalTotal == -1) {
@@ -398,24 +497,15 @@ class BluetoothOppNotification {
             b.setColor(mContext.getResources().getColor(
                     com.android.internal.R.color.system_notification_accent_color));
             b.setContentTitle(item.description);
-            b.setContentInfo(
-                    BluetoothOppUtility.formatProgressText(item.totalTotal, item.totalCurrent));
-            if (item.totalTotal != 0) {
-                if (V) Log.v(TAG, "mCurrentBytes: " + item.totalCurrent +
-                    " mTotalBytes: " + item.totalTotal + " (" +
-                    (int)((item.totalCurrent * 100) / item.totalTotal) + " %)");
-                b.setProgress(100, (int)((item.totalCurrent * 100) / item.totalTotal),
-                    item.totalTotal == -1);
-            } else {
-                b.setProgress(100, 100, item.totalTotal == -1);
-            }
+            b.setContentInfo(item.getProgressText());
+            if (V) Log.v(TAG, "mCurrentBytes: " + item.totalCurrent +
+                " mTotalBytes: " + item.totalTotal + " (" + item.getProgress() + " %)");
+            b.setProgress(100, item.getProgress(), item.totalTotal == -1);
             b.setWhen(item.timeStamp);
             if (item.direction == BluetoothShare.DIRECTION_OUTBOUND) {
                 b.setSmallIcon(android.R.drawable.stat_sys_upload);
-                mOutboundActiveNotificationId = item.id;
             } else if (item.direction == BluetoothShare.DIRECTION_INBOUND) {
                 b.setSmallIcon(android.R.drawable.stat_sys_download);
-                mInboundActiveNotificationId = item.id;
             } else {
                 if (V) Log.v(TAG, "mDirection ERROR!");
             }
@@ -428,265 +518,124 @@ class BluetoothOppNotification {
             b.setContentIntent(PendingIntent.getBroadcast(mContext, 0, intent, 0));
             mNotificationMgr.notify(item.id, b.getNotification());
         }
+        mNotifications = active;
     }
 
-    private void updateCompletedNotification() {
+    private void updateCompletedNotification(CompletedItem outbound, CompletedItem inbound) {
         String title;
         String caption;
-        long timeStamp = 0;
-        int outboundSuccNumber = 0;
-        int outboundFailNumber = 0;
-        int outboundNum;
-        int inboundNum;
-        int inboundSuccNumber = 0;
-        int inboundFailNumber = 0;
         Intent intent;
 
-        // If there is active transfer, no need to update complete transfer
-        // notification
-        if (!mInboundUpdateCompleteNotification && !mOutboundUpdateCompleteNotification) {
-            if (V) Log.v(TAG, "No need to update complete notification");
-            return;
-        }
-
-        // After merge complete notifications to 2 notifications, there is no
-        // chance to update the active notifications to complete notifications
-        // as before. So need cancel the active notification after the active
-        // transfer becomes complete.
-        if (mInboundUpdateCompleteNotification && mNotificationMgr != null && mInboundActiveNotificationId != 0) {
-            mNotificationMgr.cancel(mInboundActiveNotificationId);
-            if (V) Log.v(TAG, "Inbound transfer notification was removed");
-        }
-        if (mOutboundUpdateCompleteNotification && mNotificationMgr != null && mOutboundActiveNotificationId != 0) {
-            mNotificationMgr.cancel(mOutboundActiveNotificationId);
-            if (V) Log.v(TAG, "Outbound transfer notification was removed");
-        }
-
-        // Creating outbound notification
-        Cursor cursor;
-        try {
-            cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                    WHERE_COMPLETED_OUTBOUND, null, BluetoothShare.TIMESTAMP + " DESC");
-        } catch (SQLiteException e) {
-            cursor = null;
-            Log.e(TAG, "SQLite exception: " + e);
-        }
-
-        if (cursor == null) {
-            return;
-        }
-
-        final int timestampIndex;
-        final int statusIndex;
-        try {
-            timestampIndex = cursor.getColumnIndexOrThrow(BluetoothShare.TIMESTAMP);
-            statusIndex = cursor.getColumnIndexOrThrow(BluetoothShare.STATUS);
-        } catch (IllegalArgumentException e) {
-            cursor.close();
-            cursor = null;
-            Log.e(TAG, "Invalid share info");
-            return;
-        }
-
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-            if (cursor.isFirst()) {
-                // Display the time for the latest transfer
-                timeStamp = cursor.getLong(timestampIndex);
-            }
-            int status = cursor.getInt(statusIndex);
-
-            if (BluetoothShare.isStatusError(status)) {
-                outboundFailNumber++;
+        if (V) Log.v(TAG, "outbound: succ-" + outbound.succNumber + "  fail-"
+                + outbound.failNumber);
+        if (mNotificationMgr != null && !outbound.equals(mOutboundCompleted)) {
+            // create the outbound notification
+            if (outbound.succNumber + outbound.failNumber > 0) {
+                Notification outNoti = new Notification();
+                outNoti.icon = android.R.drawable.stat_sys_upload_done;
+                title = mContext.getString(R.string.outbound_noti_title);
+                caption = mContext.getString(R.string.noti_caption, outbound.succNumber,
+                        outbound.failNumber);
+                intent = new Intent(Constants.ACTION_OPEN_OUTBOUND_TRANSFER);
+                intent.setClassName(Constants.THIS_PACKAGE_NAME,
+                        BluetoothOppReceiver.class.getName());
+                outNoti.color = mContext.getResources().getColor(
+                        com.android.internal.R.color.system_notification_accent_color);
+                outNoti.setLatestEventInfo(mContext, title, caption, PendingIntent.getBroadcast(
+                        mContext, 0, intent, 0));
+                intent = new Intent(Constants.ACTION_COMPLETE_HIDE);
+                intent.setClassName(Constants.THIS_PACKAGE_NAME,
+                        BluetoothOppReceiver.class.getName());
+                outNoti.deleteIntent = PendingIntent.getBroadcast(mContext, 0, intent, 0);
+                outNoti.when = outbound.timeStamp;
+                mNotificationMgr.notify(NOTIFICATION_ID_OUTBOUND, outNoti);
             } else {
-                outboundSuccNumber++;
-            }
-        }
-        if (V) Log.v(TAG, "outbound: succ-" + outboundSuccNumber + "  fail-" + outboundFailNumber);
-        cursor.close();
-        cursor = null;
-
-        outboundNum = outboundSuccNumber + outboundFailNumber;
-        // create the outbound notification
-        if ((outboundNum > 0) && (mNotificationMgr != null)) {
-            Notification outNoti = new Notification();
-            outNoti.icon = android.R.drawable.stat_sys_upload_done;
-            title = mContext.getString(R.string.outbound_noti_title);
-            caption = mContext.getString(R.string.noti_caption, outboundSuccNumber,
-                    outboundFailNumber);
-            intent = new Intent(Constants.ACTION_OPEN_OUTBOUND_TRANSFER);
-            intent.setClassName(Constants.THIS_PACKAGE_NAME, BluetoothOppReceiver.class.getName());
-            outNoti.color = mContext.getResources().getColor(
-                    com.android.internal.R.color.system_notification_accent_color);
-            outNoti.setLatestEventInfo(mContext, title, caption, PendingIntent.getBroadcast(
-                    mContext, 0, intent, 0));
-            intent = new Intent(Constants.ACTION_COMPLETE_HIDE);
-            intent.setClassName(Constants.THIS_PACKAGE_NAME, BluetoothOppReceiver.class.getName());
-            outNoti.deleteIntent = PendingIntent.getBroadcast(mContext, 0, intent, 0);
-            outNoti.when = timeStamp;
-            mNotificationMgr.notify(NOTIFICATION_ID_OUTBOUND, outNoti);
-        } else {
-            if (mNotificationMgr != null) {
                 mNotificationMgr.cancel(NOTIFICATION_ID_OUTBOUND);
                 if (V) Log.v(TAG, "outbound notification was removed.");
             }
+            mOutboundCompleted = outbound;
         }
 
-        // Creating inbound notification
-        try {
-            cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                WHERE_COMPLETED_INBOUND, null, BluetoothShare.TIMESTAMP + " DESC");
-        } catch (SQLiteException e) {
-            cursor = null;
-            Log.e(TAG, "SQLite exception: " + e);
-        }
-
-        if (cursor == null) {
-            return;
-        }
-
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-            if (cursor.isFirst()) {
-                // Display the time for the latest transfer
-                timeStamp = cursor.getLong(timestampIndex);
-            }
-            int status = cursor.getInt(statusIndex);
-
-            if (BluetoothShare.isStatusError(status)) {
-                inboundFailNumber++;
+        if (V) Log.v(TAG, "inbound: succ-" + inbound.succNumber + "  fail-" + inbound.failNumber);
+        if (mNotificationMgr != null && !inbound.equals(mInboundCompleted)) {
+            // create the inbound notification
+            if (inbound.succNumber + inbound.failNumber > 0) {
+                Notification inNoti = new Notification();
+                inNoti.icon = android.R.drawable.stat_sys_download_done;
+                title = mContext.getString(R.string.inbound_noti_title);
+                caption = mContext.getString(R.string.noti_caption, inbound.succNumber,
+                        inbound.failNumber);
+                intent = new Intent(Constants.ACTION_OPEN_INBOUND_TRANSFER);
+                intent.setClassName(Constants.THIS_PACKAGE_NAME,
+                        BluetoothOppReceiver.class.getName());
+                inNoti.color = mContext.getResources().getColor(
+                        com.android.internal.R.color.system_notification_accent_color);
+                inNoti.setLatestEventInfo(mContext, title, caption, PendingIntent.getBroadcast(
+                        mContext, 0, intent, 0));
+                intent = new Intent(Constants.ACTION_COMPLETE_HIDE);
+                intent.setClassName(Constants.THIS_PACKAGE_NAME,
+                        BluetoothOppReceiver.class.getName());
+                inNoti.deleteIntent = PendingIntent.getBroadcast(mContext, 0, intent, 0);
+                inNoti.when = inbound.timeStamp;
+                mNotificationMgr.notify(NOTIFICATION_ID_INBOUND, inNoti);
             } else {
-                inboundSuccNumber++;
-            }
-        }
-        if (V) Log.v(TAG, "inbound: succ-" + inboundSuccNumber + "  fail-" + inboundFailNumber);
-        cursor.close();
-        cursor = null;
-
-        inboundNum = inboundSuccNumber + inboundFailNumber;
-        // create the inbound notification
-        if ((inboundNum > 0) && (mNotificationMgr != null)) {
-            Notification inNoti = new Notification();
-            inNoti.icon = android.R.drawable.stat_sys_download_done;
-            title = mContext.getString(R.string.inbound_noti_title);
-            caption = mContext.getString(R.string.noti_caption, inboundSuccNumber,
-                    inboundFailNumber);
-            intent = new Intent(Constants.ACTION_OPEN_INBOUND_TRANSFER);
-            intent.setClassName(Constants.THIS_PACKAGE_NAME, BluetoothOppReceiver.class.getName());
-            inNoti.color = mContext.getResources().getColor(
-                    com.android.internal.R.color.system_notification_accent_color);
-            inNoti.setLatestEventInfo(mContext, title, caption, PendingIntent.getBroadcast(
-                    mContext, 0, intent, 0));
-            intent = new Intent(Constants.ACTION_COMPLETE_HIDE);
-            intent.setClassName(Constants.THIS_PACKAGE_NAME, BluetoothOppReceiver.class.getName());
-            inNoti.deleteIntent = PendingIntent.getBroadcast(mContext, 0, intent, 0);
-            inNoti.when = timeStamp;
-            mNotificationMgr.notify(NOTIFICATION_ID_INBOUND, inNoti);
-        } else {
-            if (mNotificationMgr != null) {
                 mNotificationMgr.cancel(NOTIFICATION_ID_INBOUND);
                 if (V) Log.v(TAG, "inbound notification was removed.");
             }
+            mInboundCompleted = inbound;
         }
     }
 
-    private void updateIncomingFileConfirmNotification() {
-        Cursor cursor;
-        try {
-            cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                    WHERE_CONFIRM_PENDING, null, BluetoothShare._ID);
-        } catch (SQLiteException e) {
-            cursor = null;
-            Log.e(TAG, "SQLite exception: " + e);
-        }
-
-        if (cursor == null) {
-            return;
-        }
-
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+    private void updateIncomingFileConfirmNotification(HashMap<Integer, Long> confirmPending) {
+        for (Map.Entry<Integer, Long> entry : confirmPending.entrySet()) {
+            int id = entry.getKey();
+            if (mIncomingShownIds.contains(id)) {
+                continue;
+            }
             CharSequence title =
                     mContext.getText(R.string.incoming_file_confirm_Notification_title);
             CharSequence caption = mContext
                     .getText(R.string.incoming_file_confirm_Notification_caption);
-            int id;
-            long timeStamp;
-            try {
-                id = cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare._ID));
-                timeStamp = cursor.getLong(cursor.getColumnIndexOrThrow(BluetoothShare.TIMESTAMP));
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "Invalid share info");
-                continue;
-            }
             Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + id);
 
-            if (mIncomingShownId != id) {
-                Notification n = new Notification();
-                n.icon = R.drawable.bt_incomming_file_notification;
-                n.flags |= Notification.FLAG_ONLY_ALERT_ONCE;
-                n.flags |= Notification.FLAG_ONGOING_EVENT;
-                n.defaults = Notification.DEFAULT_SOUND;
-                n.tickerText = title;
-
-                Intent intent = new Intent(Constants.ACTION_INCOMING_FILE_CONFIRM);
-                intent.setClassName(Constants.THIS_PACKAGE_NAME, BluetoothOppReceiver.class.getName());
-                intent.setDataAndNormalize(contentUri);
-
-                n.when = timeStamp;
-                try {
-                    n.color = mContext.getResources().getColor(
-                            com.android.internal.R.color.system_notification_accent_color);
-                } catch (NotFoundException e) {
-                    Log.e(TAG, "Resource not found");
-                }
-                n.setLatestEventInfo(mContext, title, caption, PendingIntent.getBroadcast(mContext, 0,
-                        intent, 0));
+            Notification n = new Notification();
+            n.icon = R.drawable.bt_incomming_file_notification;
+            n.flags |= Notification.FLAG_ONLY_ALERT_ONCE;
+            n.flags |= Notification.FLAG_ONGOING_EVENT;
+            n.defaults = Notification.DEFAULT_SOUND;
+            n.tickerText = title;
 
-                intent = new Intent(Constants.ACTION_HIDE);
-                intent.setClassName(Constants.THIS_PACKAGE_NAME, BluetoothOppReceiver.class.getName());
-                intent.setDataAndNormalize(contentUri);
-                n.deleteIntent = PendingIntent.getBroadcast(mContext, 0, intent, 0);
+            Intent intent = new Intent(Constants.ACTION_INCOMING_FILE_CONFIRM);
+            intent.setClassName(Constants.THIS_PACKAGE_NAME, BluetoothOppReceiver.class.getName());
+            intent.setDataAndNormalize(contentUri);
 
-                mNotificationMgr.notify(id, n);
-                mIncomingShownId = id;
+            n.when = entry.getValue();
+            try {
+                n.color = mContext.getResources().getColor(
+                        com.android.internal.R.color.system_notification_accent_color);
+            } catch (NotFoundException e) {
+                Log.e(TAG, "Resource not found");
             }
-        }
-        cursor.close();
-        cursor = null;
-    }
+            n.setLatestEventInfo(mContext, title, caption, PendingIntent.getBroadcast(mContext, 0,
+                    intent, 0));
 
-    private void cancelIncomingFileConfirmNotification() {
-        Cursor cursor = null;
-        try {
-            cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                WHERE_CONFIRM_PENDING, null, BluetoothShare._ID);
-        } catch (SQLiteException e) {
-            if (cursor != null) {
-                cursor.close();
-            }
-            cursor = null;
-            Log.e(TAG, "cancelupdateIncomingFileConfirmNotification: " + e);
-        } catch (CursorWindowAllocationException e) {
-            cursor = null;
-            Log.e(TAG, "cancelupdateIncomingFileConfirmNotification: " + e);
-        }
+            intent = new Intent(Constants.ACTION_HIDE);
+            intent.setClassName(Constants.THIS_PACKAGE_NAME, BluetoothOppReceiver.class.getName());
+            intent.setDataAndNormalize(contentUri);
+            n.deleteIntent = PendingIntent.getBroadcast(mContext, 0, intent, 0);
 
-        if (cursor == null) {
-            return;
+            mNotificationMgr.notify(id, n);
         }
+        // Forget the shares that are no longer waiting for confirmation
+        mIncomingShownIds.clear();
+        mIncomingShownIds.addAll(confirmPending.keySet());
+    }
 
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-            int id;
-            try {
-                id = cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare._ID));
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "Invalid share info");
-                continue;
-            }
+    private void cancelIncomingFileConfirmNotification(HashMap<Integer, Long> confirmPending) {
+        for (int id : confirmPending.keySet()) {
             if (V) Log.v(TAG, "Cancelling incoming notification " + id);
-
             mNotificationMgr.cancel(id);
         }
-        cursor.close();
-        if (V) Log.v(TAG, "Freeing cursor: " + cursor);
-        cursor = null;
+        mIncomingShownIds.clear();
     }
 }
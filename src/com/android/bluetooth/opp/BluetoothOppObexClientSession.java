@@ -52,9 +52,9 @@ import android.os.Process;
 import android.os.SystemProperties;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.lang.Thread;
 import android.widget.RemoteViews;
@@ -73,6 +73,16 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
     private static final boolean V = Log.isLoggable(Constants.TAG, Log.VERBOSE) ? true : false;
 
     private static final int OPP_A2DP_SCO_CONCURRENCY_REDUCED_MTU_SIZE = 8192;
+
+    /** Longest back-off while the socket reports congestion or EAGAIN */
+    private static final int CONGESTION_BACKOFF_MAX_MS = 16;
+
+    /**
+     * Whether file data is pre-fetched by a reader thread while the previous
+     * packet is being written, see BluetoothOppSendPipeline.
+     */
+    private static final boolean PIPELINED_SEND =
+            SystemProperties.getBoolean("persist.bt.opp.pipelined_send", true);
     private ClientThread mThread;
 
     private ObexTransport mTransport;
@@ -124,62 +134,6 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         mThread.addShare(share);
     }
 
-    private static int readFully(InputStream is, byte[] buffer, int size) throws IOException {
-        int done = 0;
-        while (done < size) {
-            int got = is.read(buffer, done, size - done);
-            if (got <= 0) break;
-            done += got;
-        }
-        return done;
-    }
-    private class ContentResolverUpdateThread extends Thread {
-
-        private Uri contentUri;
-        private Context mContext1;
-        private volatile boolean interrupted = false;
-
-        public ContentResolverUpdateThread(Context context, Uri cntUri) {
-            super("BtOpp ContentResolverUpdateThread");
-            mContext1 = context;
-            contentUri = cntUri;
-        }
-
-        @Override
-        public void run() {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            ContentValues updateValues;
-
-            while (true) {
-                if (pm.isScreenOn()) {
-                    updateValues = new ContentValues();
-                    updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                    mContext1.getContentResolver().update(contentUri, updateValues,
-                            null, null);
-                }
-
-                /* Check if the Operation is interrupted before entering sleep */
-                if (interrupted == true) {
-                    if (V) Log.v(TAG, "ContentResolverUpdateThread was interrupted before sleep !, exiting");
-                    return;
-                }
-
-                try {
-                    Thread.sleep(BluetoothShare.UI_UPDATE_INTERVAL);
-                } catch (InterruptedException e1) {
-                    if (V) Log.v(TAG, "ContentResolverUpdateThread was interrupted (1), exiting");
-                    return;
-                }
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            interrupted = true;
-            super.interrupt();
-        }
-    }
-
     private class ClientThread extends Thread {
 
         private static final int sSleepTime = 500;
@@ -383,7 +337,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         private BluetoothOppSendFileInfo processShareInfo() {
             if (V) Log.v(TAG, "Client thread processShareInfo() " + mInfo.mId);
 
-            BluetoothOppSendFileInfo fileInfo = BluetoothOppUtility.getSendFileInfo(mInfo.mUri);
+            BluetoothOppSendFileInfo fileInfo =
+                    BluetoothOppUtility.claimSendFileInfo(mContext1, mInfo);
             if (fileInfo.mFileName == null) {
                 if (V) Log.v(TAG, "BluetoothOppSendFileInfo get invalid file");
                     Constants.updateShareStatus(mContext1, mInfo.mId, fileInfo.mStatus);
@@ -415,7 +370,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             int status = BluetoothShare.STATUS_SUCCESS;
             Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + mInfo.mId);
             ContentValues updateValues;
-            ContentResolverUpdateThread uiUpdateThread = null;
+            BluetoothOppProgressPublisher.Progress progress = null;
             HeaderSet reply;
             position = 0;
             reply = new HeaderSet();
@@ -451,6 +406,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             ClientOperation putOperation = null;
             OutputStream outputStream = null;
             InputStream inputStream = null;
+            BluetoothOppSendPipeline source = null;
             try {
                 synchronized (this) {
                     mWaitingForRemote = true;
@@ -490,21 +446,17 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
 
                 if (!error) {
                     int readLength = 0;
-                    long readbytesleft = 0;
                     boolean okToProceed = false;
                     long timestamp = 0;
-                    int outputBufferSize = putOperation.getMaxPacketSize();
-                    byte[] buffer = new byte[outputBufferSize];
-                    BufferedInputStream a = new BufferedInputStream(fileInfo.mInputStream, 0x4000);
+                    BluetoothOppChunk chunk;
+                    source = new BluetoothOppSendPipeline(fileInfo.mInputStream,
+                            fileInfo.mLength, putOperation.getMaxPacketSize(), PIPELINED_SEND);
+                    source.start();
 
                     if (!mInterrupted && (position != fileInfo.mLength)) {
 
-                        readbytesleft = fileInfo.mLength - position;
-                        if(readbytesleft < outputBufferSize) {
-                            outputBufferSize = (int) readbytesleft;
-                        }
-
-                        readLength = readFully(a, buffer, outputBufferSize);
+                        chunk = source.take();
+                        readLength = chunk.mLength;
 
                         mCallback.sendMessageDelayed(mCallback
                                 .obtainMessage(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
@@ -523,7 +475,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
 
 
                         // first packet will block here
-                        outputStream.write(buffer, 0, readLength);
+                        outputStream.write(chunk.mData, 0, readLength);
+                        source.release(chunk);
 
                         position += readLength;
 
@@ -581,27 +534,13 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         {
                             if (V) timestamp = System.currentTimeMillis();
 
-                            readbytesleft = fileInfo.mLength - position;
-                            if(readbytesleft < outputBufferSize) {
-                                outputBufferSize = (int) readbytesleft;
-                            }
+                            chunk = source.take();
+                            readLength = chunk.mLength;
 
-                            readLength = a.read(buffer, 0, outputBufferSize);
-
-                            while (true) {
-                                int congStatus = ((BluetoothOppTransport)mTransport1).getSockCongStatus();
-                                if ((congStatus == 0) || (congStatus == -1)) {
-                                    break;
-                                }
-                                try {
-                                    Thread.sleep(5);
-                                } catch (InterruptedException slpe) {
-                                    Log.v(TAG, "Interrupted while checking the socket congestion evt");
-                                    break;
-                                }
-                            }
+                            waitForSocketUncongested();
 
                             int writtenLength = 0;
+                            int backoffMs = 1;
                             while (writtenLength != readLength) {
                                 //SET MTU SIZE BEFORE WRITE
                                 if(V) Log.v(TAG,"outputstream: readLength: "+readLength+ " getHeaddrLength: " +
@@ -611,13 +550,13 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                 int status_2 = ((BluetoothOppTransport)mTransport1).setPutSockMTUSize(size);
                                 if(V) Log.v(TAG,"setPutSockMTUSize status "+ status_2);
                                 try {
-                                    outputStream.write(buffer, 0, readLength);
+                                    outputStream.write(chunk.mData, 0, readLength);
                                     writtenLength = readLength;
                                 } catch (IOException e) {
                                     if (e.toString().contains("Try again")) {
                                         Log.v(TAG, "Try Again Exception");
                                         try {
-                                            Thread.sleep(10);
+                                            backoffMs = backOff(backoffMs);
                                         } catch (InterruptedException slpe) {
                                             Log.v(TAG, "Interrupted while Try Again" + slpe.toString());
                                         }
@@ -628,6 +567,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                     }
                                 }
                             }
+                            source.release(chunk);
 
                             /* check remote abort */
                             responseCode = putOperation.getResponseCode();
@@ -644,31 +584,20 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                             + (System.currentTimeMillis() - timestamp) + " ms");
                                 }
 
-                                if (uiUpdateThread == null) {
-                                    uiUpdateThread = new ContentResolverUpdateThread(mContext1,
-                                            contentUri);
-                                    if (V) Log.v(TAG, "Worker for Updation : Created");
-                                    uiUpdateThread.start();
+                                if (progress == null) {
+                                    progress = BluetoothOppProgressPublisher
+                                            .getInstance(mContext1).register(mInfo.mId);
                                 }
+                                progress.set(position);
 
                             }
                         }
                     }
 
-                    if (uiUpdateThread != null) {
-                        try {
-                            if (V) Log.v(TAG, "Worker for Updation : Destroying");
-                            uiUpdateThread.interrupt ();
-                            uiUpdateThread.join ();
-                            uiUpdateThread = null;
-
-                            updateValues = new ContentValues();
-                            updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                            mContext1.getContentResolver().update(contentUri, updateValues,
-                                        null, null);
-                        } catch (InterruptedException ie) {
-                            if (V) Log.v(TAG, "Interrupted waiting for uiUpdateThread to join");
-                        }
+                    if (progress != null) {
+                        // publishes the final position
+                        BluetoothOppProgressPublisher.getInstance(mContext1).unregister(progress);
+                        progress = null;
                     }
 
                     if (responseCode == ResponseCodes.OBEX_HTTP_FORBIDDEN
@@ -697,6 +626,17 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                 + " at " + position + " of " + fileInfo.mLength);
                     }
                 }
+            } catch (InterruptedIOException e) {
+                // stop() interrupted us while waiting for the reader thread
+                error = true;
+                status = BluetoothShare.STATUS_CANCELED;
+                Log.i(TAG, "SendFile interrupted when send out file " + fileInfo.mFileName
+                        + " at " + position + " of " + fileInfo.mLength);
+                try {
+                    putOperation.abort();
+                } catch (IOException e1) {
+                    Log.e(TAG, "Error when aborting put operation", e1);
+                }
             } catch (IOException e) {
                 Log.e(TAG, "IOException", e);
                 handleSendException(e.toString());
@@ -707,13 +647,16 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 Log.e(TAG, "IndexOutOfBoundsException", e);
                 handleSendException(e.toString());
             } finally {
+                if (source != null) {
+                    source.close();
+                }
                 try {
                     // Close InputStream and remove SendFileInfo from map
-                    BluetoothOppUtility.closeSendFileInfo(mInfo.mUri);
+                    BluetoothOppUtility.closeSendFileInfo(mInfo.mId);
 
-                    if (uiUpdateThread != null) {
-                        uiUpdateThread.interrupt ();
-                        uiUpdateThread = null;
+                    if (progress != null) {
+                        BluetoothOppProgressPublisher.getInstance(mContext1).unregister(progress);
+                        progress = null;
                     }
 
                     fileInfo.mInputStream.close();
@@ -777,6 +720,37 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             return status;
         }
 
+        /*
+         * Wait until the socket is no longer congested. Backs off exponentially
+         * instead of polling at a fixed rate, and returns immediately in the
+         * common uncongested case.
+         */
+        private void waitForSocketUncongested() {
+            BluetoothOppTransport transport = (BluetoothOppTransport)mTransport1;
+            int backoffMs = 1;
+            while (!mInterrupted) {
+                int congStatus = transport.getSockCongStatus();
+                if ((congStatus == 0) || (congStatus == -1)) {
+                    break;
+                }
+                try {
+                    backoffMs = backOff(backoffMs);
+                } catch (InterruptedException e) {
+                    Log.v(TAG, "Interrupted while checking the socket congestion evt");
+                    break;
+                }
+            }
+        }
+
+        /*
+         * Sleep for backoffMs and return the next back-off, doubled and capped
+         * at CONGESTION_BACKOFF_MAX_MS.
+         */
+        private int backOff(int backoffMs) throws InterruptedException {
+            Thread.sleep(backoffMs);
+            return Math.min(backoffMs * 2, CONGESTION_BACKOFF_MAX_MS);
+        }
+
         private void handleSendException(String exception) {
             Log.e(TAG, "Error when sending file: " + exception);
             int status = BluetoothShare.STATUS_OBEX_DATA_ERROR;
@@ -33,7 +33,6 @@
 
 package com.android.bluetooth.opp;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -82,6 +81,13 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
     private static final boolean D = Constants.DEBUG;
     private static final boolean V = Log.isLoggable(Constants.TAG, Log.VERBOSE) ? true : false;
 
+    /**
+     * Whether received data is persisted by a writer thread so that storage
+     * stalls do not stop reading the link, see BluetoothOppReceivePipeline.
+     */
+    private static final boolean PIPELINED_RECEIVE =
+            SystemProperties.getBoolean("persist.bt.opp.pipelined_receive", true);
+
     private ObexTransport mTransport;
 
     private Context mContext;
@@ -194,52 +200,6 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
         mSession = null;
     }
 
-    private class ContentResolverUpdateThread extends Thread {
-
-        private Uri contentUri;
-        private Context mContext1;
-        private volatile boolean interrupted = false;
-
-        public ContentResolverUpdateThread(Context context, Uri cntUri) {
-            super("BtOpp Server ContentResolverUpdateThread");
-            mContext1 = context;
-            contentUri = cntUri;
-        }
-
-        @Override
-        public void run() {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            ContentValues updateValues;
-            while (true) {
-                if (pm.isScreenOn()) {
-                    updateValues = new ContentValues();
-                    updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                    mContext1.getContentResolver().update(contentUri, updateValues,
-                            null, null);
-                }
-
-                /* Check if the Operation is interrupted before entering sleep */
-                if (interrupted == true) {
-                    if (V) Log.v(TAG, "ContentResolverUpdateThread was interrupted before sleep !, exiting");
-                    return;
-                }
-
-                try {
-                    Thread.sleep(BluetoothShare.UI_UPDATE_INTERVAL);
-                } catch (InterruptedException e1) {
-                    if (V) Log.v(TAG, "Server ContentResolverUpdateThread was interrupted (1), exiting");
-                    return;
-                }
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            interrupted = true;
-            super.interrupt();
-        }
-    }
-
     /*
     * Called when a ABORT request is received.
     */
@@ -558,8 +518,12 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
          */
         long beginTime = 0;
         int status = -1;
-        BufferedOutputStream bos = null;
-        ContentResolverUpdateThread uiUpdateThread = null;
+        BluetoothOppReceivePipeline sink = null;
+        BluetoothOppProgressPublisher.Progress progress = null;
+        boolean keepPartial = false;
+        // bytes kept from an earlier attempt, checked against the object sent again
+        InputStream kept = null;
+        byte[] keptData = null;
 
         InputStream is = null;
         boolean error = false;
@@ -581,28 +545,60 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
 
         position = 0;
         if (!error) {
-            bos = new BufferedOutputStream(fileInfo.mOutputStream, 0x10000);
+            sink = new BluetoothOppReceivePipeline(fileInfo.mOutputStream, fileInfo.mOffset,
+                    fileInfo.mLength, op.getMaxPacketSize(), PIPELINED_RECEIVE);
+            sink.start();
         }
 
         if (!error) {
-            int outputBufferSize = op.getMaxPacketSize();
-            byte[] b = new byte[outputBufferSize];
+            BluetoothOppChunk chunk;
             int readLength = 0;
             long timestamp = 0;
             try {
                 beginTime = System.currentTimeMillis();
+                if (fileInfo.mOffset > 0) {
+                    kept = openKeptFile(fileInfo, sink);
+                    keptData = new byte[op.getMaxPacketSize()];
+                }
                 while ((!mInterrupted) && (position != fileInfo.mLength)) {
 
                     if (V) timestamp = System.currentTimeMillis();
 
-                    readLength = is.read(b);
+                    chunk = sink.obtain();
+                    readLength = is.read(chunk.mData);
 
                     if (readLength == -1) {
                         if (D) Log.d(TAG, "Receive file reached stream end at position" + position);
+                        sink.release(chunk);
                         break;
                     }
 
-                    bos.write(b, 0, readLength);
+                    if (kept != null) {
+                        int length = (int)Math.min(readLength, fileInfo.mOffset - position);
+                        int matched = matchKeptBytes(kept, keptData, chunk.mData, length);
+                        if (matched < length) {
+                            // the kept bytes are not the start of this object
+                            Log.w(TAG, "Kept file differs at " + (position + matched)
+                                    + ", receiving the rest again");
+                            restartPartialFile(fileInfo, sink, position + matched);
+                        }
+                        if (position + readLength >= fileInfo.mOffset) {
+                            kept.close();
+                            kept = null;
+                        }
+                    }
+
+                    if (position + readLength <= fileInfo.mOffset) {
+                        // already on disk from an earlier attempt
+                        sink.release(chunk);
+                    } else {
+                        int skip = (int)Math.max(0, fileInfo.mOffset - position);
+                        if (skip > 0) {
+                            System.arraycopy(chunk.mData, skip, chunk.mData, 0, readLength - skip);
+                        }
+                        chunk.mLength = readLength - skip;
+                        sink.submit(chunk);
+                    }
                     position += readLength;
 
                     if (V) {
@@ -611,27 +607,22 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                                 + (System.currentTimeMillis() - timestamp) + " ms");
                     }
 
-                    if (uiUpdateThread == null) {
-                        uiUpdateThread = new ContentResolverUpdateThread (mContext, contentUri);
-                        if (V) Log.v(TAG, "Worker for Updation : Created");
-                        uiUpdateThread.start();
+                    if (progress == null) {
+                        progress = BluetoothOppProgressPublisher.getInstance(mContext)
+                                .register(mInfo.mId);
                     }
+                    progress.set(position);
                 }
 
-                if (uiUpdateThread != null) {
-                    try {
-                        if (V) Log.v(TAG, "Worker for Updation : Destroying");
-                        uiUpdateThread.interrupt ();
-                        uiUpdateThread.join ();
-                        uiUpdateThread = null;
-
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                        mContext.getContentResolver().update(contentUri, updateValues,
-                                        null, null);
-                    } catch (InterruptedException ie) {
-                            if (V) Log.v(TAG, "Interrupted waiting for uiUpdateThread to join");
-                    }
+                if (!mInterrupted) {
+                    // data still queued for storage must be on disk before we report success
+                    sink.finish();
+                }
+
+                if (progress != null) {
+                    // publishes the final position
+                    BluetoothOppProgressPublisher.getInstance(mContext).unregister(progress);
+                    progress = null;
                 }
             } catch (IOException e1) {
                 Log.e(TAG, "Error when receiving file: " + e1);
@@ -640,18 +631,16 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                     status = BluetoothShare.STATUS_CANCELED;
                 } else {
                     status = BluetoothShare.STATUS_OBEX_DATA_ERROR;
+                    keepPartial = BluetoothOppReceiveFileInfo.RESUMABLE_RECEIVE;
                 }
-                if (mFileInfo.mFileName != null) {
+                if (mFileInfo.mFileName != null && !keepPartial) {
                     new File(mFileInfo.mFileName).delete();
                 }
                 error = true;
             } finally {
-                if (uiUpdateThread != null) {
-                    if (V) {
-                        Log.v(TAG, "Worker for Updation : Finally Destroying");
-                    }
-                    uiUpdateThread.interrupt ();
-                    uiUpdateThread = null;
+                if (progress != null) {
+                    BluetoothOppProgressPublisher.getInstance(mContext).unregister(progress);
+                    progress = null;
                 }
             }
         }
@@ -675,16 +664,84 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
             }
         }
 
-        if (bos != null) {
+        if (kept != null) {
             try {
-                bos.close();
+                kept.close();
             } catch (IOException e) {
-                Log.e(TAG, "Error when closing stream after send");
+                Log.e(TAG, "Error when closing kept file: " + e);
+            }
+        }
+        if (sink != null) {
+            sink.close();
+            if (keepPartial && !mInterrupted) {
+                saveCheckpoint(contentUri, sink.getWrittenBytes());
             }
         }
         return status;
     }
 
+    /**
+     * Opens the file kept from an earlier attempt for checking it against the
+     * object sent again, or receives it from the start if it can't be read.
+     */
+    private InputStream openKeptFile(BluetoothOppReceiveFileInfo fileInfo,
+            BluetoothOppReceivePipeline sink) throws IOException {
+        try {
+            return new BufferedInputStream(new FileInputStream(fileInfo.mFileName));
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Can't read kept file, receiving it again: " + e);
+            restartPartialFile(fileInfo, sink, 0);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the next length bytes of the file kept from an earlier attempt
+     * and returns how many of them match the start of data.
+     */
+    private static int matchKeptBytes(InputStream kept, byte[] keptData, byte[] data, int length)
+            throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = kept.read(keptData, read, length - read);
+            if (count == -1) {
+                break;
+            }
+            read += count;
+        }
+        for (int i = 0; i < read; i++) {
+            if (keptData[i] != data[i]) {
+                return i;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Drops the bytes of the kept file from offset on; they are received again.
+     */
+    private void restartPartialFile(BluetoothOppReceiveFileInfo fileInfo,
+            BluetoothOppReceivePipeline sink, long offset) throws IOException {
+        sink.truncate(offset);
+        fileInfo.mOffset = offset;
+    }
+
+    /**
+     * Records how much of the failed file is on disk, so that the same
+     * object sent again resumes after it, see BluetoothOppReceiveFileInfo.
+     */
+    private void saveCheckpoint(Uri contentUri, long written) {
+        if (written <= 0) {
+            new File(mFileInfo.mFileName).delete();
+            return;
+        }
+        if (D) Log.d(TAG, "Keeping " + written + " bytes of " + mFileInfo.mFileName);
+        mInfo.mCheckpoint = written;
+        ContentValues updateValues = new ContentValues();
+        updateValues.put(BluetoothShare.CHECKPOINT, written);
+        mContext.getContentResolver().update(contentUri, updateValues, null, null);
+    }
+
     private BluetoothOppReceiveFileInfo processShareInfo() {
         if (D) Log.d(TAG, "processShareInfo() " + mInfo.mId);
         BluetoothOppReceiveFileInfo fileInfo = BluetoothOppReceiveFileInfo.generateFileInfo(
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of The Linux Foundation nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the CURRENT_BYTES of all running OBEX transfers to
+ * BluetoothOppProvider.
+ *
+ * Sessions update a lock free per transfer counter for every packet. Once
+ * per UI_UPDATE_INTERVAL a single publisher thread writes the counters that
+ * changed since the last tick in one provider transaction, and stops ticking
+ * as soon as no transfer makes progress or the screen goes off. A singleton got from
+ * BluetoothOppProgressPublisher.getInstance(context).
+ */
+public class BluetoothOppProgressPublisher {
+    private static final String TAG = "BtOppProgressPublisher";
+
+    private static final boolean V = Log.isLoggable(Constants.TAG, Log.VERBOSE) ? true : false;
+
+    private static final int MSG_TICK = 1;
+
+    private static BluetoothOppProgressPublisher INSTANCE;
+
+    /** Used when obtaining a reference to the singleton instance. */
+    private static final Object INSTANCE_LOCK = new Object();
+
+    private final Context mContext;
+
+    private final PowerManager mPowerManager;
+
+    private final Handler mHandler;
+
+    /* Registered transfers by share id, guarded by itself */
+    private final SparseArray<Progress> mTransfers = new SparseArray<Progress>();
+
+    /*
+     * Serializes the provider writes so that a tick cannot overwrite a final
+     * count. Taken before mTransfers, and never while holding it, so register()
+     * and wakeUp() do not wait on the provider.
+     */
+    private final Object mApplyLock = new Object();
+
+    /* True while no tick is scheduled, read by every Progress.set() */
+    private volatile boolean mIdle = true;
+
+    /* Nobody is watching the progress while the screen is off */
+    private volatile boolean mScreenOn;
+
+    /**
+     * The progress of one transfer. set() is called by the session for every
+     * packet and only touches an atomic unless the publisher has gone idle.
+     */
+    public final class Progress {
+        private final int mId;
+
+        private final AtomicLong mBytes = new AtomicLong();
+
+        /* last value written to the provider, publisher thread only */
+        private long mPublished = -1;
+
+        private Progress(int id) {
+            mId = id;
+        }
+
+        public void set(long bytes) {
+            mBytes.set(bytes);
+            if (mIdle && mScreenOn) {
+                wakeUp();
+            }
+        }
+    }
+
+    public static BluetoothOppProgressPublisher getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothOppProgressPublisher(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothOppProgressPublisher(Context context) {
+        mContext = context;
+        mPowerManager = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+        HandlerThread thread = new HandlerThread("BtOpp ProgressPublisher",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new PublisherHandler(thread.getLooper());
+        mScreenOn = mPowerManager.isScreenOn();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        context.registerReceiver(mScreenReceiver, filter, null, mHandler);
+    }
+
+    private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mScreenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            if (V) Log.v(TAG, "screen on: " + mScreenOn);
+            if (mScreenOn) {
+                // publish what changed while the screen was off
+                wakeUp();
+            }
+        }
+    };
+
+    /**
+     * Starts publishing the progress of a transfer. The returned counter must
+     * be handed back through {@link #unregister(Progress)} when the transfer
+     * ends.
+     */
+    public Progress register(int shareId) {
+        Progress progress = new Progress(shareId);
+        synchronized (mTransfers) {
+            mTransfers.put(shareId, progress);
+        }
+        if (V) Log.v(TAG, "register " + shareId);
+        return progress;
+    }
+
+    /**
+     * Stops publishing the progress of a transfer and writes its final byte
+     * count if that was not published yet.
+     */
+    public void unregister(Progress progress) {
+        // under mApplyLock so that a tick in flight cannot overwrite the final count
+        synchronized (mApplyLock) {
+            ArrayList<ContentProviderOperation> ops = null;
+            synchronized (mTransfers) {
+                if (mTransfers.get(progress.mId) == progress) {
+                    mTransfers.remove(progress.mId);
+                }
+                long bytes = progress.mBytes.get();
+                if (bytes != progress.mPublished) {
+                    ops = new ArrayList<ContentProviderOperation>(1);
+                    ops.add(newUpdate(progress.mId, bytes));
+                    progress.mPublished = bytes;
+                }
+            }
+            if (ops != null) {
+                apply(ops);
+            }
+        }
+        if (V) Log.v(TAG, "unregister " + progress.mId);
+    }
+
+    private void wakeUp() {
+        synchronized (mTransfers) {
+            if (mIdle) {
+                mIdle = false;
+                mHandler.sendEmptyMessageDelayed(MSG_TICK, BluetoothShare.UI_UPDATE_INTERVAL);
+            }
+        }
+    }
+
+    private void publish() {
+        synchronized (mApplyLock) {
+            ArrayList<ContentProviderOperation> ops = null;
+            synchronized (mTransfers) {
+                if (!mScreenOn) {
+                    // nobody is watching, publish when the screen comes back on
+                    if (V) Log.v(TAG, "screen off, going idle");
+                    mIdle = true;
+                    return;
+                }
+                for (int i = 0, n = mTransfers.size(); i < n; i++) {
+                    Progress progress = mTransfers.valueAt(i);
+                    long bytes = progress.mBytes.get();
+                    if (bytes == progress.mPublished) {
+                        continue;
+                    }
+                    if (ops == null) {
+                        ops = new ArrayList<ContentProviderOperation>(n);
+                    }
+                    ops.add(newUpdate(progress.mId, bytes));
+                    progress.mPublished = bytes;
+                }
+                if (ops != null) {
+                    mHandler.sendEmptyMessageDelayed(MSG_TICK, BluetoothShare.UI_UPDATE_INTERVAL);
+                } else {
+                    if (V) Log.v(TAG, "no progress, going idle");
+                    mIdle = true;
+                }
+            }
+            if (ops != null) {
+                apply(ops);
+            }
+        }
+    }
+
+    private static ContentProviderOperation newUpdate(int id, long bytes) {
+        Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + id);
+        return ContentProviderOperation.newUpdate(contentUri)
+                .withValue(BluetoothShare.CURRENT_BYTES, bytes)
+                .build();
+    }
+
+    private void apply(ArrayList<ContentProviderOperation> ops) {
+        try {
+            mContext.getContentResolver().applyBatch(BluetoothShare.CONTENT_URI.getAuthority(),
+                    ops);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error publishing transfer progress: " + e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Error publishing transfer progress: " + e);
+        }
+    }
+
+    private class PublisherHandler extends Handler {
+        public PublisherHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_TICK:
+                    publish();
+                    break;
+            }
+        }
+    }
+}
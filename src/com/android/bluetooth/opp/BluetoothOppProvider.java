@@ -33,10 +33,14 @@
 package com.android.bluetooth.opp;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.content.UriMatcher;
 import android.database.sqlite.SQLiteDatabase;
@@ -46,6 +50,8 @@ import android.net.Uri;
 import android.provider.LiveFolders;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -64,7 +70,16 @@ public final class BluetoothOppProvider extends ContentProvider {
     private static final String DB_NAME = "btopp.db";
 
     /** Current database version */
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 4;
+
+    /** Database version that added BluetoothShare.MODIFICATION_SEQ */
+    private static final int DB_VERSION_MOD_SEQ = 2;
+
+    /** Database version that added the secondary indexes */
+    private static final int DB_VERSION_INDEXES = 3;
+
+    /** Database version that added BluetoothShare.CHECKPOINT */
+    private static final int DB_VERSION_CHECKPOINT = 4;
 
     /** Database version from which upgrading is a nop */
     private static final int DB_VERSION_NOP_UPGRADE_FROM = 0;
@@ -73,7 +88,8 @@ public final class BluetoothOppProvider extends ContentProvider {
     private static final int DB_VERSION_NOP_UPGRADE_TO = 1;
 
     /** Name of table in the database */
-    private static final String DB_TABLE = "btopp";
+    @VisibleForTesting
+    static final String DB_TABLE = "btopp";
 
     /** MIME type for the entire share list */
     private static final String SHARE_LIST_TYPE = "vnd.android.cursor.dir/vnd.android.btopp";
@@ -111,6 +127,19 @@ public final class BluetoothOppProvider extends ContentProvider {
     /** The database that lies underneath this content provider */
     private SQLiteOpenHelper mOpenHelper = null;
 
+    /**
+     * Set while applyBatch() runs on the calling thread, to notify once at
+     * the end. TRUE once the batch deleted rows.
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    /**
+     * Last BluetoothShare.MODIFICATION_SEQ handed out, -1 until read from the
+     * database. Only accessed inside a write transaction, which serializes
+     * the stamps with the order the rows are committed in.
+     */
+    private long mModificationSeq = -1;
+
     /**
      * Creates and updated database on demand when opening it. Helper class to
      * create database the first time the provider is initialized and upgrade it
@@ -130,6 +159,7 @@ public final class BluetoothOppProvider extends ContentProvider {
         public void onCreate(final SQLiteDatabase db) {
             if (V) Log.v(TAG, "populating new database");
             createTable(db);
+            createIndexes(db);
         }
 
         //TODO: use this function to check garbage transfer left in db, for example,
@@ -162,15 +192,42 @@ public final class BluetoothOppProvider extends ContentProvider {
                 // from NOP_FROM is the same as upgrading from NOP_TO.
                 oldV = DB_VERSION_NOP_UPGRADE_TO;
             }
+            if (oldV >= DB_VERSION_NOP_UPGRADE_TO && oldV < newV) {
+                // step by step, keeping the transfer history
+                for (int version = oldV + 1; version <= newV; version++) {
+                    upgradeTo(db, version);
+                }
+                return;
+            }
             Log.i(TAG, "Upgrading downloads database from version " + oldV + " to "
                     + newV + ", which will destroy all old data");
             dropTable(db);
             createTable(db);
+            createIndexes(db);
         }
 
+        private void upgradeTo(SQLiteDatabase db, int version) {
+            Log.i(TAG, "Upgrading database to version " + version);
+            switch (version) {
+                case DB_VERSION_MOD_SEQ:
+                    db.execSQL("ALTER TABLE " + DB_TABLE + " ADD COLUMN "
+                            + BluetoothShare.MODIFICATION_SEQ + " INTEGER DEFAULT 0");
+                    break;
+                case DB_VERSION_INDEXES:
+                    createIndexes(db);
+                    break;
+                case DB_VERSION_CHECKPOINT:
+                    db.execSQL("ALTER TABLE " + DB_TABLE + " ADD COLUMN "
+                            + BluetoothShare.CHECKPOINT + " INTEGER DEFAULT 0");
+                    break;
+                default:
+                    throw new IllegalStateException("Don't know how to upgrade to " + version);
+            }
+        }
     }
 
-    private void createTable(SQLiteDatabase db) {
+    @VisibleForTesting
+    static void createTable(SQLiteDatabase db) {
         try {
             db.execSQL("CREATE TABLE " + DB_TABLE + "(" + BluetoothShare._ID
                     + " INTEGER PRIMARY KEY AUTOINCREMENT," + BluetoothShare.URI + " TEXT, "
@@ -181,13 +238,45 @@ public final class BluetoothOppProvider extends ContentProvider {
                     + BluetoothShare.STATUS + " INTEGER, " + BluetoothShare.TOTAL_BYTES
                     + " INTEGER, " + BluetoothShare.CURRENT_BYTES + " INTEGER, "
                     + BluetoothShare.TIMESTAMP + " INTEGER," + Constants.MEDIA_SCANNED
-                    + " INTEGER); ");
+                    + " INTEGER, " + BluetoothShare.MODIFICATION_SEQ + " INTEGER DEFAULT 0, "
+                    + BluetoothShare.CHECKPOINT + " INTEGER DEFAULT 0); ");
         } catch (SQLException ex) {
             Log.e(TAG, "couldn't create table in downloads database");
             throw ex;
         }
     }
 
+    /**
+     * Creates the indexes backing the notification, history and trimming
+     * queries, so that none of them has to scan the whole transfer history.
+     */
+    @VisibleForTesting
+    static void createIndexes(SQLiteDatabase db) {
+        try {
+            // running transfers and pending confirmations
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_status_idx ON " + DB_TABLE
+                    + "(" + BluetoothShare.STATUS + ", " + BluetoothShare.VISIBILITY + ", "
+                    + BluetoothShare.DIRECTION + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_confirm_idx ON " + DB_TABLE
+                    + "(" + BluetoothShare.USER_CONFIRMATION + ", " + BluetoothShare.DIRECTION
+                    + ")");
+            // completed transfers per direction, newest first
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_direction_idx ON " + DB_TABLE
+                    + "(" + BluetoothShare.DIRECTION + ", " + BluetoothShare.STATUS + ", "
+                    + BluetoothShare.TIMESTAMP + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_timestamp_idx ON " + DB_TABLE
+                    + "(" + BluetoothShare.TIMESTAMP + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_destination_idx ON "
+                    + DB_TABLE + "(" + BluetoothShare.DESTINATION + ")");
+            // incremental sync in BluetoothOppService
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_mod_seq_idx ON " + DB_TABLE
+                    + "(" + BluetoothShare.MODIFICATION_SEQ + ")");
+        } catch (SQLException ex) {
+            Log.e(TAG, "couldn't create indexes in downloads database");
+            throw ex;
+        }
+    }
+
     private void dropTable(SQLiteDatabase db) {
         try {
             db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
@@ -244,6 +333,76 @@ public final class BluetoothOppProvider extends ContentProvider {
             throw new IllegalArgumentException("Unknown/Invalid URI " + uri);
         }
 
+        Context context = getContext();
+        context.startService(new Intent(context, BluetoothOppService.class));
+
+        long rowID;
+        db.beginTransaction();
+        try {
+            rowID = insertShare(db, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Uri ret = null;
+
+        if (rowID != -1) {
+            context.startService(new Intent(context, BluetoothOppService.class));
+            ret = Uri.parse(BluetoothShare.CONTENT_URI + "/" + rowID);
+            notifyChange(uri);
+        } else {
+            if (D) Log.d(TAG, "couldn't insert into btopp database");
+            }
+
+        return ret;
+    }
+
+    /**
+     * Inserts all the shares in a single transaction, starting the service
+     * and notifying the observers once for the whole set.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        if (sURIMatcher.match(uri) != SHARES) {
+            if (D) Log.d(TAG, "calling bulkInsert on an unknown/invalid URI: " + uri);
+            throw new IllegalArgumentException("Unknown/Invalid URI " + uri);
+        }
+
+        Context context = getContext();
+        context.startService(new Intent(context, BluetoothOppService.class));
+
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues share : values) {
+                if (insertShare(db, share) != -1) {
+                    count++;
+                } else {
+                    if (D) Log.d(TAG, "couldn't insert into btopp database");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            context.startService(new Intent(context, BluetoothOppService.class));
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    /**
+     * Inserts one share with the default values filled in. Must be called
+     * inside a transaction on db.
+     *
+     * @return the row ID of the new share, or -1 if it couldn't be inserted
+     */
+    private long insertShare(SQLiteDatabase db, ContentValues values) {
         ContentValues filteredValues = new ContentValues();
 
         copyString(BluetoothShare.URI, values, filteredValues);
@@ -281,22 +440,8 @@ public final class BluetoothOppProvider extends ContentProvider {
         }
         filteredValues.put(BluetoothShare.TIMESTAMP, ts);
 
-        Context context = getContext();
-        context.startService(new Intent(context, BluetoothOppService.class));
-
-        long rowID = db.insert(DB_TABLE, null, filteredValues);
-
-        Uri ret = null;
-
-        if (rowID != -1) {
-            context.startService(new Intent(context, BluetoothOppService.class));
-            ret = Uri.parse(BluetoothShare.CONTENT_URI + "/" + rowID);
-            context.getContentResolver().notifyChange(uri, null);
-        } else {
-            if (D) Log.d(TAG, "couldn't insert into btopp database");
-            }
-
-        return ret;
+        filteredValues.put(BluetoothShare.MODIFICATION_SEQ, nextModificationSeq(db));
+        return db.insert(DB_TABLE, null, filteredValues);
     }
 
     @Override
@@ -420,7 +565,16 @@ public final class BluetoothOppProvider extends ContentProvider {
                 }
 
                 if (values.size() > 0) {
-                    count = db.update(DB_TABLE, values, myWhere, selectionArgs);
+                    ContentValues stampedValues = new ContentValues(values);
+                    db.beginTransaction();
+                    try {
+                        stampedValues.put(BluetoothShare.MODIFICATION_SEQ,
+                                nextModificationSeq(db));
+                        count = db.update(DB_TABLE, stampedValues, myWhere, selectionArgs);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
                 } else {
                     count = 0;
                 }
@@ -431,7 +585,7 @@ public final class BluetoothOppProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URI: " + uri);
             }
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -468,7 +622,59 @@ public final class BluetoothOppProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot delete URI: " + uri);
             }
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+        if (count > 0) {
+            notifyDeleted();
+        }
         return count;
     }
+
+    /**
+     * Applies all operations in a single database transaction and sends a
+     * single change notification for the whole batch.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mApplyingBatch.set(Boolean.FALSE);
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            boolean deleted = mApplyingBatch.get();
+            mApplyingBatch.remove();
+            getContext().getContentResolver().notifyChange(BluetoothShare.CONTENT_URI, null);
+            if (deleted) {
+                notifyDeleted();
+            }
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        if (mApplyingBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private void notifyDeleted() {
+        if (mApplyingBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(BluetoothShare.DELETED_CONTENT_URI,
+                    null);
+        } else {
+            mApplyingBatch.set(Boolean.TRUE);
+        }
+    }
+
+    /* Must be called inside a write transaction */
+    private long nextModificationSeq(SQLiteDatabase db) {
+        if (mModificationSeq < 0) {
+            mModificationSeq = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                    + BluetoothShare.MODIFICATION_SEQ + "), 0) FROM " + DB_TABLE, null);
+        }
+        return ++mModificationSeq;
+    }
 }
@@ -48,6 +48,7 @@ import android.net.Uri;
 import android.os.Environment;
 import android.os.StatFs;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.Log;
 
 /**
@@ -63,6 +64,14 @@ public class BluetoothOppReceiveFileInfo {
     /* To truncate the name of the received file if the length exceeds 245 */
     public static final int OPP_LENGTH_OF_FILE_NAME = 244;
 
+    /**
+     * Whether the partial file of an inbound transfer that failed on a link
+     * error is kept, so that receiving the same object again can resume
+     * after the bytes already on disk. See BluetoothShare.CHECKPOINT.
+     */
+    static final boolean RESUMABLE_RECEIVE =
+            SystemProperties.getBoolean("persist.bt.opp.resumable_receive", false);
+
     /** absolute store file name */
     public String mFileName;
 
@@ -70,6 +79,9 @@ public class BluetoothOppReceiveFileInfo {
 
     public FileOutputStream mOutputStream;
 
+    /** bytes already in the file from an earlier attempt, not to be written again */
+    public long mOffset;
+
     public int mStatus;
 
     public String mData;
@@ -97,12 +109,13 @@ public class BluetoothOppReceiveFileInfo {
 
         ContentResolver contentResolver = context.getContentResolver();
         Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + id);
-        String filename = null, hint = null, mimeType = null;
+        String filename = null, hint = null, mimeType = null, destination = null;
         long length = 0;
         Cursor metadataCursor;
         try {
             metadataCursor = contentResolver.query(contentUri, new String[] {
-                        BluetoothShare.FILENAME_HINT, BluetoothShare.TOTAL_BYTES, BluetoothShare.MIMETYPE
+                        BluetoothShare.FILENAME_HINT, BluetoothShare.TOTAL_BYTES, BluetoothShare.MIMETYPE,
+                        BluetoothShare.DESTINATION
                     }, null, null, null);
         } catch (SQLiteException e) {
             metadataCursor = null;
@@ -115,6 +128,7 @@ public class BluetoothOppReceiveFileInfo {
                     hint = metadataCursor.getString(0);
                     length = metadataCursor.getLong(1);
                     mimeType = metadataCursor.getString(2);
+                    destination = metadataCursor.getString(3);
                 }
             } finally {
                 metadataCursor.close();
@@ -149,6 +163,14 @@ public class BluetoothOppReceiveFileInfo {
             return new BluetoothOppReceiveFileInfo(BluetoothShare.STATUS_ERROR_SDCARD_FULL);
         }
 
+        if (RESUMABLE_RECEIVE && hint != null && destination != null) {
+            BluetoothOppReceiveFileInfo partial =
+                    resumePartialFile(context, id, hint, length, mimeType, destination);
+            if (partial != null) {
+                return partial;
+            }
+        }
+
         filename = choosefilename(hint);
         if (filename == null) {
             // should not happen. It must be pre-rejected
@@ -243,6 +265,107 @@ public class BluetoothOppReceiveFileInfo {
         }
     }
 
+    /**
+     * Looks for the partial file of an earlier, failed attempt to receive
+     * the same object from the same device, and opens it for appending.
+     * The earlier share gives up its checkpoint, so the file is resumed at
+     * most once. Matching only goes by metadata; the kept bytes are checked
+     * against the object as it is sent again before anything is appended,
+     * see BluetoothOppObexServerSession.
+     *
+     * @return the file info positioned at the end of the partial file, or
+     *         null when there is nothing to resume
+     */
+    private static BluetoothOppReceiveFileInfo resumePartialFile(Context context, int id,
+            String hint, long length, String mimeType, String destination) {
+        ContentResolver contentResolver = context.getContentResolver();
+        String selection = BluetoothShare.DIRECTION + "=" + BluetoothShare.DIRECTION_INBOUND
+                + " AND " + BluetoothShare.CHECKPOINT + ">0"
+                + " AND " + BluetoothShare.TOTAL_BYTES + "=" + length
+                + " AND " + BluetoothShare.DESTINATION + "=?"
+                + " AND " + BluetoothShare._ID + "!=" + id;
+        Cursor cursor;
+        try {
+            cursor = contentResolver.query(BluetoothShare.CONTENT_URI, new String[] {
+                        BluetoothShare._ID, BluetoothShare._DATA, BluetoothShare.CHECKPOINT,
+                        BluetoothShare.FILENAME_HINT, BluetoothShare.MIMETYPE
+                    }, selection, new String[] { destination }, BluetoothShare._ID + " DESC");
+        } catch (SQLiteException e) {
+            Log.e(Constants.TAG, "SQLite exception: " + e);
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+
+        int partialId = -1;
+        String partialName = null;
+        long checkpoint = 0;
+        try {
+            // the received file name may carry a sequence number added on a name clash
+            int dotIndex = hint.lastIndexOf(".");
+            String prefix = (dotIndex > 0 ? hint.substring(0, dotIndex) : hint)
+                    + Constants.filename_SEQUENCE_SEPARATOR;
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                String partialHint = cursor.getString(3);
+                if (partialHint == null || (!partialHint.equals(hint)
+                        && !partialHint.startsWith(prefix))) {
+                    continue;
+                }
+                if (mimeType != null && !mimeType.equals(cursor.getString(4))) {
+                    continue;
+                }
+                partialId = cursor.getInt(0);
+                partialName = cursor.getString(1);
+                checkpoint = cursor.getLong(2);
+                break;
+            }
+        } finally {
+            cursor.close();
+        }
+        if (partialId == -1) {
+            return null;
+        }
+
+        boolean resumable = partialName != null && checkpoint < length
+                && new File(partialName).length() == checkpoint
+                && safeCanonicalPath(partialName);
+
+        // whatever happens next, this checkpoint is used up; the file moves to the new share
+        ContentValues updateValues = new ContentValues();
+        updateValues.put(BluetoothShare.CHECKPOINT, 0);
+        if (resumable) {
+            updateValues.putNull(BluetoothShare._DATA);
+        }
+        contentResolver.update(Uri.parse(BluetoothShare.CONTENT_URI + "/" + partialId),
+                updateValues, null, null);
+
+        if (!resumable) {
+            if (D) Log.d(Constants.TAG, "Partial file of share " + partialId + " can't be resumed");
+            return null;
+        }
+
+        try {
+            BluetoothOppReceiveFileInfo fileInfo = new BluetoothOppReceiveFileInfo(partialName,
+                    length, new FileOutputStream(partialName, true), 0);
+            fileInfo.mOffset = checkpoint;
+
+            int index = partialName.lastIndexOf('/') + 1;
+            if (index > 0) {
+                updateValues = new ContentValues();
+                updateValues.put(BluetoothShare.FILENAME_HINT, partialName.substring(index));
+                contentResolver.update(Uri.parse(BluetoothShare.CONTENT_URI + "/" + id),
+                        updateValues, null, null);
+            }
+            if (D) Log.d(Constants.TAG, "Resume receiving " + partialName + " at " + checkpoint
+                    + " of " + length + " bytes");
+            return fileInfo;
+        } catch (IOException e) {
+            if (D) Log.e(Constants.TAG, "Error when opening partial file " + partialName);
+            return null;
+        }
+    }
+
     private static String chooseUniquefilename(String filename, String extension) {
         String fullfilename = filename + extension;
         if (!new File(fullfilename).exists()) {
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of The Linux Foundation nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Persists the content of an inbound file received by the OBEX server.
+ *
+ * In pipelined mode the file is preallocated to its announced length and a
+ * writer thread drains filled buffers from a bounded pool through the file's
+ * FileChannel, so a storage stall does not stop the OBEX thread from reading
+ * the link until the pool runs dry. Otherwise every chunk is written on the
+ * caller's thread through a BufferedOutputStream.
+ */
+public class BluetoothOppReceivePipeline {
+    private static final String TAG = "BtOppReceivePipeline";
+
+    private static final boolean V = Log.isLoggable(Constants.TAG, Log.VERBOSE) ? true : false;
+
+    /** Number of buffers the OBEX thread may fill ahead of the writer */
+    public static final int PIPELINE_DEPTH = 8;
+
+    private static final int SYNC_WRITE_BUFFER_SIZE = 0x10000;
+
+    /** Marker queued to tell the writer thread that no more data follows */
+    private static final BluetoothOppChunk END_OF_DATA = new BluetoothOppChunk(0);
+
+    private final FileOutputStream mOutputStream;
+
+    private final long mLength;
+
+    private final int mChunkSize;
+
+    private final boolean mPipelined;
+
+    private ArrayBlockingQueue<BluetoothOppChunk> mFree;
+
+    private ArrayBlockingQueue<BluetoothOppChunk> mFilled;
+
+    private WriterThread mWriter;
+
+    private FileChannel mChannel;
+
+    private boolean mPreallocated;
+
+    private boolean mEndQueued;
+
+    private volatile boolean mAborted;
+
+    private volatile IOException mWriteError;
+
+    private volatile long mWritten;
+
+    private OutputStream mSyncStream;
+
+    private BluetoothOppChunk mSyncChunk;
+
+    /**
+     * @param outputStream the file to write, opened for appending when
+     *            offset is not 0
+     * @param offset number of bytes already in the file from an earlier
+     *            attempt; data submitted is written after them
+     * @param length announced length of the whole file
+     */
+    public BluetoothOppReceivePipeline(FileOutputStream outputStream, long offset, long length,
+            int chunkSize, boolean pipelined) {
+        if (outputStream == null) {
+            throw new NullPointerException("outputStream is null");
+        }
+        mOutputStream = outputStream;
+        mWritten = offset;
+        mLength = length;
+        mChunkSize = Math.max(1, chunkSize);
+        mPipelined = pipelined;
+    }
+
+    public void start() {
+        if (mPipelined) {
+            mChannel = mOutputStream.getChannel();
+            preallocate();
+            mFree = new ArrayBlockingQueue<BluetoothOppChunk>(PIPELINE_DEPTH);
+            // one extra slot so END_OF_DATA can always be queued
+            mFilled = new ArrayBlockingQueue<BluetoothOppChunk>(PIPELINE_DEPTH + 1);
+            for (int i = 0; i < PIPELINE_DEPTH; i++) {
+                mFree.add(new BluetoothOppChunk(mChunkSize));
+            }
+            mWriter = new WriterThread();
+            mWriter.start();
+        } else {
+            mSyncStream = new BufferedOutputStream(mOutputStream, SYNC_WRITE_BUFFER_SIZE);
+            mSyncChunk = new BluetoothOppChunk(mChunkSize);
+        }
+        if (V) Log.v(TAG, "started, pipelined " + mPipelined + " chunk size " + mChunkSize);
+    }
+
+    /**
+     * Returns an empty chunk to read the next piece of the file into. Blocks
+     * while all chunks are waiting to be written.
+     *
+     * @throws InterruptedIOException if the calling thread was interrupted
+     *             while waiting for the writer
+     * @throws IOException if the writer failed to persist earlier data
+     */
+    public BluetoothOppChunk obtain() throws IOException {
+        if (!mPipelined) {
+            return mSyncChunk;
+        }
+        checkWriteError();
+        try {
+            return mFree.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for file writer");
+        }
+    }
+
+    /** Queues the first mLength bytes of a chunk from {@link #obtain()} for writing. */
+    public void submit(BluetoothOppChunk chunk) throws IOException {
+        if (!mPipelined) {
+            mSyncStream.write(chunk.mData, 0, chunk.mLength);
+            mWritten += chunk.mLength;
+            return;
+        }
+        checkWriteError();
+        mFilled.offer(chunk);
+    }
+
+    /** Hands back a chunk from {@link #obtain()} that holds no data. */
+    public void release(BluetoothOppChunk chunk) {
+        if (mPipelined) {
+            mFree.offer(chunk);
+        }
+    }
+
+    /**
+     * Waits until all submitted data is written to the file.
+     *
+     * @throws IOException if any of the data could not be written
+     */
+    public void finish() throws IOException {
+        if (!mPipelined) {
+            mSyncStream.flush();
+            return;
+        }
+        stopWriter();
+        checkWriteError();
+        if (V) Log.v(TAG, "finished, " + mWritten + " bytes written");
+    }
+
+    /**
+     * Stops the writer, dropping data not yet written, and closes the file.
+     * Data submitted before a successful {@link #finish()} is kept.
+     */
+    public void close() {
+        if (mPipelined) {
+            mAborted = true;
+            stopWriter();
+            if (mPreallocated && mWritten != mLength) {
+                // do not leave a partial file looking complete
+                try {
+                    mChannel.truncate(mWritten);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error truncating partial file: " + e);
+                }
+            }
+            try {
+                mOutputStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error when closing file stream: " + e);
+            }
+        } else {
+            try {
+                mSyncStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error when closing file stream: " + e);
+            }
+        }
+    }
+
+    /**
+     * Moves the initial offset back, dropping the bytes of the earlier
+     * attempt after it from the file. Only valid before anything was
+     * submitted.
+     */
+    public void truncate(long offset) throws IOException {
+        mOutputStream.getChannel().truncate(offset);
+        mWritten = offset;
+    }
+
+    /** Number of bytes persisted so far, including the initial offset */
+    public long getWrittenBytes() {
+        return mWritten;
+    }
+
+    private void preallocate() {
+        if (mLength <= 0 || mWritten != 0) {
+            // appending writes go to the end of the file, which must not grow ahead of them
+            return;
+        }
+        try {
+            Os.posix_fallocate(mOutputStream.getFD(), 0, mLength);
+            mPreallocated = true;
+        } catch (ErrnoException e) {
+            // not supported by every file system, the file simply grows as written
+            if (V) Log.v(TAG, "Could not preallocate " + mLength + " bytes: " + e);
+        } catch (IOException e) {
+            if (V) Log.v(TAG, "Could not preallocate " + mLength + " bytes: " + e);
+        }
+    }
+
+    private void stopWriter() {
+        if (mWriter == null) {
+            return;
+        }
+        if (!mEndQueued) {
+            mEndQueued = true;
+            mFilled.offer(END_OF_DATA);
+        }
+        try {
+            mWriter.join();
+            mWriter = null;
+        } catch (InterruptedException e) {
+            mWriteError = new InterruptedIOException("Interrupted waiting for file writer");
+        }
+    }
+
+    private void checkWriteError() throws IOException {
+        IOException e = mWriteError;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    private class WriterThread extends Thread {
+
+        public WriterThread() {
+            super("BtOpp ReceiveWriterThread");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                while (true) {
+                    BluetoothOppChunk chunk = mFilled.take();
+                    if (chunk == END_OF_DATA) {
+                        break;
+                    }
+                    if (!mAborted && mWriteError == null) {
+                        try {
+                            ByteBuffer buffer = chunk.mBuffer;
+                            buffer.clear();
+                            buffer.limit(chunk.mLength);
+                            while (buffer.hasRemaining()) {
+                                mChannel.write(buffer);
+                            }
+                            mWritten += chunk.mLength;
+                        } catch (IOException e) {
+                            // keep draining so the OBEX thread never blocks on a dead writer
+                            Log.e(TAG, "Error writing received file: " + e);
+                            mWriteError = e;
+                        }
+                    }
+                    mFree.put(chunk);
+                }
+            } catch (InterruptedException e) {
+                if (V) Log.v(TAG, "writer interrupted after " + mWritten + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of The Linux Foundation nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Supplies the content of an outbound file to the OBEX client in chunks of at
+ * most the PUT operation's maximum packet size.
+ *
+ * In pipelined mode a reader thread pre-fetches the file through its
+ * FileChannel into a fixed ring of buffers, so storage reads overlap with
+ * writes to the OBEX stream. Otherwise every chunk is read on the caller's
+ * thread into a single reused buffer. No buffer is allocated per packet in
+ * either mode.
+ */
+public class BluetoothOppSendPipeline {
+    private static final String TAG = "BtOppSendPipeline";
+
+    private static final boolean V = Log.isLoggable(Constants.TAG, Log.VERBOSE) ? true : false;
+
+    /** Number of buffers in the ring shared by the reader and the writer */
+    public static final int PIPELINE_DEPTH = 4;
+
+    private static final int SYNC_READ_BUFFER_SIZE = 0x4000;
+
+    /** Marker queued by the reader thread when it stops on an error */
+    private static final BluetoothOppChunk END_OF_DATA = new BluetoothOppChunk(0);
+
+    private final FileInputStream mInputStream;
+
+    private final long mLength;
+
+    private final int mChunkSize;
+
+    private final boolean mPipelined;
+
+    private ArrayBlockingQueue<BluetoothOppChunk> mFree;
+
+    private ArrayBlockingQueue<BluetoothOppChunk> mFilled;
+
+    private ReaderThread mReader;
+
+    private volatile IOException mReadError;
+
+    private InputStream mSyncStream;
+
+    private BluetoothOppChunk mSyncChunk;
+
+    private long mRemaining;
+
+    public BluetoothOppSendPipeline(FileInputStream inputStream, long length, int chunkSize,
+            boolean pipelined) {
+        if (inputStream == null) {
+            throw new NullPointerException("inputStream is null");
+        }
+        mInputStream = inputStream;
+        mLength = length;
+        mRemaining = length;
+        mChunkSize = (int) Math.max(1, Math.min(chunkSize, length));
+        mPipelined = pipelined && length > chunkSize;
+    }
+
+    public boolean isPipelined() {
+        return mPipelined;
+    }
+
+    public void start() {
+        if (mPipelined) {
+            mFree = new ArrayBlockingQueue<BluetoothOppChunk>(PIPELINE_DEPTH);
+            // one extra slot so END_OF_DATA can always be queued
+            mFilled = new ArrayBlockingQueue<BluetoothOppChunk>(PIPELINE_DEPTH + 1);
+            for (int i = 0; i < PIPELINE_DEPTH; i++) {
+                mFree.add(new BluetoothOppChunk(mChunkSize));
+            }
+            mReader = new ReaderThread();
+            mReader.start();
+        } else {
+            mSyncStream = new BufferedInputStream(mInputStream, SYNC_READ_BUFFER_SIZE);
+            mSyncChunk = new BluetoothOppChunk(mChunkSize);
+        }
+        if (V) Log.v(TAG, "started, pipelined " + mPipelined + " chunk size " + mChunkSize);
+    }
+
+    /**
+     * Returns the next chunk of the file. The chunk must be handed back with
+     * {@link #release(BluetoothOppChunk)} once its content has been written out.
+     *
+     * @throws InterruptedIOException if the calling thread was interrupted
+     *             while waiting for the reader
+     * @throws IOException if the file could not be read or ended before the
+     *             announced length
+     */
+    public BluetoothOppChunk take() throws IOException {
+        if (mRemaining <= 0) {
+            throw new IOException("No data left to send");
+        }
+        BluetoothOppChunk chunk;
+        if (mPipelined) {
+            try {
+                chunk = mFilled.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for file data");
+            }
+            if (chunk == END_OF_DATA) {
+                // keep the marker queued so that later calls fail the same way
+                mFilled.offer(END_OF_DATA);
+                throw mReadError;
+            }
+        } else {
+            chunk = mSyncChunk;
+            int wanted = (int) Math.min(mChunkSize, mRemaining);
+            chunk.mLength = readFully(mSyncStream, chunk.mData, wanted);
+            if (chunk.mLength < wanted) {
+                throw new IOException("Unexpected end of file, " + (mRemaining - chunk.mLength)
+                        + " bytes missing");
+            }
+        }
+        mRemaining -= chunk.mLength;
+        return chunk;
+    }
+
+    /** Hands a chunk obtained from {@link #take()} back to the reader. */
+    public void release(BluetoothOppChunk chunk) {
+        if (mPipelined) {
+            mFree.offer(chunk);
+        }
+    }
+
+    /**
+     * Stops the reader thread. The input stream itself is owned and closed by
+     * the caller.
+     */
+    public void close() {
+        if (mReader != null) {
+            mReader.interrupt();
+            try {
+                mReader.join();
+            } catch (InterruptedException e) {
+                if (V) Log.v(TAG, "Interrupted waiting for reader thread to join");
+            }
+            mReader = null;
+        }
+    }
+
+    private static int readFully(InputStream is, byte[] buffer, int size) throws IOException {
+        int done = 0;
+        while (done < size) {
+            int got = is.read(buffer, done, size - done);
+            if (got <= 0) break;
+            done += got;
+        }
+        return done;
+    }
+
+    private class ReaderThread extends Thread {
+
+        public ReaderThread() {
+            super("BtOpp SendReaderThread");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            FileChannel channel = mInputStream.getChannel();
+            long remaining = mLength;
+            try {
+                while (remaining > 0) {
+                    BluetoothOppChunk chunk = mFree.take();
+                    int wanted = (int) Math.min(mChunkSize, remaining);
+                    ByteBuffer buffer = chunk.mBuffer;
+                    buffer.clear();
+                    buffer.limit(wanted);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            break;
+                        }
+                    }
+                    chunk.mLength = buffer.position();
+                    if (chunk.mLength < wanted) {
+                        throw new IOException("Unexpected end of file, "
+                                + (remaining - chunk.mLength) + " bytes missing");
+                    }
+                    remaining -= chunk.mLength;
+                    mFilled.put(chunk);
+                }
+                if (V) Log.v(TAG, "reader done, " + mLength + " bytes");
+            } catch (InterruptedException e) {
+                if (V) Log.v(TAG, "reader interrupted with " + remaining + " bytes left");
+            } catch (IOException e) {
+                if (isInterrupted()) {
+                    // ClosedByInterruptException from close(), nobody is waiting any more
+                    if (V) Log.v(TAG, "reader stopped with " + remaining + " bytes left");
+                    return;
+                }
+                Log.e(TAG, "Error reading file for send: " + e);
+                mReadError = e;
+                mFilled.offer(END_OF_DATA);
+            }
+        }
+    }
+}
@@ -55,6 +55,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemProperties;
 import java.io.File;
 import android.util.Log;
 import android.os.Process;
@@ -63,6 +64,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
 
 /**
  * Performs the background Bluetooth OPP transfer. It also starts thread to
@@ -83,13 +88,31 @@ public class BluetoothOppService extends Service {
 
         @Override
         public void onChange(boolean selfChange) {
-            if (V) Log.v(TAG, "ContentObserver received notification");
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (V) Log.v(TAG, "ContentObserver received notification " + uri);
+            if (uri == null || BluetoothShare.DELETED_CONTENT_URI.equals(uri)) {
+                // deleted rows leave no trace in the modification sequence
+                synchronized (BluetoothOppService.this) {
+                    mFullSyncPending = true;
+                }
+            }
             updateFromProvider();
         }
     }
 
     private static final String TAG = "BtOppService";
 
+    /*
+     * Upper bound of outbound batches running at the same time, each to a
+     * different remote device. 1 sends to one device at a time.
+     */
+    private static final int MAX_OUTBOUND_TRANSFERS = Math.max(1,
+            SystemProperties.getInt("persist.bt.opp.max_outbound", 3));
+
     /** Observer to get notified when the content observer's data changes */
     private BluetoothShareContentObserver mObserver;
 
@@ -98,13 +121,39 @@ public class BluetoothOppService extends Service {
 
     private boolean mPendingUpdate = true;
 
+    /*
+     * Whether the next pass of the UpdateThread has to re-read the whole share
+     * table instead of only the rows changed since mSyncedSeq.
+     */
+    private boolean mFullSyncPending = true;
+
+    /* Largest BluetoothShare.MODIFICATION_SEQ merged into mShares */
+    private long mSyncedSeq = 0;
+
+    /*
+     * Ids of the shares that keep the service running, and of the shares whose
+     * media scan had to wait for another one. Only touched by the UpdateThread,
+     * so an incremental update only looks at the shares that changed.
+     */
+    private final HashSet<Integer> mKeepServiceShares = new HashSet<Integer>();
+    private final TreeSet<Integer> mDeferredScans = new TreeSet<Integer>();
+
     private UpdateThread mUpdateThread;
 
     private ArrayList<BluetoothOppShareInfo> mShares;
 
     private ArrayList<BluetoothOppBatch> mBatchs;
 
-    private BluetoothOppTransfer mTransfer;
+    /* Running outbound transfers, keyed by the address of the remote device */
+    private HashMap<String, BluetoothOppTransfer> mTransfers;
+
+    /*
+     * Turn at which an outbound batch was last started for each remote device
+     * with batches in mBatchs. Used to take turns between the devices.
+     */
+    private HashMap<String, Long> mTransferTurns;
+
+    private long mTransferTurn;
 
     private BluetoothOppTransfer mServerTransfer;
 
@@ -160,6 +209,8 @@ public class BluetoothOppService extends Service {
 
         mShares = Lists.newArrayList();
         mBatchs = Lists.newArrayList();
+        mTransfers = new HashMap<String, BluetoothOppTransfer>();
+        mTransferTurns = new HashMap<String, Long>();
         mObserver = new BluetoothShareContentObserver();
         getContentResolver().registerContentObserver(BluetoothShare.CONTENT_URI, true, mObserver);
         mBatchId = 1;
@@ -263,11 +314,11 @@ public class BluetoothOppService extends Service {
                        mServerTransfer.onBatchCanceled();
                        mServerTransfer =null;
                     }
-                    //Stop Active OUTBOUND Transfer
-                    if(mTransfer != null){
-                       mTransfer.onBatchCanceled();
-                       mTransfer =null;
+                    //Stop Active OUTBOUND Transfers
+                    for (BluetoothOppTransfer transfer : mTransfers.values()) {
+                        transfer.onBatchCanceled();
                     }
+                    mTransfers.clear();
                     synchronized (BluetoothOppService.this) {
                         if (mUpdateThread == null) {
                             stopSelf();
@@ -292,6 +343,8 @@ public class BluetoothOppService extends Service {
                     synchronized (BluetoothOppService.this) {
                         mMediaScanInProgress = false;
                     }
+                    // give scans that had to wait their turn
+                    updateFromProvider();
                     break;
                 case MEDIA_SCANNED_FAILED:
                     Log.v(TAG, "Update mInfo.id " + msg.arg1 + " for MEDIA_SCANNED_FAILED");
@@ -303,6 +356,8 @@ public class BluetoothOppService extends Service {
                     synchronized (BluetoothOppService.this) {
                         mMediaScanInProgress = false;
                     }
+                    // give scans that had to wait their turn
+                    updateFromProvider();
                     break;
                 case BluetoothOppRfcommListener.MSG_INCOMING_BTOPP_CONNECTION:
                     if (D) Log.d(TAG, "Get incoming connection mBatchSz: "+ mBatchs.size());
@@ -474,6 +529,7 @@ public class BluetoothOppService extends Service {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
             boolean keepService = false;
+            boolean fullSync;
             do {
                 synchronized (BluetoothOppService.this) {
                     if (mUpdateThread != this) {
@@ -483,10 +539,13 @@ public class BluetoothOppService extends Service {
                     if (V) Log.v(TAG, "keepUpdateThread is " + keepService + " sListenStarted is "
                             + mListenStarted);
                     mPendingUpdate = false;
+                    fullSync = mFullSyncPending;
+                    mFullSyncPending = false;
                 }
                 Cursor cursor;
                 try {
-                    cursor = getContentResolver().query(BluetoothShare.CONTENT_URI, null, null,
+                    cursor = getContentResolver().query(BluetoothShare.CONTENT_URI, null,
+                            fullSync ? null : BluetoothShare.MODIFICATION_SEQ + " > " + mSyncedSeq,
                             null, BluetoothShare._ID);
                 } catch (SQLiteException e) {
                     cursor = null;
@@ -505,85 +564,63 @@ public class BluetoothOppService extends Service {
                 boolean isAfterLast = cursor.isAfterLast();
 
                 int idColumn;
+                int seqColumn;
                 try {
                     idColumn = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
+                    seqColumn = cursor.getColumnIndexOrThrow(BluetoothShare.MODIFICATION_SEQ);
                 } catch (IllegalArgumentException e) {
                     cursor.close();
                     cursor = null;
                     Log.e (TAG, "Invalid share ID");
                     return;
                 }
-                /*
-                 * Walk the cursor and the local array to keep them in sync. The
-                 * key to the algorithm is that the ids are unique and sorted
-                 * both in the cursor and in the array, so that they can be
-                 * processed in order in both sources at the same time: at each
-                 * step, both sources point to the lowest id that hasn't been
-                 * processed from that source, and the algorithm processes the
-                 * lowest id from those two possibilities. At each step: -If the
-                 * array contains an entry that's not in the cursor, remove the
-                 * entry, move to next entry in the array. -If the array
-                 * contains an entry that's in the cursor, nothing to do, move
-                 * to next cursor row and next array entry. -If the cursor
-                 * contains an entry that's not in the array, insert a new entry
-                 * in the array, move to next cursor row and next array entry.
-                 */
-                while (!isAfterLast || arrayPos < mShares.size()) {
-                    if (isAfterLast) {
-                        // We're beyond the end of the cursor but there's still
-                        // some
-                        // stuff in the local array, which can only be junk
-                        if (mShares.size() != 0)
-                            if (V) Log.v(TAG, "Array update: trimming " +
-                                mShares.get(arrayPos).mId + " @ " + arrayPos);
-
-                        if (shouldScanFile(arrayPos)) {
-                            scanFile(null, arrayPos);
-                        }
-                        deleteShare(arrayPos); // this advances in the array
-                    } else {
-                        int id = cursor.getInt(idColumn);
+                long syncedSeq = mSyncedSeq;
+                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    syncedSeq = Math.max(syncedSeq, cursor.getLong(seqColumn));
+                }
+                cursor.moveToFirst();
 
-                        if (arrayPos == mShares.size()) {
-                            insertShare(cursor, arrayPos);
-                            if (V) Log.v(TAG, "Array update: inserting " + id + " @ " + arrayPos);
-                            if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
-                                keepService = true;
-                            }
-                            if (visibleNotification(arrayPos)) {
-                                keepService = true;
-                            }
-                            if (needAction(arrayPos)) {
-                                keepService = true;
-                            }
+                if (!fullSync) {
+                    if (V) Log.v(TAG, "Incremental update of " + cursor.getCount() + " shares");
+                    keepService = updateChangedShares(cursor, idColumn);
+                } else {
+                    mKeepServiceShares.clear();
+                    mDeferredScans.clear();
+                    /*
+                     * Walk the cursor and the local array to keep them in sync. The
+                     * key to the algorithm is that the ids are unique and sorted
+                     * both in the cursor and in the array, so that they can be
+                     * processed in order in both sources at the same time: at each
+                     * step, both sources point to the lowest id that hasn't been
+                     * processed from that source, and the algorithm processes the
+                     * lowest id from those two possibilities. At each step: -If the
+                     * array contains an entry that's not in the cursor, remove the
+                     * entry, move to next entry in the array. -If the array
+                     * contains an entry that's in the cursor, nothing to do, move
+                     * to next cursor row and next array entry. -If the cursor
+                     * contains an entry that's not in the array, insert a new entry
+                     * in the array, move to next cursor row and next array entry.
+                     */
+                    while (!isAfterLast || arrayPos < mShares.size()) {
+                        if (isAfterLast) {
+                            // We're beyond the end of the cursor but there's still
+                            // some
+                            // stuff in the local array, which can only be junk
+                            if (mShares.size() != 0)
+                                if (V) Log.v(TAG, "Array update: trimming " +
+                                    mShares.get(arrayPos).mId + " @ " + arrayPos);
 
-                            ++arrayPos;
-                            cursor.moveToNext();
-                            isAfterLast = cursor.isAfterLast();
+                            if (shouldScanFile(arrayPos)) {
+                                scanFile(null, arrayPos);
+                            }
+                            deleteShare(arrayPos); // this advances in the array
                         } else {
-                            int arrayId = 0;
-                            if (mShares.size() != 0)
-                                arrayId = mShares.get(arrayPos).mId;
+                            int id = cursor.getInt(idColumn);
 
-                            if (arrayId < id) {
-                                if (V) Log.v(TAG, "Array update: removing " + arrayId + " @ "
-                                            + arrayPos);
-                                if (shouldScanFile(arrayPos)) {
-                                    scanFile(null, arrayPos);
-                                }
-                                deleteShare(arrayPos);
-                            } else if (arrayId == id) {
-                                // This cursor row already exists in the stored
-                                // array
-                                if(V) Log.v(TAG," Calling Updateshare arraypos " + arrayPos);
-                                updateShare(cursor, arrayPos, userAccepted);
-                                if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
-                                    keepService = true;
-                                }
-                                if (visibleNotification(arrayPos)) {
-                                    keepService = true;
-                                }
-                                if (needAction(arrayPos)) {
+                            if (arrayPos == mShares.size()) {
+                                insertShare(cursor, arrayPos);
+                                if (V) Log.v(TAG, "Array update: inserting " + id + " @ " + arrayPos);
+                                if (checkShare(cursor, arrayPos)) {
                                     keepService = true;
                                 }
 
@@ -591,28 +628,48 @@ public class BluetoothOppService extends Service {
                                 cursor.moveToNext();
                                 isAfterLast = cursor.isAfterLast();
                             } else {
-                                // This cursor entry didn't exist in the stored
-                                // array
-                                if (V) Log.v(TAG, "Array update: appending " + id + " @ " + arrayPos);
-                                insertShare(cursor, arrayPos);
-
-                                if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
-                                    keepService = true;
-                                }
-                                if (visibleNotification(arrayPos)) {
-                                    keepService = true;
+                                int arrayId = 0;
+                                if (mShares.size() != 0)
+                                    arrayId = mShares.get(arrayPos).mId;
+
+                                if (arrayId < id) {
+                                    if (V) Log.v(TAG, "Array update: removing " + arrayId + " @ "
+                                                + arrayPos);
+                                    if (shouldScanFile(arrayPos)) {
+                                        scanFile(null, arrayPos);
+                                    }
+                                    deleteShare(arrayPos);
+                                } else if (arrayId == id) {
+                                    // This cursor row already exists in the stored
+                                    // array
+                                    if(V) Log.v(TAG," Calling Updateshare arraypos " + arrayPos);
+                                    updateShare(cursor, arrayPos, userAccepted);
+                                    if (checkShare(cursor, arrayPos)) {
+                                        keepService = true;
+                                    }
+
+                                    ++arrayPos;
+                                    cursor.moveToNext();
+                                    isAfterLast = cursor.isAfterLast();
+                                } else {
+                                    // This cursor entry didn't exist in the stored
+                                    // array
+                                    if (V) Log.v(TAG, "Array update: appending " + id + " @ " + arrayPos);
+                                    insertShare(cursor, arrayPos);
+
+                                    if (checkShare(cursor, arrayPos)) {
+                                        keepService = true;
+                                    }
+                                    ++arrayPos;
+                                    cursor.moveToNext();
+                                    isAfterLast = cursor.isAfterLast();
                                 }
-                                if (needAction(arrayPos)) {
-                                    keepService = true;
-                                }
-                                ++arrayPos;
-                                cursor.moveToNext();
-                                isAfterLast = cursor.isAfterLast();
                             }
                         }
                     }
                 }
 
+                mSyncedSeq = syncedSeq;
                 mNotifier.updateNotification();
 
                 cursor.close();
@@ -625,8 +682,8 @@ public class BluetoothOppService extends Service {
                         Log.v(TAG, "No active Server Session");
                     }
 
-                    if (mTransfer != null) {
-                        Log.v(TAG, "Client Session is active");
+                    if (!mTransfers.isEmpty()) {
+                        Log.v(TAG, mTransfers.size() + " Client Sessions are active");
                     } else {
                         Log.v(TAG, "No active Client Session");
                     }
@@ -656,6 +713,90 @@ public class BluetoothOppService extends Service {
 
     }
 
+    /*
+     * Merges the rows of a cursor holding only the shares changed since the
+     * last update into mShares, and returns whether the service must keep
+     * running. Only the changed shares and those waiting for a media scan
+     * are visited; the full walk is left to a full sync.
+     */
+    private boolean updateChangedShares(Cursor cursor, int idColumn) {
+        for (; !cursor.isAfterLast(); cursor.moveToNext()) {
+            int id = cursor.getInt(idColumn);
+            int arrayPos = findShare(id);
+            if (arrayPos >= 0) {
+                if (V) Log.v(TAG, "Array update: updating " + id + " @ " + arrayPos);
+                updateShare(cursor, arrayPos, userAccepted);
+            } else {
+                arrayPos = -arrayPos - 1;
+                if (V) Log.v(TAG, "Array update: inserting " + id + " @ " + arrayPos);
+                insertShare(cursor, arrayPos);
+            }
+            checkShare(cursor, arrayPos);
+        }
+
+        // Unchanged shares may still wait for a media scan that was busy before
+        Iterator<Integer> it = mDeferredScans.iterator();
+        while (it.hasNext()) {
+            int arrayPos = findShare(it.next());
+            if (arrayPos < 0 || !shouldScanFile(arrayPos)) {
+                it.remove();
+            } else if (scanFile(null, arrayPos)) {
+                it.remove();
+                break;
+            } else {
+                break;
+            }
+        }
+        return !mKeepServiceShares.isEmpty();
+    }
+
+    /*
+     * Starts the media scan of a share if it needs one, records whether the
+     * share keeps the service running, and returns that.
+     */
+    private boolean checkShare(Cursor cursor, int arrayPos) {
+        int id = mShares.get(arrayPos).mId;
+        boolean keepService = false;
+        mDeferredScans.remove(id);
+        if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
+            mDeferredScans.add(id);
+            keepService = true;
+        }
+        if (visibleNotification(arrayPos)) {
+            keepService = true;
+        }
+        if (needAction(arrayPos)) {
+            keepService = true;
+        }
+        if (keepService) {
+            mKeepServiceShares.add(id);
+        } else {
+            mKeepServiceShares.remove(id);
+        }
+        return keepService;
+    }
+
+    /*
+     * Binary search of mShares by id. Returns the position of the share, or
+     * (-(insertion point) - 1) if there is none.
+     */
+    private int findShare(int id) {
+        int low = 0;
+        int high = mShares.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = mShares.get(mid).mId;
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
     private BluetoothOppTransfer insertShareWithOngoingBatch(BluetoothOppTransfer transfer,
                         BluetoothOppBatch batch, int arrayPos, BluetoothOppObexSession session) {
         if(transfer == null) {
@@ -665,7 +806,6 @@ public class BluetoothOppService extends Service {
             } else {
                 Log.e(TAG, "Unexpected error! mTransfer is null");
                 mBatchs.remove(batch);
-                mBatchId--;
                 mShares.remove(arrayPos);
             }
         }
@@ -735,12 +875,12 @@ public class BluetoothOppService extends Service {
         if (info.isReadyToStart()) {
             if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
                 /* check if the file exists */
-                BluetoothOppSendFileInfo sendFileInfo = BluetoothOppUtility.getSendFileInfo(
-                        info.mUri);
+                BluetoothOppSendFileInfo sendFileInfo = BluetoothOppUtility.claimSendFileInfo(
+                        this, info);
                 if (sendFileInfo == null || sendFileInfo.mInputStream == null) {
                     Log.e(TAG, "Can't open file for OUTBOUND info " + info.mId);
                     Constants.updateShareStatus(this, info.mId, BluetoothShare.STATUS_BAD_REQUEST);
-                    BluetoothOppUtility.closeSendFileInfo(info.mUri);
+                    BluetoothOppUtility.closeSendFileInfo(info.mId);
                     return;
                 }
             }
@@ -752,7 +892,7 @@ public class BluetoothOppService extends Service {
                 if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
                     if (V) Log.v(TAG, "Service create new Batch " + newBatch.mId
                                 + " for OUTBOUND info " + info.mId);
-                    mTransfer = new BluetoothOppTransfer(this, mPowerManager, newBatch);
+                    startPendingOutboundBatches();
                 } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
                     if (V) Log.v(TAG, "Service create new Batch " + newBatch.mId
                                 + " for INBOUND info " + info.mId);
@@ -760,11 +900,7 @@ public class BluetoothOppService extends Service {
                             mServerSession);
                 }
 
-                if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND && mTransfer != null) {
-                    if (V) Log.v(TAG, "Service start transfer new Batch " + newBatch.mId
-                                + " for info " + info.mId);
-                    mTransfer.start();
-                } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND
+                if (info.mDirection == BluetoothShare.DIRECTION_INBOUND
                         && mServerTransfer != null) {
                     if (V) Log.v(TAG, "Service start server transfer new Batch " + newBatch.mId
                                 + " for info " + info.mId);
@@ -788,8 +924,7 @@ public class BluetoothOppService extends Service {
                     if (V) Log.v(TAG, "Service add new Batch " + newBatch.mId + " for info " +
                             info.mId);
                     if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                        mTransfer = insertShareWithOngoingBatch(mTransfer, newBatch, arrayPos,
-                            null);
+                        startPendingOutboundBatches();
                     } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
                         mServerTransfer = insertShareWithOngoingBatch(mServerTransfer, newBatch,
                             arrayPos, mServerSession);
@@ -879,15 +1014,17 @@ public class BluetoothOppService extends Service {
                     || batch.mStatus == Constants.BATCH_STATUS_FAILED) {
                 if (V) Log.v(TAG, "Batch " + batch.mId + " is finished");
                 if (batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                    if (mTransfer == null) {
-                        Log.e(TAG, "Unexpected error! mTransfer is null");
-                    } else if (batch.mId == mTransfer.getBatchId()) {
-                        mTransfer.stop();
+                    String address = batch.mDestination.getAddress();
+                    BluetoothOppTransfer transfer = mTransfers.get(address);
+                    if (transfer == null) {
+                        Log.e(TAG, "Unexpected error! no transfer for batch " + batch.mId);
+                    } else if (batch.mId == transfer.getBatchId()) {
+                        transfer.stop();
+                        mTransfers.remove(address);
                     } else {
                         Log.e(TAG, "Unexpected error! batch id " + batch.mId
-                                + " doesn't match mTransfer id " + mTransfer.getBatchId());
+                                + " doesn't match transfer id " + transfer.getBatchId());
                     }
-                    mTransfer = null;
                 } else {
                     if (mServerTransfer == null) {
                         Log.e(TAG, "Unexpected error! mServerTransfer is null");
@@ -912,6 +1049,8 @@ public class BluetoothOppService extends Service {
      */
     private void deleteShare(int arrayPos) {
         BluetoothOppShareInfo info = mShares.get(arrayPos);
+        mKeepServiceShares.remove(info.mId);
+        mDeferredScans.remove(info.mId);
 
         /*
          * Delete arrayPos from a batch. The logic is
@@ -928,11 +1067,14 @@ public class BluetoothOppService extends Service {
             }
 
             /* Server/Client transfer cleanup */
-            if ((batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND)
-                    && (mTransfer != null)) {
-                if (V) Log.v(TAG, "Stop Client Transfer");
-                mTransfer.stop();
-                mTransfer = null;
+            if (batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
+                String address = batch.mDestination.getAddress();
+                BluetoothOppTransfer transfer = mTransfers.get(address);
+                if (transfer != null && transfer.getBatchId() == batch.mId) {
+                    if (V) Log.v(TAG, "Stop Client Transfer");
+                    transfer.stop();
+                    mTransfers.remove(address);
+                }
             } else if ((batch.mDirection == BluetoothShare.DIRECTION_INBOUND)
                     && (mServerTransfer != null)) {
                 if (V) Log.v(TAG, "Stop Server Transfer");
@@ -946,6 +1088,9 @@ public class BluetoothOppService extends Service {
                 removeBatch(batch);
             }
         }
+        if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
+            BluetoothOppUtility.closeSendFileInfo(info.mId);
+        }
         mShares.remove(arrayPos);
     }
 
@@ -987,22 +1132,24 @@ public class BluetoothOppService extends Service {
 
     private void removeBatch(BluetoothOppBatch batch) {
         if (V) Log.v(TAG, "Remove batch " + batch.mId);
+        // Batch ids are not reused: transfers to other devices may still be
+        // running with the ids handed out after this one.
         mBatchs.remove(batch);
-        mBatchId--;
+        if (batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND
+                && findBatchWithDevice(batch.mDestination.getAddress()) == -1) {
+            mTransferTurns.remove(batch.mDestination.getAddress());
+        }
+
+        // just finish a transfer, start pending outbound transfers
+        startPendingOutboundBatches();
+
         BluetoothOppBatch nextBatch;
         if (mBatchs.size() > 0) {
             for (int i = 0; i < mBatchs.size(); i++) {
                 nextBatch = mBatchs.get(i);
                 if (V) Log.v(TAG, "Batch Status= " + nextBatch.mStatus);
                 if (nextBatch.mStatus == Constants.BATCH_STATUS_PENDING) {
-                    // just finish a transfer, start pending outbound transfer
-                    if (nextBatch.mDirection == BluetoothShare.DIRECTION_OUTBOUND
-                            && mTransfer == null) {
-                        if (V) Log.v(TAG, "Start pending outbound batch " + nextBatch.mId);
-                        mTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch);
-                        mTransfer.start();
-                        return;
-                    } else if (nextBatch.mDirection == BluetoothShare.DIRECTION_INBOUND
+                    if (nextBatch.mDirection == BluetoothShare.DIRECTION_INBOUND
                             && mServerSession != null) {
                         // have to support pending inbound transfer
                         // if an outbound transfer and incoming socket happens together
@@ -1022,6 +1169,58 @@ public class BluetoothOppService extends Service {
         }
     }
 
+    private int findBatchWithDevice(String address) {
+        for (int i = mBatchs.size() - 1; i >= 0; i--) {
+            if (mBatchs.get(i).mDestination.getAddress().equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts pending outbound batches while fewer than MAX_OUTBOUND_TRANSFERS
+     * are running, at most one per remote device since each needs its own
+     * OBEX connection. Batches to one device start in the order they were
+     * queued; across devices, the device whose turn came longest ago goes
+     * first, so a long queue to one device can't hold back the others.
+     */
+    private void startPendingOutboundBatches() {
+        while (mTransfers.size() < MAX_OUTBOUND_TRANSFERS) {
+            BluetoothOppBatch nextBatch = null;
+            long nextTurn = Long.MAX_VALUE;
+            for (int i = 0; i < mBatchs.size(); i++) {
+                BluetoothOppBatch batch = mBatchs.get(i);
+                if (batch.mDirection != BluetoothShare.DIRECTION_OUTBOUND
+                        || batch.mStatus != Constants.BATCH_STATUS_PENDING) {
+                    continue;
+                }
+                String address = batch.mDestination.getAddress();
+                if (mTransfers.containsKey(address)) {
+                    continue;
+                }
+                Long turn = mTransferTurns.get(address);
+                long lastTurn = (turn == null) ? 0 : turn;
+                if (lastTurn < nextTurn) {
+                    nextBatch = batch;
+                    nextTurn = lastTurn;
+                }
+            }
+            if (nextBatch == null) {
+                return;
+            }
+
+            String address = nextBatch.mDestination.getAddress();
+            mTransferTurns.put(address, ++mTransferTurn);
+            if (V) Log.v(TAG, "Start pending outbound batch " + nextBatch.mId + " to " + address
+                    + ", " + (mTransfers.size() + 1) + " running");
+            BluetoothOppTransfer transfer = new BluetoothOppTransfer(this, mPowerManager,
+                    nextBatch);
+            mTransfers.put(address, transfer);
+            transfer.start();
+        }
+    }
+
     private boolean needAction(int arrayPos) {
         BluetoothOppShareInfo info = mShares.get(arrayPos);
         if (BluetoothShare.isStatusCompleted(info.mStatus)) {
@@ -1061,6 +1260,33 @@ public class BluetoothOppService extends Service {
         final String INVISIBLE = BluetoothShare.VISIBILITY + "=" +
                 BluetoothShare.VISIBILITY_HIDDEN;
 
+        // remove the partial files kept for resuming that are too old, or whose
+        // share is about to go away
+        final String WHERE_STALE_CHECKPOINT = BluetoothShare.CHECKPOINT + ">0 AND ("
+                + BluetoothShare.TIMESTAMP + "<"
+                + (System.currentTimeMillis() - Constants.MAX_CHECKPOINT_AGE_MS) + " OR "
+                + INVISIBLE + ")";
+        Cursor cursorToPartial = contentResolver.query(BluetoothShare.CONTENT_URI,
+                new String[] { BluetoothShare._DATA }, WHERE_STALE_CHECKPOINT, null, null);
+        if (cursorToPartial != null) {
+            for (cursorToPartial.moveToFirst(); !cursorToPartial.isAfterLast();
+                    cursorToPartial.moveToNext()) {
+                String fileName = cursorToPartial.getString(0);
+                if (fileName != null) {
+                    if (V) Log.v(TAG, "Partial file to be deleted: " + fileName);
+                    new File(fileName).delete();
+                }
+            }
+            if (cursorToPartial.getCount() > 0) {
+                ContentValues clearValues = new ContentValues();
+                clearValues.put(BluetoothShare.CHECKPOINT, 0);
+                contentResolver.update(BluetoothShare.CONTENT_URI, clearValues,
+                        WHERE_STALE_CHECKPOINT, null);
+            }
+            cursorToPartial.close();
+            cursorToPartial = null;
+        }
+
         // remove the invisible/complete/outbound shares
         final String WHERE_INVISIBLE_COMPLETE_OUTBOUND = BluetoothShare.DIRECTION + "="
                 + BluetoothShare.DIRECTION_OUTBOUND + " AND " + BluetoothShare.STATUS + ">="
@@ -1084,7 +1310,8 @@ public class BluetoothOppService extends Service {
                 + BluetoothShare.STATUS_PENDING + " OR " + BluetoothShare.STATUS + "="
                 + BluetoothShare.STATUS_RUNNING;
 
-        Cursor cursorToUpdate = contentResolver.query(BluetoothShare.CONTENT_URI, null,
+        Cursor cursorToUpdate = contentResolver.query(BluetoothShare.CONTENT_URI,
+                    new String[] { BluetoothShare._ID },
                     WHERE_OUTBOUND_INTERRUPTED_ON_POWER_OFF, null, null);
         if (cursorToUpdate != null) {
             for (cursorToUpdate.moveToFirst(); !cursorToUpdate.isAfterLast();
@@ -1107,7 +1334,8 @@ public class BluetoothOppService extends Service {
                 + BluetoothShare.DIRECTION_INBOUND + " AND " + BluetoothShare.USER_CONFIRMATION
                 + "=" + BluetoothShare.USER_CONFIRMATION_PENDING;
 
-        cursorToUpdate = contentResolver.query(BluetoothShare.CONTENT_URI, null,
+        cursorToUpdate = contentResolver.query(BluetoothShare.CONTENT_URI,
+                    new String[] { BluetoothShare._ID },
                     WHERE_CONFIRMATION_PENDING_INBOUND, null, null);
 
         if (cursorToUpdate != null) {
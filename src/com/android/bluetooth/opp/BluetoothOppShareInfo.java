@@ -68,6 +68,9 @@ public class BluetoothOppShareInfo {
 
     public boolean mMediaScanned;
 
+    /* Bytes kept on disk after this inbound share failed, see BluetoothShare.CHECKPOINT */
+    public long mCheckpoint;
+
     public BluetoothOppShareInfo(int id, Uri uri, String hint, String filename, String mimetype,
             int direction, String destination, int visibility, int confirm, int status,
             long totalBytes, long currentBytes, long timestamp, boolean mediaScanned) {
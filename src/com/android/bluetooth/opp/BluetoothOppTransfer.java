@@ -336,8 +336,9 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
             if (BluetoothShare.isStatusError(mCurrentShare.mStatus)) {
                 failReason = mCurrentShare.mStatus;
             }
+            // a checkpointed partial file is kept for the object to be resumed
             if (mCurrentShare.mDirection == BluetoothShare.DIRECTION_INBOUND
-                    && mCurrentShare.mFilename != null) {
+                    && mCurrentShare.mFilename != null && mCurrentShare.mCheckpoint == 0) {
                 new File(mCurrentShare.mFilename).delete();
             }
         }
@@ -357,8 +358,8 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                 /* Update un-processed outbound transfer to show some info */
                 if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
                     BluetoothOppSendFileInfo fileInfo
-                            = BluetoothOppUtility.getSendFileInfo(info.mUri);
-                    BluetoothOppUtility.closeSendFileInfo(info.mUri);
+                            = BluetoothOppUtility.getSendFileInfo(info.mId);
+                    BluetoothOppUtility.closeSendFileInfo(info.mId);
                     if (fileInfo.mFileName != null) {
                         updateValues.put(BluetoothShare.FILENAME_HINT, fileInfo.mFileName);
                         updateValues.put(BluetoothShare.TOTAL_BYTES, fileInfo.mLength);
@@ -475,7 +476,6 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
     private void startObexSession() {
 
         mBatch.mStatus = Constants.BATCH_STATUS_RUNNING;
-        BluetoothOppManager mOppManager = BluetoothOppManager.getInstance(mContext);
 
         mCurrentShare = mBatch.getPendingShare();
         if (mCurrentShare == null) {
@@ -508,11 +508,12 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
         }
 
         if (mSession != null) {
-            /* Read the number of files are sharing from OPP Manager instead of getting
-             * the number of files from Batch before OBEX session start.
+            /* Batches to different devices run in parallel, so the number of files
+             * comes from this batch rather than from the OPP Manager. The shares of
+             * a batch are inserted together, before its connection is set up.
              */
-            if (V) Log.v(TAG, "Sharing files = " + mOppManager.getBatchSize());
-            mSession.start(mSessionHandler, mOppManager.getBatchSize());
+            if (V) Log.v(TAG, "Sharing files = " + mBatch.getNumShares());
+            mSession.start(mSessionHandler, mBatch.getNumShares());
             processCurrentShare();
         }
 
@@ -54,6 +54,10 @@ public class BluetoothOppTransport implements ObexTransport {
     private final BluetoothSocket mSocket;
     private final int mType;
 
+    /* Socket option buffers, reused since these are queried once per packet */
+    private final ByteBuffer mMtuOpt = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mCongOpt = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
     public BluetoothOppTransport(BluetoothSocket socket, int type) {
         super();
         this.mSocket = socket;
@@ -85,14 +89,11 @@ public class BluetoothOppTransport implements ObexTransport {
         return mSocket.getOutputStream();
     }
 
-    public int setPutSockMTUSize(int size) throws IOException {
-       ByteBuffer bb = ByteBuffer.allocate(4);
+    public synchronized int setPutSockMTUSize(int size) throws IOException {
        int status;
-       Log.v(TAG, "Interrupted waiting for size "+ size);
-       bb.order(ByteOrder.LITTLE_ENDIAN);
-       bb.putInt(0, size);
+       mMtuOpt.putInt(0, size);
        try {
-            status = mSocket.setSocketOpt(4, bb.array(), 4);
+            status = mSocket.setSocketOpt(4, mMtuOpt.array(), 4);
           } catch (IOException ex) {
              return -1;
           }
@@ -102,16 +103,14 @@ public class BluetoothOppTransport implements ObexTransport {
     /**
      * Returns the Congestion status of the Socket
      */
-    public int getSockCongStatus() {
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
+    public synchronized int getSockCongStatus() {
         int status;
         try {
-            status = mSocket.getSocketOpt(5, bb.array());
+            status = mSocket.getSocketOpt(5, mCongOpt.array());
         } catch (IOException ex) {
             return -1;
         }
-        return bb.getInt();
+        return mCongOpt.getInt(0);
     }
 
     public void connect() throws IOException {
@@ -66,6 +66,10 @@ public class BluetoothOppUtility {
     private static final ConcurrentHashMap<Uri, BluetoothOppSendFileInfo> sSendFileMap
             = new ConcurrentHashMap<Uri, BluetoothOppSendFileInfo>();
 
+    /* Send file info owned by an outbound share, keyed by share id */
+    private static final ConcurrentHashMap<Integer, BluetoothOppSendFileInfo> sShareFileMap
+            = new ConcurrentHashMap<Integer, BluetoothOppSendFileInfo>();
+
     public static BluetoothOppTransferInfo queryRecord(Context context, Uri uri) {
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         BluetoothOppTransferInfo info = new BluetoothOppTransferInfo();
@@ -368,7 +372,47 @@ public class BluetoothOppUtility {
 
     static void closeSendFileInfo(Uri uri) {
         if (D) Log.d(TAG, "closeSendFileInfo: uri=" + uri);
-        BluetoothOppSendFileInfo info = sSendFileMap.remove(uri);
+        closeInputStream(sSendFileMap.remove(uri));
+    }
+
+    /**
+     * Returns the send file info of an outbound share, so that every share
+     * reads its own stream. The first share of a uri takes over the info
+     * stored by putSendFileInfo(); other shares of the same uri, e.g. the same
+     * file sent to several devices, open the file again.
+     */
+    static BluetoothOppSendFileInfo claimSendFileInfo(Context context,
+            BluetoothOppShareInfo share) {
+        if (D) Log.d(TAG, "claimSendFileInfo: id=" + share.mId + " uri=" + share.mUri);
+        BluetoothOppSendFileInfo info = sShareFileMap.get(share.mId);
+        if (info != null) {
+            return info;
+        }
+        info = sSendFileMap.remove(share.mUri);
+        if (info == null) {
+            info = BluetoothOppSendFileInfo.generateFileInfo(context,
+                    originalUri(share.mUri), share.mMimetype);
+        }
+        BluetoothOppSendFileInfo old = sShareFileMap.putIfAbsent(share.mId, info);
+        if (old != null) {
+            closeInputStream(info);
+            return old;
+        }
+        return info;
+    }
+
+    static BluetoothOppSendFileInfo getSendFileInfo(int shareId) {
+        if (D) Log.d(TAG, "getSendFileInfo: id=" + shareId);
+        BluetoothOppSendFileInfo info = sShareFileMap.get(shareId);
+        return (info != null) ? info : BluetoothOppSendFileInfo.SEND_FILE_INFO_ERROR;
+    }
+
+    static void closeSendFileInfo(int shareId) {
+        if (D) Log.d(TAG, "closeSendFileInfo: id=" + shareId);
+        closeInputStream(sShareFileMap.remove(shareId));
+    }
+
+    private static void closeInputStream(BluetoothOppSendFileInfo info) {
         if (info != null && info.mInputStream != null) {
             try {
                 info.mInputStream.close();
@@ -55,6 +55,15 @@ public final class BluetoothShare implements BaseColumns {
      */
     public static final Uri CONTENT_URI = Uri.parse("content://com.android.bluetooth.opp/btopp");
 
+    /**
+     * The content:// URI notified, in addition to the URI the delete was
+     * issued on, whenever rows are deleted from the provider. Observers that
+     * keep an incremental copy of the table use it to tell deletions, which
+     * leave no MODIFICATION_SEQ behind, from inserts and updates.
+     */
+    public static final Uri DELETED_CONTENT_URI =
+            Uri.parse("content://com.android.bluetooth.opp/btopp/deleted");
+
     /**
      * Broadcast Action: this is sent by the Bluetooth Share component to
      * transfer complete. The request detail could be retrieved by app * as _ID
@@ -222,6 +231,34 @@ public final class BluetoothShare implements BaseColumns {
      */
     public static final String TIMESTAMP = "timestamp";
 
+    /**
+     * The name of the column containing the modification sequence of the
+     * row. Every insert and update stamps the row with a value larger than
+     * any stamped before, so rows changed since a previous read are those
+     * with a larger sequence than the largest one seen then.
+     * <P>
+     * Type: INTEGER
+     * </P>
+     * <P>
+     * Owner can Read
+     * </P>
+     */
+    public static final String MODIFICATION_SEQ = "mod_seq";
+
+    /**
+     * The name of the column containing the number of bytes of a failed
+     * inbound transfer that were kept in the partial file at _DATA. When the
+     * same object is sent again, receiving resumes after these bytes instead
+     * of starting over. 0 when nothing was kept.
+     * <P>
+     * Type: INTEGER
+     * </P>
+     * <P>
+     * Owner can Init/Read/Write
+     * </P>
+     */
+    public static final String CHECKPOINT = "checkpoint";
+
     /**
      * This transfer is outbound, e.g. share file to other device.
      */
@@ -264,6 +264,9 @@ public class Constants {
 
     public static final int MAX_RECORDS_IN_DATABASE = 1000;
 
+    /** How long the partial file of a failed inbound transfer is kept for resuming */
+    public static final long MAX_CHECKPOINT_AGE_MS = 24 * 60 * 60 * 1000;
+
     public static final int BATCH_STATUS_PENDING = 0;
 
     public static final int BATCH_STATUS_RUNNING = 1;
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.avrcp;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link FolderItemsRspBuilder}.
+ */
+public class FolderItemsRspBuilderTest extends AndroidTestCase {
+    private static final int CHARSET_UTF8 = 0x006A;
+    private static final int TYPE_FOLDER_ITEM = 0x02;
+    private static final int TYPE_MEDIA_ELEMENT_ITEM = 0x03;
+
+    @SmallTest
+    public void testFolderItem() {
+        FolderItemsRspBuilder builder = new FolderItemsRspBuilder();
+        builder.addFolderItem(0x0102030405060708L, 3, true, "Albums");
+
+        assertEquals(1, builder.getItemCount());
+        ByteBuffer buffer = read(builder);
+        assertEquals(TYPE_FOLDER_ITEM, buffer.get());
+        assertEquals(8 + 1 + 1 + 2 + 2 + 6, buffer.getShort());
+        assertEquals(0x0102030405060708L, buffer.getLong());
+        assertEquals(3, buffer.get());
+        assertEquals(1, buffer.get());
+        assertEquals(CHARSET_UTF8, buffer.getShort());
+        assertEquals("Albums", readString(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @SmallTest
+    public void testMediaItemWithAttributes() {
+        FolderItemsRspBuilder builder = new FolderItemsRspBuilder();
+        builder.addMediaItem(42, 0, "Title");
+        builder.addAttribute(1, "Title");
+        builder.addAttribute(2, "Artist");
+        builder.addFolderItem(7, 1, false, "Next");
+
+        assertEquals(2, builder.getItemCount());
+        ByteBuffer buffer = read(builder);
+        assertEquals(TYPE_MEDIA_ELEMENT_ITEM, buffer.get());
+        assertEquals(8 + 1 + 2 + 2 + 5 + 1 + (8 + 5) + (8 + 6), buffer.getShort());
+        assertEquals(42, buffer.getLong());
+        assertEquals(0, buffer.get());
+        assertEquals(CHARSET_UTF8, buffer.getShort());
+        assertEquals("Title", readString(buffer));
+        assertEquals(2, buffer.get());
+        assertEquals(1, buffer.getInt());
+        assertEquals(CHARSET_UTF8, buffer.getShort());
+        assertEquals("Title", readString(buffer));
+        assertEquals(2, buffer.getInt());
+        assertEquals(CHARSET_UTF8, buffer.getShort());
+        assertEquals("Artist", readString(buffer));
+
+        // The following item starts right after the attributes of the media item
+        assertEquals(TYPE_FOLDER_ITEM, buffer.get());
+        buffer.getShort();
+        assertEquals(7, buffer.getLong());
+    }
+
+    @SmallTest
+    public void testAttributeWithoutMediaItem() {
+        FolderItemsRspBuilder builder = new FolderItemsRspBuilder();
+        builder.addFolderItem(1, 1, false, "Folder");
+        try {
+            builder.addAttribute(1, "Title");
+            fail("Attribute added to a folder item");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @SmallTest
+    public void testUtf8Lengths() {
+        // Two, three and four byte sequences, and an unpaired surrogate written as '?'
+        String name = "é€🎵\ud83c";
+        FolderItemsRspBuilder builder = new FolderItemsRspBuilder();
+        builder.addMediaItem(1, 0, name);
+
+        ByteBuffer buffer = read(builder);
+        buffer.position(1 + 2 + 8 + 1 + 2);
+        int length = buffer.getShort();
+        assertEquals(2 + 3 + 4 + 1, length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        assertTrue(Arrays.equals(name.getBytes(StandardCharsets.UTF_8), bytes));
+    }
+
+    @SmallTest
+    public void testBufferGrowth() {
+        FolderItemsRspBuilder builder = new FolderItemsRspBuilder();
+        int initialCapacity = builder.getBuffer().capacity();
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'é');
+        String name = new String(chars);
+        int items = 0;
+        while (builder.getBuffer().capacity() == initialCapacity) {
+            builder.addMediaItem(items, 0, name);
+            builder.addAttribute(1, name);
+            items++;
+        }
+
+        assertEquals(items, builder.getItemCount());
+        ByteBuffer buffer = read(builder);
+        for (int i = 0; i < items; i++) {
+            assertEquals(TYPE_MEDIA_ELEMENT_ITEM, buffer.get());
+            buffer.getShort();
+            assertEquals(i, buffer.getLong());
+            buffer.get();
+            buffer.getShort();
+            assertEquals(name, readString(buffer));
+            assertEquals(1, buffer.get());
+            assertEquals(1, buffer.getInt());
+            buffer.getShort();
+            assertEquals(name, readString(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @SmallTest
+    public void testReset() {
+        FolderItemsRspBuilder builder = new FolderItemsRspBuilder();
+        builder.addFolderItem(1, 1, false, "Folder");
+        builder.reset();
+
+        assertEquals(0, builder.getItemCount());
+        assertEquals(0, builder.getLength());
+    }
+
+    private static ByteBuffer read(FolderItemsRspBuilder builder) {
+        ByteBuffer buffer = builder.getBuffer().duplicate();
+        buffer.flip();
+        assertEquals(builder.getLength(), buffer.limit());
+        return buffer;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link DiscoveryCache}.
+ */
+public class DiscoveryCacheTest extends AndroidTestCase {
+    private static final int CONN_ID = 3;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SRVC_A = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID SRVC_B = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHAR_A = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHAR_B = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+    private static final UUID DESC = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    /** Runs a discovery that reports results in the order the native stack does */
+    private static void discover(DiscoveryCache cache, boolean keep) {
+        cache.beginDiscovery(CONN_ID, ADDRESS);
+        cache.addService(CONN_ID, 0, 0, SRVC_A);
+        cache.addService(CONN_ID, 0, 0, SRVC_B);
+        cache.addCharacteristic(CONN_ID, 0, 0, SRVC_A, 0, CHAR_A, 0x10);
+        cache.addIncludedService(CONN_ID, 0, 0, SRVC_A, 0, 0, SRVC_B);
+        cache.addCharacteristic(CONN_ID, 0, 0, SRVC_B, 0, CHAR_B, 0x02);
+        cache.addDescriptor(CONN_ID, 0, 0, SRVC_A, 0, CHAR_A, 0, DESC);
+        cache.endDiscovery(CONN_ID, ADDRESS, keep);
+    }
+
+    private static List<String> replay(DiscoveryCache.Database database) throws Exception {
+        final List<String> events = new ArrayList<String>();
+        DiscoveryCache.replay(database, new DiscoveryCache.ReplayCallback() {
+            @Override
+            public void onService(DiscoveryCache.Service service) {
+                events.add("service " + service.uuid);
+            }
+
+            @Override
+            public void onCharacteristic(DiscoveryCache.Service service,
+                    DiscoveryCache.Characteristic characteristic) {
+                events.add("char " + service.uuid + " " + characteristic.uuid
+                        + " " + characteristic.properties);
+            }
+
+            @Override
+            public void onIncludedService(DiscoveryCache.Service service,
+                    DiscoveryCache.Service included) {
+                events.add("incl " + service.uuid + " " + included.uuid);
+            }
+
+            @Override
+            public void onDescriptor(DiscoveryCache.Service service,
+                    DiscoveryCache.Characteristic characteristic,
+                    DiscoveryCache.Descriptor descriptor) {
+                events.add("desc " + characteristic.uuid + " " + descriptor.uuid);
+            }
+        });
+        return events;
+    }
+
+    @SmallTest
+    public void testReplayOrder() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache(true);
+        discover(cache, true);
+
+        DiscoveryCache.Database database = cache.get(ADDRESS);
+        assertNotNull(database);
+        assertEquals(Arrays.asList(
+                "service " + SRVC_A,
+                "service " + SRVC_B,
+                "char " + SRVC_A + " " + CHAR_A + " 16",
+                "incl " + SRVC_A + " " + SRVC_B,
+                "char " + SRVC_B + " " + CHAR_B + " 2",
+                "desc " + CHAR_A + " " + DESC), replay(database));
+    }
+
+    @SmallTest
+    public void testNotKeptWhenNotRequested() {
+        DiscoveryCache cache = new DiscoveryCache(true);
+        discover(cache, true);
+        discover(cache, false);
+        assertNull(cache.get(ADDRESS));
+    }
+
+    @SmallTest
+    public void testNativeSearchInvalidates() {
+        DiscoveryCache cache = new DiscoveryCache(true);
+        discover(cache, true);
+        // Nothing may be replayed while the native stack rebuilds its own cache
+        cache.beginDiscovery(CONN_ID + 1, ADDRESS);
+        assertNull(cache.get(ADDRESS));
+    }
+
+    @SmallTest
+    public void testRemoveInvalidates() {
+        DiscoveryCache cache = new DiscoveryCache(true);
+        discover(cache, true);
+        cache.remove(ADDRESS);
+        assertNull(cache.get(ADDRESS));
+    }
+
+    @SmallTest
+    public void testDisconnectDropsPendingTable() {
+        DiscoveryCache cache = new DiscoveryCache(true);
+        cache.beginDiscovery(CONN_ID, ADDRESS);
+        cache.addService(CONN_ID, 0, 0, SRVC_A);
+        cache.removeConnId(CONN_ID);
+        cache.endDiscovery(CONN_ID, ADDRESS, true);
+        assertNull(cache.get(ADDRESS));
+    }
+
+    @SmallTest
+    public void testDisabled() {
+        DiscoveryCache cache = new DiscoveryCache(false);
+        discover(cache, true);
+        assertNull(cache.get(ADDRESS));
+    }
+}
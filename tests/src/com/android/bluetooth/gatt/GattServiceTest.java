@@ -15,7 +15,7 @@ public class GattServiceTest extends AndroidTestCase {
     public void testParseBatchTimestamp() {
         GattService service = new GattService();
         long timestampNanos = service.parseTimestampNanos(new byte[] {
-                -54, 7 });
+                -54, 7 }, 0);
         assertEquals(99700000000L, timestampNanos);
     }
 
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Test cases for the notified value cache of {@link HandleMap}.
+ */
+public class HandleMapTest extends AndroidTestCase {
+    private static final int SERVER_IF = 5;
+    private static final int SERVICE_HANDLE = 40;
+    private static final int CHAR_HANDLE = 42;
+    private static final int DESC_HANDLE = 43;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:66";
+    private static final byte[] VALUE = new byte[] { 1, 2, 3 };
+
+    private HandleMap newHandleMap(boolean cacheValues) {
+        HandleMap map = new HandleMap(cacheValues);
+        map.addService(SERVER_IF, SERVICE_HANDLE, UUID.randomUUID(), 0, 0, false);
+        map.addCharacteristic(SERVER_IF, CHAR_HANDLE, UUID.randomUUID(), SERVICE_HANDLE);
+        map.addDescriptor(SERVER_IF, DESC_HANDLE, UUID.randomUUID(), SERVICE_HANDLE);
+        return map;
+    }
+
+    @SmallTest
+    public void testNotifiedValueCachedPerDevice() {
+        HandleMap map = newHandleMap(true);
+        assertNull(map.getCachedValue(CHAR_HANDLE, ADDRESS));
+
+        byte[] value = VALUE.clone();
+        map.setCachedValue(CHAR_HANDLE, ADDRESS, value);
+        value[0] = 9;
+        assertTrue(Arrays.equals(VALUE, map.getCachedValue(CHAR_HANDLE, ADDRESS)));
+        // Never answered for a device the value was not sent to
+        assertNull(map.getCachedValue(CHAR_HANDLE, OTHER_ADDRESS));
+    }
+
+    @SmallTest
+    public void testOnlyCharacteristicsCached() {
+        HandleMap map = newHandleMap(true);
+        map.setCachedValue(DESC_HANDLE, ADDRESS, VALUE);
+        map.setCachedValue(SERVICE_HANDLE, ADDRESS, VALUE);
+        assertNull(map.getCachedValue(DESC_HANDLE, ADDRESS));
+        assertNull(map.getCachedValue(SERVICE_HANDLE, ADDRESS));
+    }
+
+    @SmallTest
+    public void testInvalidateValueDropsAllDevices() {
+        HandleMap map = newHandleMap(true);
+        map.setCachedValue(CHAR_HANDLE, ADDRESS, VALUE);
+        map.setCachedValue(CHAR_HANDLE, OTHER_ADDRESS, VALUE);
+        map.invalidateValue(CHAR_HANDLE);
+        assertNull(map.getCachedValue(CHAR_HANDLE, ADDRESS));
+        assertNull(map.getCachedValue(CHAR_HANDLE, OTHER_ADDRESS));
+    }
+
+    @SmallTest
+    public void testInvalidateAddressKeepsOtherDevices() {
+        HandleMap map = newHandleMap(true);
+        map.setCachedValue(CHAR_HANDLE, ADDRESS, VALUE);
+        map.setCachedValue(CHAR_HANDLE, OTHER_ADDRESS, VALUE);
+        map.invalidateAddress(ADDRESS);
+        assertNull(map.getCachedValue(CHAR_HANDLE, ADDRESS));
+        assertTrue(Arrays.equals(VALUE, map.getCachedValue(CHAR_HANDLE, OTHER_ADDRESS)));
+    }
+
+    @SmallTest
+    public void testNullValueInvalidates() {
+        HandleMap map = newHandleMap(true);
+        map.setCachedValue(CHAR_HANDLE, ADDRESS, VALUE);
+        map.setCachedValue(CHAR_HANDLE, OTHER_ADDRESS, null);
+        assertNull(map.getCachedValue(CHAR_HANDLE, ADDRESS));
+    }
+
+    @SmallTest
+    public void testDeletedServiceNotCached() {
+        HandleMap map = newHandleMap(true);
+        map.setCachedValue(CHAR_HANDLE, ADDRESS, VALUE);
+        map.deleteService(SERVER_IF, SERVICE_HANDLE);
+        assertNull(map.getCachedValue(CHAR_HANDLE, ADDRESS));
+    }
+
+    @SmallTest
+    public void testDisabled() {
+        HandleMap map = newHandleMap(false);
+        map.setCachedValue(CHAR_HANDLE, ADDRESS, VALUE);
+        assertNull(map.getCachedValue(CHAR_HANDLE, ADDRESS));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link ScanDuplicateFilter}.
+ */
+public class ScanDuplicateFilterTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final byte[] PAYLOAD = new byte[] { 2, 1, 6 };
+
+    @SmallTest
+    public void testRepeatedAdvertisementSuppressed() {
+        ScanDuplicateFilter filter = new ScanDuplicateFilter(1000, 6, 16);
+        assertFalse(filter.isDuplicate(ADDRESS, PAYLOAD, -60, 0));
+        assertTrue(filter.isDuplicate(ADDRESS, PAYLOAD, -62, 500));
+        // Expired
+        assertFalse(filter.isDuplicate(ADDRESS, PAYLOAD, -60, 1000));
+    }
+
+    @SmallTest
+    public void testChangesForwarded() {
+        ScanDuplicateFilter filter = new ScanDuplicateFilter(1000, 6, 16);
+        assertFalse(filter.isDuplicate(ADDRESS, PAYLOAD, -60, 0));
+        assertFalse(filter.isDuplicate(ADDRESS, new byte[] { 2, 1, 4 }, -60, 10));
+        assertFalse(filter.isDuplicate("00:11:22:33:44:66", PAYLOAD, -60, 20));
+        // RSSI moved beyond the threshold
+        assertFalse(filter.isDuplicate(ADDRESS, PAYLOAD, -70, 30));
+        assertTrue(filter.isDuplicate(ADDRESS, PAYLOAD, -68, 40));
+    }
+
+    @SmallTest
+    public void testLeastRecentlySeenEvicted() {
+        ScanDuplicateFilter filter = new ScanDuplicateFilter(1000, 6, 2);
+        assertFalse(filter.isDuplicate(ADDRESS, PAYLOAD, -60, 0));
+        assertFalse(filter.isDuplicate("00:11:22:33:44:66", PAYLOAD, -60, 0));
+        assertFalse(filter.isDuplicate("00:11:22:33:44:77", PAYLOAD, -60, 0));
+        assertFalse(filter.isDuplicate(ADDRESS, PAYLOAD, -60, 10));
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of The Linux Foundation nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.bluetooth.opp;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.btobex.ClientOperation;
+import javax.btobex.ClientSession;
+import javax.btobex.HeaderSet;
+import javax.btobex.ObexHelper;
+import javax.btobex.ObexTransport;
+import javax.btobex.Operation;
+import javax.btobex.ResponseCodes;
+import javax.btobex.ServerRequestHandler;
+import javax.btobex.ServerSession;
+
+/**
+ * Measures OBEX PUT throughput between a client and a server session joined
+ * by an in-memory loopback transport. Both ends move file data the way
+ * {@link BluetoothOppObexClientSession} and {@link BluetoothOppObexServerSession}
+ * do, through {@link BluetoothOppSendPipeline} and
+ * {@link BluetoothOppReceivePipeline}, so changes to those loops show up here
+ * without a remote device or radio in the way.
+ *
+ * For every file size and max packet size the log reports MB/s, the mean
+ * and worst time spent writing one packet, bytes allocated and the peak
+ * number of live threads.
+ */
+public class BluetoothOppObexBenchmark extends AndroidTestCase {
+    private static final String TAG = "BluetoothOppObexBenchmark";
+
+    private static final int[] FILE_SIZES = new int[] {
+        64 * 1024, 1024 * 1024, 8 * 1024 * 1024
+    };
+
+    private static final int[] PACKET_SIZES = new int[] {
+        1024, 4096, ObexHelper.MAX_PACKET_SIZE_INT
+    };
+
+    /** Bytes buffered in each direction of the loopback link */
+    private static final int LINK_BUFFER_SIZE = 64 * 1024;
+
+    private static final int ROUNDS = 3;
+
+    private static final long TRANSFER_TIMEOUT_MS = 60000;
+
+    @LargeTest
+    public void testPipelinedThroughput() throws Exception {
+        runBenchmark(true);
+    }
+
+    @LargeTest
+    public void testSynchronousThroughput() throws Exception {
+        runBenchmark(false);
+    }
+
+    private void runBenchmark(boolean pipelined) throws Exception {
+        File dir = getContext().getCacheDir();
+        for (int fileSize : FILE_SIZES) {
+            File source = createSourceFile(dir, fileSize);
+            File target = new File(dir, "obex_benchmark_received");
+            try {
+                for (int packetSize : PACKET_SIZES) {
+                    // first round warms up the sessions and is not reported
+                    runTransfer(source, target, packetSize, pipelined);
+                    Result total = new Result();
+                    for (int i = 0; i < ROUNDS; i++) {
+                        total.add(runTransfer(source, target, packetSize, pipelined));
+                    }
+                    Log.i(TAG, (pipelined ? "pipelined " : "synchronous ") + fileSize
+                            + " bytes, packet " + packetSize + ": " + total.report(ROUNDS));
+                }
+            } finally {
+                source.delete();
+                target.delete();
+            }
+        }
+    }
+
+    private Result runTransfer(File source, File target, int packetSize, boolean pipelined)
+            throws Exception {
+        long length = source.length();
+        PipedInputStream clientIn = new PipedInputStream(LINK_BUFFER_SIZE);
+        PipedInputStream serverIn = new PipedInputStream(LINK_BUFFER_SIZE);
+        LoopbackTransport clientTransport = new LoopbackTransport(clientIn,
+                new PipedOutputStream(serverIn), packetSize);
+        LoopbackTransport serverTransport = new LoopbackTransport(serverIn,
+                new PipedOutputStream(clientIn), packetSize);
+
+        Receiver receiver = new Receiver(target, length, packetSize, pipelined);
+        ServerSession server = new ServerSession(serverTransport, receiver, null);
+        ClientSession client = new ClientSession(clientTransport);
+        Result result = new Result();
+        try {
+            Debug.resetGlobalAllocSize();
+            Debug.startAllocCounting();
+            long start = SystemClock.elapsedRealtimeNanos();
+
+            client.connect(null);
+            HeaderSet request = new HeaderSet();
+            request.setHeader(HeaderSet.NAME, target.getName());
+            request.setHeader(HeaderSet.LENGTH, length);
+            send(client, request, source, length, packetSize, pipelined, result);
+            assertTrue("server did not finish",
+                    receiver.mDone.await(TRANSFER_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            client.disconnect(null);
+
+            result.mElapsedNanos = SystemClock.elapsedRealtimeNanos() - start;
+            Debug.stopAllocCounting();
+            result.mAllocatedBytes = Debug.getGlobalAllocSize();
+            result.mBytes = length;
+        } finally {
+            client.close();
+            server.close();
+        }
+
+        if (receiver.mError != null) {
+            throw receiver.mError;
+        }
+        assertEquals(length, target.length());
+        return result;
+    }
+
+    /** Same loop as BluetoothOppObexClientSession.sendFile, minus provider updates. */
+    private void send(ClientSession client, HeaderSet request, File source, long length,
+            int packetSize, boolean pipelined, Result result) throws IOException {
+        ClientOperation op = (ClientOperation)client.put(request);
+        FileInputStream in = new FileInputStream(source);
+        BluetoothOppSendPipeline pipeline = new BluetoothOppSendPipeline(in, length,
+                Math.min(packetSize, op.getMaxPacketSize()), pipelined);
+        try {
+            OutputStream out = op.openOutputStream();
+            pipeline.start();
+            long position = 0;
+            while (position != length) {
+                BluetoothOppChunk chunk = pipeline.take();
+                long packetStart = SystemClock.elapsedRealtimeNanos();
+                out.write(chunk.mData, 0, chunk.mLength);
+                result.addPacket(SystemClock.elapsedRealtimeNanos() - packetStart);
+                position += chunk.mLength;
+                pipeline.release(chunk);
+            }
+            out.close();
+            assertEquals(ResponseCodes.OBEX_HTTP_OK, op.getResponseCode());
+        } finally {
+            pipeline.close();
+            op.close();
+            in.close();
+        }
+    }
+
+    private File createSourceFile(File dir, int size) throws IOException {
+        File file = new File(dir, "obex_benchmark_" + size);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            byte[] block = new byte[4096];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte)i;
+            }
+            for (int written = 0; written < size; written += block.length) {
+                out.write(block, 0, Math.min(block.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static class Result {
+        long mBytes;
+
+        long mElapsedNanos;
+
+        long mAllocatedBytes;
+
+        int mPackets;
+
+        long mPacketNanos;
+
+        long mWorstPacketNanos;
+
+        int mPeakThreads;
+
+        void addPacket(long nanos) {
+            mPackets++;
+            mPacketNanos += nanos;
+            mWorstPacketNanos = Math.max(mWorstPacketNanos, nanos);
+            mPeakThreads = Math.max(mPeakThreads, Thread.activeCount());
+        }
+
+        void add(Result other) {
+            mBytes += other.mBytes;
+            mElapsedNanos += other.mElapsedNanos;
+            mAllocatedBytes += other.mAllocatedBytes;
+            mPackets += other.mPackets;
+            mPacketNanos += other.mPacketNanos;
+            mWorstPacketNanos = Math.max(mWorstPacketNanos, other.mWorstPacketNanos);
+            mPeakThreads = Math.max(mPeakThreads, other.mPeakThreads);
+        }
+
+        String report(int rounds) {
+            double mbPerSec = (mBytes / (1024.0 * 1024.0)) / (mElapsedNanos / 1e9);
+            return String.format("%.2f MB/s, %d us/packet (worst %d us), %d bytes allocated"
+                    + " per transfer, %d threads",
+                    mbPerSec, mPacketNanos / Math.max(1, mPackets) / 1000,
+                    mWorstPacketNanos / 1000, mAllocatedBytes / rounds, mPeakThreads);
+        }
+    }
+
+    /** Same loop as BluetoothOppObexServerSession.receiveFile, minus provider updates. */
+    private static class Receiver extends ServerRequestHandler {
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        volatile Exception mError;
+
+        private final File mTarget;
+
+        private final long mLength;
+
+        private final int mPacketSize;
+
+        private final boolean mPipelined;
+
+        Receiver(File target, long length, int packetSize, boolean pipelined) {
+            mTarget = target;
+            mLength = length;
+            mPacketSize = packetSize;
+            mPipelined = pipelined;
+        }
+
+        @Override
+        public int onConnect(HeaderSet request, HeaderSet reply) {
+            return ResponseCodes.OBEX_HTTP_OK;
+        }
+
+        @Override
+        public int onPut(Operation op) {
+            BluetoothOppReceivePipeline pipeline = null;
+            try {
+                InputStream in = op.openInputStream();
+                pipeline = new BluetoothOppReceivePipeline(new FileOutputStream(mTarget), 0,
+                        mLength, Math.min(mPacketSize, op.getMaxPacketSize()), mPipelined);
+                pipeline.start();
+                long position = 0;
+                while (position != mLength) {
+                    BluetoothOppChunk chunk = pipeline.obtain();
+                    int readLength = in.read(chunk.mData);
+                    if (readLength == -1) {
+                        pipeline.release(chunk);
+                        break;
+                    }
+                    chunk.mLength = readLength;
+                    pipeline.submit(chunk);
+                    position += readLength;
+                }
+                pipeline.finish();
+                in.close();
+                return ResponseCodes.OBEX_HTTP_OK;
+            } catch (IOException e) {
+                Log.e(TAG, "Receive failed", e);
+                mError = e;
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            } finally {
+                if (pipeline != null) {
+                    pipeline.close();
+                }
+                mDone.countDown();
+            }
+        }
+    }
+
+    /** One end of an in-memory link, standing in for BluetoothOppTransport. */
+    private static class LoopbackTransport implements ObexTransport {
+        private final InputStream mInput;
+
+        private final OutputStream mOutput;
+
+        private final int mMaxPacketSize;
+
+        LoopbackTransport(InputStream input, OutputStream output, int maxPacketSize) {
+            mInput = input;
+            mOutput = output;
+            mMaxPacketSize = maxPacketSize;
+        }
+
+        public int getMaxPacketSize() {
+            return mMaxPacketSize;
+        }
+
+        public void close() throws IOException {
+            mInput.close();
+            mOutput.close();
+        }
+
+        public DataInputStream openDataInputStream() throws IOException {
+            return new DataInputStream(openInputStream());
+        }
+
+        public DataOutputStream openDataOutputStream() throws IOException {
+            return new DataOutputStream(openOutputStream());
+        }
+
+        public InputStream openInputStream() throws IOException {
+            return mInput;
+        }
+
+        public OutputStream openOutputStream() throws IOException {
+            return mOutput;
+        }
+
+        public void connect() throws IOException {
+        }
+
+        public void create() throws IOException {
+        }
+
+        public void disconnect() throws IOException {
+        }
+
+        public void listen() throws IOException {
+        }
+
+        public boolean isConnected() throws IOException {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of The Linux Foundation nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures the latency of the transfer notification and history queries
+ * against {@link BluetoothOppProvider}'s schema, with and without its
+ * secondary indexes.
+ */
+public class BluetoothOppProviderQueryBenchmark extends AndroidTestCase {
+    private static final String TAG = "BluetoothOppProviderQueryBenchmark";
+
+    private static final int ITERATIONS = 20;
+
+    private static final String[] QUERIES = new String[] {
+        BluetoothOppNotification.WHERE_NOTIFICATION,
+        BluetoothOppNotification.WHERE_RUNNING,
+        BluetoothOppNotification.WHERE_COMPLETED + " AND " + BluetoothShare.DIRECTION + " == "
+                + BluetoothShare.DIRECTION_INBOUND,
+        BluetoothOppNotification.WHERE_CONFIRM_PENDING
+    };
+
+    private static final String[] PROJECTION = new String[] {
+        BluetoothShare._ID, BluetoothShare.TIMESTAMP, BluetoothShare.STATUS
+    };
+
+    @LargeTest
+    public void testQueryLatency1k() {
+        runBenchmark(1000);
+    }
+
+    @LargeTest
+    public void testQueryLatency10k() {
+        runBenchmark(10000);
+    }
+
+    @LargeTest
+    public void testQueryLatency100k() {
+        runBenchmark(100000);
+    }
+
+    private void runBenchmark(int rows) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            BluetoothOppProvider.createTable(db);
+            populate(db, rows);
+
+            int[] counts = new int[QUERIES.length];
+            long plain = measure(db, counts);
+
+            BluetoothOppProvider.createIndexes(db);
+            int[] indexedCounts = new int[QUERIES.length];
+            long indexed = measure(db, indexedCounts);
+
+            for (int i = 0; i < QUERIES.length; i++) {
+                assertEquals(counts[i], indexedCounts[i]);
+            }
+            Log.i(TAG, rows + " rows: " + plain / ITERATIONS + " us without indexes, "
+                    + indexed / ITERATIONS + " us with indexes");
+        } finally {
+            db.close();
+        }
+    }
+
+    /** Returns the total time in microseconds spent running every query ITERATIONS times. */
+    private long measure(SQLiteDatabase db, int[] counts) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (int q = 0; q < QUERIES.length; q++) {
+                Cursor cursor = db.query(BluetoothOppProvider.DB_TABLE, PROJECTION, QUERIES[q],
+                        null, null, null, BluetoothShare.TIMESTAMP + " DESC");
+                try {
+                    counts[q] = cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+    }
+
+    /**
+     * Fills the table with a history dominated by completed transfers, plus a
+     * handful of running and pending ones, like a long-lived device would have.
+     */
+    private void populate(SQLiteDatabase db, int rows) {
+        ContentValues values = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                int status;
+                int confirmation = BluetoothShare.USER_CONFIRMATION_CONFIRMED;
+                if (i % 500 == 0) {
+                    status = BluetoothShare.STATUS_RUNNING;
+                } else if (i % 700 == 0) {
+                    status = BluetoothShare.STATUS_PENDING;
+                    confirmation = BluetoothShare.USER_CONFIRMATION_PENDING;
+                } else if (i % 10 == 0) {
+                    status = BluetoothShare.STATUS_UNKNOWN_ERROR;
+                } else {
+                    status = BluetoothShare.STATUS_SUCCESS;
+                }
+                values.clear();
+                values.put(BluetoothShare.FILENAME_HINT, "file" + i + ".jpg");
+                values.put(BluetoothShare.DESTINATION,
+                        String.format("00:11:22:33:44:%02X", i & 0xff));
+                values.put(BluetoothShare.DIRECTION, (i & 1) == 0
+                        ? BluetoothShare.DIRECTION_INBOUND : BluetoothShare.DIRECTION_OUTBOUND);
+                values.put(BluetoothShare.VISIBILITY, (i % 3 == 0)
+                        ? BluetoothShare.VISIBILITY_HIDDEN : BluetoothShare.VISIBILITY_VISIBLE);
+                values.put(BluetoothShare.USER_CONFIRMATION, confirmation);
+                values.put(BluetoothShare.STATUS, status);
+                values.put(BluetoothShare.TOTAL_BYTES, 1024L * i);
+                values.put(BluetoothShare.CURRENT_BYTES, 1024L * i);
+                values.put(BluetoothShare.TIMESTAMP, 1000000L + i);
+                values.put(BluetoothShare.MODIFICATION_SEQ, i + 1);
+                db.insert(BluetoothOppProvider.DB_TABLE, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}